@@ -0,0 +1,187 @@
+package il.technion.cs236369.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.net.SocketFactory;
+
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Shared setup of the JMH benchmarks of the proxy's hot paths and of the
+ * load tools (LoadTest, ReplayTool). The benchmarks live in the proxy's
+ * package so they can call the package private helpers they measure.
+ *
+ * To run them, compile this directory together with src against lib/ and
+ * the JMH jars (jmh-core and jmh-generator-annprocess, which generates the
+ * benchmark harness while compiling), then start the JMH runner:
+ *
+ *   javac -cp "lib/*:jmh/*" -d bench-out $(find src bench -name '*.java')
+ *   java -cp "bench-out:lib/*:jmh/*" org.openjdk.jmh.Main -prof gc
+ *
+ * "-prof gc" adds the allocation rate of every benchmark to the report.
+ */
+final class Benchmarks {
+
+    /** JDBC url that makes ProxyCache keep entries in its memory tier only */
+    static final String NO_DATABASE = "";
+
+    /**
+     * An HttpProxy accepting requests on a thread of its own.
+     */
+    static final class RunningProxy {
+        final HttpProxy m_proxy;
+        final Thread    m_thread;
+
+        RunningProxy(HttpProxy proxy, Thread thread) {
+            m_proxy = proxy;
+            m_thread = thread;
+        }
+    }
+
+    private Benchmarks() {
+    }
+
+    /**
+     * @param tool name of the tool, for the usage message
+     * @param defaults key and default value of every option
+     * @param args key=value arguments overriding the defaults
+     * @return the options; exits if an argument isn't key=value
+     */
+    static Properties parseOptions(String tool, String[][] defaults, String[] args) {
+        Properties options = new Properties();
+        for (String[] option : defaults)
+            options.setProperty(option[0], option[1]);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("Usage: " + tool + " [key=value]...");
+                System.exit(1);
+            }
+            options.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Starts a proxy with a memory-only cache and no logs or snapshots on
+     * the loopback interface. Options starting with "httproxy." override its
+     * configuration.
+     * @param port
+     * @param maxObjectSize largest body cached
+     * @param options
+     * @return the running proxy
+     * @throws IOException if the port is taken
+     */
+    static RunningProxy startProxy(int port, int maxObjectSize, Properties options) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("httproxy.net.port", String.valueOf(port));
+        props.setProperty("httproxy.db.url", NO_DATABASE);
+        props.setProperty("httproxy.cache.memory.size", String.valueOf(256L * 1024 * 1024));
+        props.setProperty("httproxy.cache.max.object.size", String.valueOf(maxObjectSize));
+        props.setProperty("httproxy.cache.snapshot.interval", "0");
+        File snapshot = File.createTempFile("bench", ".snapshot");
+        snapshot.delete();
+        props.setProperty("httproxy.cache.snapshot.file", snapshot.getPath());
+        props.setProperty("httproxy.log.access.file", "");
+        props.setProperty("httproxy.trace.slow.millis", "0");
+        for (Map.Entry<Object, Object> e : options.entrySet()) {
+            if (e.getKey().toString().startsWith("httproxy."))
+                props.setProperty(e.getKey().toString(), e.getValue().toString());
+        }
+
+        final HttpProxy proxy = Guice.createInjector(new HttpProxyModule(props)).getInstance(HttpProxy.class);
+        proxy.bind();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                proxy.start();
+            }
+        }, "proxy");
+        thread.setDaemon(true);
+        thread.start();
+        return new RunningProxy(proxy, thread);
+    }
+
+    /**
+     * @param latency
+     * @return the percentiles reported by the load tools
+     */
+    static String formatLatency(LatencyHistogram latency) {
+        return String.format(Locale.ENGLISH, "p50 %s  p99 %s  p999 %s  max %s",
+                             millis(latency.getPercentile(50)),
+                             millis(latency.getPercentile(99)),
+                             millis(latency.getPercentile(99.9)),
+                             millis(latency.getMax()));
+    }
+
+    /**
+     * @param proxy
+     * @return bytes allocated so far by the accept thread and the workers of
+     *         proxy, -1 if the JVM doesn't tell
+     */
+    static long allocatedBytes(RunningProxy proxy) {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) threads;
+        long res = mx.getThreadAllocatedBytes(proxy.m_thread.getId());
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith(HttpProxy.WORKER_NAME))
+                res += mx.getThreadAllocatedBytes(t.getId());
+        }
+        return res;
+    }
+
+    static double percent(long part, long whole) {
+        return whole > 0 ? 100.0 * part / whole : 0;
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ENGLISH, "%.2fms", micros / 1000.0);
+    }
+
+    /**
+     * @param memorySize bytes the memory tier may hold
+     * @return a cache that doesn't use a database
+     */
+    static ProxyCache newMemoryCache(long memorySize) {
+        return new ProxyCache(NO_DATABASE, "proxy", "cache", "", "", "com.mysql.jdbc.Driver", memorySize);
+    }
+
+    /**
+     * @param cache
+     * @return a request handler with the default configuration, backed by cache
+     */
+    static ProxyRequestHandler newHandler(ProxyCache cache) {
+        Injector injector = Guice.createInjector(new HttpProxyModule(new Properties()));
+        return new ProxyRequestHandler(new BasicHttpParams(),
+                                       new BasicHttpProcessor(),
+                                       new HttpRequestExecutor(),
+                                       SocketFactory.getDefault(),
+                                       cache,
+                                       "443",
+                                       100 * 1024 * 1024,
+                                       injector.getInstance(DnsCache.class),
+                                       injector.getInstance(OriginHealth.class),
+                                       injector.getInstance(RequestTimeouts.class),
+                                       injector.getInstance(NegativeCacheTtl.class),
+                                       injector.getInstance(ParentProxies.class),
+                                       injector.getInstance(CachePeers.class),
+                                       injector.getInstance(H2cClient.class),
+                                       injector.getInstance(ProxyMetrics.class),
+                                       injector.getInstance(AccessLog.class),
+                                       injector.getInstance(ClientRateLimiter.class),
+                                       injector.getInstance(ConcurrencyLimit.class));
+    }
+}
@@ -0,0 +1,72 @@
+package il.technion.cs236369.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cache lookups of the request path (contains, then retrieve) against a
+ * cache without a database, so only the memory tier and the bookkeeping
+ * around it are measured. Runs with several threads, as the memory tier is
+ * shared by all the requests being handled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class CacheLookupBenchmark {
+
+    @Param({ "1000", "100000" })
+    public int m_entries;
+
+    private ProxyCache m_cache;
+    private String[]   m_urls;
+
+    @Setup
+    public void setUp() {
+        m_cache = Benchmarks.newMemoryCache(512L * 1024 * 1024);
+        Header[] headers = {
+            new BasicHeader("Content-Type", "text/html"),
+            new BasicHeader("Last-Modified", "Tue, 15 Oct 2024 08:12:40 GMT")
+        };
+        byte[] body = new byte[1024];
+
+        m_urls = new String[m_entries];
+        for (int i = 0; i < m_entries; i++) {
+            m_urls[i] = "http://www.example.com/objects/" + i + ".html";
+            m_cache.store(m_urls[i], headers, body);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int m_next;
+    }
+
+    @Benchmark
+    public ProxyCache.CachedItem hit(Cursor cursor) {
+        String url = m_urls[cursor.m_next++ % m_urls.length];
+        return m_cache.contains(url) ? m_cache.retrieve(url) : null;
+    }
+
+    @Benchmark
+    public boolean miss(Cursor cursor) {
+        return m_cache.contains("http://www.example.com/missing/" + (cursor.m_next++ & 1023));
+    }
+}
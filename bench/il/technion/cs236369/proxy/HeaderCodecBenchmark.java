@@ -0,0 +1,60 @@
+package il.technion.cs236369.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of the headers of a cached response for the database and their
+ * decoding on retrieval (ProxyCache.headersToString/strToHeaders), with the
+ * headers of a typical static file response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderCodecBenchmark {
+
+    private ProxyCache m_cache;
+    private Header[]   m_headers;
+    private String     m_encoded;
+
+    @Setup
+    public void setUp() {
+        m_cache = Benchmarks.newMemoryCache(0);
+        m_headers = new Header[] {
+            new BasicHeader("Content-Type", "text/html; charset=UTF-8"),
+            new BasicHeader("Content-Length", "18342"),
+            new BasicHeader("Last-Modified", "Tue, 15 Oct 2024 08:12:40 GMT"),
+            new BasicHeader("ETag", "\"47a6-5f2e1c3d9b0c0\""),
+            new BasicHeader("Cache-Control", "public, max-age=600"),
+            new BasicHeader("Accept-Ranges", "bytes"),
+            new BasicHeader("Vary", "Accept-Encoding"),
+            new BasicHeader("Server", "Apache/2.4.62")
+        };
+        m_encoded = m_cache.headersToString(m_headers);
+    }
+
+    @Benchmark
+    public String encode() {
+        return m_cache.headersToString(m_headers);
+    }
+
+    @Benchmark
+    public Header[] decode() {
+        return m_cache.strToHeaders(m_encoded);
+    }
+}
@@ -0,0 +1,287 @@
+package il.technion.cs236369.proxy;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+
+/**
+ * Replays an access trace against cache policies at several sizes, offline,
+ * and reports the object and byte hit ratios of each, to size the memory
+ * tier and the cache database and to pick the eviction and admission
+ * policies from data:
+ *
+ *   java -cp "bench-out:lib/*" il.technion.cs236369.proxy.HitRatioSimulator trace=capture.bin \
+ *       sizes=4m,16m,64m,256m policies=lru,lfu,wtinylfu,arc,memory,lru+second-hit
+ *
+ * The trace is either a traffic capture (httproxy.capture.file) or an access
+ * log (httproxy.log.access.file). A request is cacheable if the proxy would
+ * store its response: a GET answered 200 (or 304) with a Last-Modified,
+ * without no-store or no-cache, and no larger than the largest object
+ * cached. Access logs don't have the headers, so every GET answered 200 or
+ * 304 counts, and the sizes include the response headers.
+ *
+ * Policies: lru, lfu, wtinylfu, arc and memory (the proxy's own memory
+ * tier). Appending +second-hit or +tinylfu puts the proxy's admission
+ * policy of that name in front. The "unbounded" line is the best any policy
+ * can do, missing only the first request of every url.
+ */
+public class HitRatioSimulator {
+
+    private static final String[][] DEFAULTS = {
+        { "trace",      "" },
+        { "sizes",      "1m,16m,64m,256m" },
+        { "policies",   "lru,lfu,wtinylfu,arc,memory,lru+second-hit,lru+tinylfu" },
+        { "max.object", "65535" },          // largest body cached, bytes
+    };
+
+    private static final Pattern ACCESS_LOG_LINE =
+        Pattern.compile("^\\S+ \\S+ \"(\\S+) (.*)\" (\\d+|-) \\d+ (\\d+) \\d+us \\S+$");
+
+    private final List<String>  m_keys = new ArrayList<String>();
+    private final List<Long>    m_sizes = new ArrayList<Long>();
+    private final List<Boolean> m_cacheable = new ArrayList<Boolean>();
+    private final long          m_maxObject;
+
+    private HitRatioSimulator(long maxObject) {
+        m_maxObject = maxObject;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties options = Benchmarks.parseOptions("HitRatioSimulator", DEFAULTS, args);
+        String trace = options.getProperty("trace");
+        if (trace.length() == 0) {
+            System.err.println("Usage: HitRatioSimulator trace=<capture or access log> [key=value]...");
+            System.exit(1);
+        }
+
+        HitRatioSimulator sim = new HitRatioSimulator(parseSize(options.getProperty("max.object")));
+        if (isCapture(trace))
+            sim.loadCapture(trace);
+        else
+            sim.loadAccessLog(trace);
+
+        sim.report(options.getProperty("sizes").split(","), options.getProperty("policies").split(","));
+    }
+
+    private static boolean isCapture(String file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == TrafficCapture.MAGIC;
+        }
+        catch (IOException e) {
+            return false;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private void loadCapture(String file) throws IOException {
+        List<TrafficCapture.Record> records = TrafficCapture.Reader.readAll(file);
+        Collections.sort(records, new Comparator<TrafficCapture.Record>() {
+            @Override
+            public int compare(TrafficCapture.Record a, TrafficCapture.Record b) {
+                return a.m_arrivalMicros < b.m_arrivalMicros ? -1 : a.m_arrivalMicros > b.m_arrivalMicros ? 1 : 0;
+            }
+        });
+
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        for (TrafficCapture.Record r : records) {
+            boolean cacheable = r.m_method.equals("GET")
+                                && (r.m_status == 200 || r.m_status == 304)
+                                && hasLastModified(r.m_responseHeaders)
+                                && !forbidsStore(r.m_responseHeaders);
+            add(r.m_uri, r.m_status == 200 ? r.m_responseBytes : -1, cacheable, sizes);
+        }
+    }
+
+    private void loadAccessLog(String file) throws IOException {
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Matcher m = ACCESS_LOG_LINE.matcher(line);
+                if (!m.matches())
+                    continue;
+
+                String status = m.group(3);
+                boolean cacheable = m.group(1).equals("GET") && (status.equals("200") || status.equals("304"));
+                add(m.group(2), status.equals("200") ? Long.parseLong(m.group(4)) : -1, cacheable, sizes);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param url
+     * @param size size of the response, -1 if it had no body (a 304) and the last one seen is used
+     * @param cacheable
+     * @param sizes last size seen of every url
+     */
+    private void add(String url, long size, boolean cacheable, Map<String, Long> sizes) {
+        if (size >= 0) {
+            sizes.put(url, size);
+        }
+        else {
+            Long known = sizes.get(url);
+            size = known != null ? known : 0;
+        }
+
+        m_keys.add(url.intern());
+        m_sizes.add(size);
+        m_cacheable.add(cacheable && size <= m_maxObject);
+    }
+
+    private void report(String[] sizeSpecs, String[] policies) {
+        long cacheableRequests = 0;
+        long cacheableBytes = 0;
+        long firstRequests = 0;
+        long firstBytes = 0;
+        Set<String> seen = new HashSet<String>();
+        for (int i = 0; i < m_keys.size(); i++) {
+            if (!m_cacheable.get(i))
+                continue;
+            ++cacheableRequests;
+            cacheableBytes += m_sizes.get(i);
+            if (seen.add(m_keys.get(i))) {
+                ++firstRequests;
+                firstBytes += m_sizes.get(i);
+            }
+        }
+
+        System.out.println(String.format(Locale.ENGLISH,
+                                         "%d requests, %d cacheable (%.1f%%) for %d urls, %s cacheable, %s distinct",
+                                         m_keys.size(), cacheableRequests,
+                                         Benchmarks.percent(cacheableRequests, m_keys.size()),
+                                         seen.size(), formatSize(cacheableBytes), formatSize(firstBytes)));
+        System.out.println();
+        System.out.println(String.format(Locale.ENGLISH, "%-10s %-22s %9s %9s", "size", "policy", "objects", "bytes"));
+        System.out.println(String.format(Locale.ENGLISH, "%-10s %-22s %8.1f%% %8.1f%%", "", "unbounded",
+                                         Benchmarks.percent(cacheableRequests - firstRequests, cacheableRequests),
+                                         Benchmarks.percent(cacheableBytes - firstBytes, cacheableBytes)));
+
+        for (String sizeSpec : sizeSpecs) {
+            long capacity = parseSize(sizeSpec);
+            for (String policy : policies) {
+                long hits = 0;
+                long hitBytes = 0;
+                SimulatedCache cache = newCache(policy.trim(), capacity, seen.size());
+                CacheAdmissionPolicy admission = newAdmission(policy.trim(), seen.size());
+                for (int i = 0; i < m_keys.size(); i++) {
+                    if (!m_cacheable.get(i))
+                        continue;
+
+                    String key = m_keys.get(i);
+                    long size = m_sizes.get(i);
+                    if (cache.get(key)) {
+                        ++hits;
+                        hitBytes += size;
+                    }
+                    else if (admission == null || admission.admit(key)) {
+                        cache.put(key, size);
+                    }
+                }
+
+                System.out.println(String.format(Locale.ENGLISH, "%-10s %-22s %8.1f%% %8.1f%%",
+                                                 sizeSpec.trim(), policy.trim(),
+                                                 Benchmarks.percent(hits, cacheableRequests),
+                                                 Benchmarks.percent(hitBytes, cacheableBytes)));
+            }
+        }
+    }
+
+    /**
+     * @param policy eviction policy, optionally followed by +admission
+     * @param capacity
+     * @param keys number of distinct urls in the trace
+     * @return the cache; exits if the policy is unknown
+     */
+    private static SimulatedCache newCache(String policy, long capacity, int keys) {
+        int plus = policy.indexOf('+');
+        String eviction = (plus >= 0 ? policy.substring(0, plus) : policy).toLowerCase(Locale.ENGLISH);
+        if (eviction.equals("lru"))
+            return new SimulatedLru(capacity);
+        if (eviction.equals("lfu"))
+            return new SimulatedLfu(capacity);
+        if (eviction.equals("wtinylfu"))
+            return new SimulatedWTinyLfu(capacity, keys);
+        if (eviction.equals("arc"))
+            return new SimulatedArc(capacity);
+        if (eviction.equals("memory"))
+            return new SimulatedMemoryTier(capacity);
+
+        System.err.println("Unknown policy: " + policy);
+        System.exit(1);
+        return null;
+    }
+
+    /**
+     * @param policy
+     * @param keys
+     * @return the admission policy after the '+' of policy, null if there is none
+     */
+    private static CacheAdmissionPolicy newAdmission(String policy, int keys) {
+        int plus = policy.indexOf('+');
+        return plus >= 0 ? CacheAdmissionPolicy.create(policy.substring(plus + 1), keys) : null;
+    }
+
+    private static boolean hasLastModified(Header[] headers) {
+        for (Header h : headers) {
+            if (h.getName().equalsIgnoreCase("Last-Modified"))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean forbidsStore(Header[] headers) {
+        for (Header h : headers) {
+            if (h.getName().equalsIgnoreCase("Cache-Control")) {
+                String value = h.getValue().toLowerCase(Locale.ENGLISH);
+                if (value.contains("no-store") || value.contains("no-cache"))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param spec bytes, with an optional k, m or g suffix
+     * @return the size in bytes
+     */
+    private static long parseSize(String spec) {
+        String s = spec.trim().toLowerCase(Locale.ENGLISH);
+        long unit = 1;
+        if (s.endsWith("k"))
+            unit = 1024;
+        else if (s.endsWith("m"))
+            unit = 1024 * 1024;
+        else if (s.endsWith("g"))
+            unit = 1024 * 1024 * 1024;
+        if (unit > 1)
+            s = s.substring(0, s.length() - 1);
+        return (long) (Double.parseDouble(s) * unit);
+    }
+
+    private static String formatSize(long bytes) {
+        return String.format(Locale.ENGLISH, "%.1fMB", bytes / (1024.0 * 1024));
+    }
+}
@@ -0,0 +1,176 @@
+package il.technion.cs236369.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Client side of the load tools: sends requests to the proxy from a fixed
+ * number of threads, each request on its own connection (the proxy serves
+ * one request per connection), and keeps their latencies.
+ *
+ * The load is open-loop: every request has a due time, and its latency is
+ * measured from that time rather than from when a thread got to send it, so
+ * a stalled proxy shows up in the percentiles instead of slowing the load
+ * down.
+ */
+public class LoadClient {
+
+    /**
+     * The requests to send.
+     */
+    public interface Workload {
+        /**
+         * @param i
+         * @return nanoseconds after the start request i is due, negative to send it right away
+         */
+        long dueNanos(long i);
+
+        /**
+         * Sends request i, normally with LoadClient.exchange.
+         * @param client
+         * @param i
+         * @param due System.nanoTime() the request was due
+         * @param random of the sending thread
+         * @param buf scratch buffer of the sending thread
+         */
+        void send(LoadClient client, long i, long due, Random random, byte[] buf);
+    }
+
+    private final int        m_proxyPort;
+    private final int        m_timeout;
+    private LatencyHistogram m_latency = new LatencyHistogram();
+    private AtomicLong       m_failures = new AtomicLong();
+
+    /**
+     * @param proxyPort port of the proxy on the loopback interface
+     * @param timeout milliseconds a connection may be silent
+     */
+    public LoadClient(int proxyPort, int timeout) {
+        m_proxyPort = proxyPort;
+        m_timeout = timeout;
+    }
+
+    /**
+     * Sends requests 0..count-1 of workload and waits for them. Resets the
+     * latencies and failure count first.
+     * @param threads requests in flight at most
+     * @param count
+     * @param workload
+     * @throws InterruptedException
+     */
+    public void drive(int threads, final long count, final Workload workload) throws InterruptedException {
+        m_latency = new LatencyHistogram();
+        m_failures = new AtomicLong();
+
+        final long start = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            final int step = threads;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(first);
+                    byte[] buf = new byte[16 * 1024];
+                    for (long i = first; i < count; i += step) {
+                        long offset = workload.dueNanos(i);
+                        long due = offset >= 0 ? start + offset : System.nanoTime();
+                        long wait = due - System.nanoTime();
+                        if (wait > 0)
+                            LockSupport.parkNanos(wait);
+                        workload.send(LoadClient.this, i, due, random, buf);
+                    }
+                    done.countDown();
+                }
+            }, "load-" + t);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        done.await();
+    }
+
+    /**
+     * Sends a request and reads the whole response.
+     * @param head request line and headers, "Connection: close" included
+     * @param bodyLength bytes of body sent after the head
+     * @param due System.nanoTime() the request was due
+     * @param buf scratch buffer
+     * @return status of the response, -1 if the exchange failed
+     */
+    public int exchange(String head, long bodyLength, long due, byte[] buf) {
+        Socket sock = new Socket();
+        try {
+            sock.setSoTimeout(m_timeout);
+            sock.setTcpNoDelay(true);
+            sock.connect(new InetSocketAddress("127.0.0.1", m_proxyPort), m_timeout);
+
+            OutputStream out = sock.getOutputStream();
+            out.write(head.getBytes("ISO-8859-1"));
+            if (bodyLength > 0) {
+                Arrays.fill(buf, (byte) 0);
+                for (long left = bodyLength; left > 0; left -= buf.length)
+                    out.write(buf, 0, (int) Math.min(left, buf.length));
+            }
+            out.flush();
+
+            InputStream in = sock.getInputStream();
+            int status = -1;
+            int total = 0;
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                if (total == 0 && n >= 12)
+                    status = parseStatus(buf);
+                total += n;
+            }
+
+            m_latency.recordSince(due);
+            if (status < 0)
+                m_failures.incrementAndGet();
+            return status;
+        }
+        catch (IOException e) {
+            m_latency.recordSince(due);
+            m_failures.incrementAndGet();
+            return -1;
+        }
+        finally {
+            try {
+                sock.close();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * @return latencies of the requests of the last drive, in microseconds
+     */
+    public LatencyHistogram getLatency() {
+        return m_latency;
+    }
+
+    /**
+     * @return number of requests of the last drive that got no response
+     */
+    public long getFailureCount() {
+        return m_failures.get();
+    }
+
+    private static int parseStatus(byte[] buf) {
+        // "HTTP/1.1 200 "
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            if (buf[i] < '0' || buf[i] > '9')
+                return -1;
+            status = status * 10 + (buf[i] - '0');
+        }
+        return status;
+    }
+}
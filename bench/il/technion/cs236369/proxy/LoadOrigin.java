@@ -0,0 +1,361 @@
+package il.technion.cs236369.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpDateGenerator;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+import org.apache.http.protocol.ResponseServer;
+
+/**
+ * Stand-in origin server for load tests. Serves /obj/&lt;id&gt; for ids
+ * 0..objects-1 after a configurable delay, each object with its own status,
+ * body size and headers. The synthetic objects have sizes drawn
+ * log-uniformly between a minimal and maximal size, and carry
+ * Last-Modified, an ETag and the configured Cache-Control; a percentage of
+ * them are marked no-store instead. Objects may also be given explicitly,
+ * e.g. as recorded by a traffic capture. Conditional requests whose
+ * validator matches a 200 object are answered 304 without a body.
+ *
+ * Every connection is served by its own thread, so slow responses don't
+ * hold back the others.
+ */
+public class LoadOrigin implements HttpRequestHandler {
+
+    private static final String PATH_PREFIX = "/obj/";
+
+    private final int[]      m_statuses;
+    private final int[]      m_sizes;
+    private final Header[][] m_headers;
+    private final byte[]     m_content;
+    private final long       m_latencyMillis;
+    private final long       m_jitterMillis;
+    private final HttpService m_service;
+    private final HttpParams  m_params;
+    private ServerSocket  m_socket;
+
+    private final AtomicLong m_requests    = new AtomicLong();
+    private final AtomicLong m_notModified = new AtomicLong();
+    private final AtomicLong m_bytes       = new AtomicLong();
+
+    /**
+     * @param objects number of distinct objects served
+     * @param minSize smallest body, in bytes
+     * @param maxSize largest body, in bytes
+     * @param latencyMillis delay before every response
+     * @param jitterMillis up to this much is added to the delay at random
+     * @param cacheControl Cache-Control of cacheable objects, empty for none
+     * @param uncacheablePercent percentage of the objects served with "Cache-Control: no-store"
+     */
+    public LoadOrigin(int objects, int minSize, int maxSize, long latencyMillis, long jitterMillis,
+                      String cacheControl, int uncacheablePercent) {
+        this(new int[objects], syntheticSizes(objects, minSize, maxSize), new Header[objects][],
+             latencyMillis, jitterMillis);
+
+        SimpleDateFormat format = new SimpleDateFormat(HttpDateGenerator.PATTERN_RFC1123, Locale.US);
+        format.setTimeZone(HttpDateGenerator.GMT);
+        Header lastModified =
+            new BasicHeader("Last-Modified", format.format(new Date(System.currentTimeMillis() - 24 * 3600 * 1000L)));
+        Header contentType = new BasicHeader("Content-Type", "application/octet-stream");
+        for (int i = 0; i < objects; i++) {
+            String control = i % 100 < uncacheablePercent ? "no-store" : cacheControl;
+            List<Header> headers = new ArrayList<Header>();
+            headers.add(lastModified);
+            headers.add(new BasicHeader("ETag", "\"" + i + "-" + m_sizes[i] + "\""));
+            if (control.length() > 0)
+                headers.add(new BasicHeader("Cache-Control", control));
+            headers.add(contentType);
+
+            m_statuses[i] = HttpStatus.SC_OK;
+            m_headers[i] = headers.toArray(new Header[headers.size()]);
+        }
+    }
+
+    /**
+     * @param statuses status of each object
+     * @param sizes body size of each object, in bytes
+     * @param headers response headers of each object
+     * @param latencyMillis delay before every response
+     * @param jitterMillis up to this much is added to the delay at random
+     */
+    public LoadOrigin(int[] statuses, int[] sizes, Header[][] headers, long latencyMillis, long jitterMillis) {
+        m_statuses = statuses;
+        m_sizes = sizes;
+        m_headers = headers;
+        m_latencyMillis = latencyMillis;
+        m_jitterMillis = jitterMillis;
+
+        int maxSize = 1;
+        for (int size : sizes)
+            maxSize = Math.max(maxSize, size);
+        m_content = new byte[maxSize];
+        new Random(sizes.length).nextBytes(m_content);
+
+        m_params = new BasicHttpParams();
+        m_params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 30000)
+                .setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
+                .setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
+
+        BasicHttpProcessor httpproc = new BasicHttpProcessor();
+        httpproc.addInterceptor(new ResponseDate());
+        httpproc.addInterceptor(new ResponseServer());
+        httpproc.addInterceptor(new ResponseContent());
+        httpproc.addInterceptor(new ResponseConnControl());
+
+        HttpRequestHandlerRegistry registry = new HttpRequestHandlerRegistry();
+        registry.register("*", this);
+        m_service = new HttpService(httpproc, new DefaultConnectionReuseStrategy(),
+                                    new DefaultHttpResponseFactory(), registry, m_params);
+    }
+
+    private static int[] syntheticSizes(int objects, int minSize, int maxSize) {
+        Random random = new Random(objects);
+        int[] sizes = new int[objects];
+        double ratio = (double) Math.max(maxSize, 1) / Math.max(minSize, 1);
+        for (int i = 0; i < objects; i++)
+            sizes[i] = (int) Math.round(Math.max(minSize, 1) * Math.pow(ratio, random.nextDouble()));
+        return sizes;
+    }
+
+    /**
+     * Starts listening on the loopback interface. Returns immediately.
+     * @param port
+     * @throws IOException
+     */
+    public void start(int port) throws IOException {
+        m_socket = new ServerSocket(port, 1024, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "load-origin");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return m_socket.getLocalPort();
+    }
+
+    /**
+     * @param id
+     * @return size of the body of object id
+     */
+    public int getSize(int id) {
+        return m_sizes[id];
+    }
+
+    /**
+     * @return number of requests answered, 304s included
+     */
+    public long getRequestCount() {
+        return m_requests.get();
+    }
+
+    public long getNotModifiedCount() {
+        return m_notModified.get();
+    }
+
+    /**
+     * @return bytes of bodies sent
+     */
+    public long getBytesSent() {
+        return m_bytes.get();
+    }
+
+    @Override
+    public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+        throws HttpException, IOException
+    {
+        m_requests.incrementAndGet();
+        delay();
+
+        int id = parseId(request.getRequestLine().getUri());
+        if (id < 0) {
+            response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+            return;
+        }
+
+        Header contentType = null;
+        for (Header h : m_headers[id]) {
+            if (h.getName().equalsIgnoreCase("Content-Type"))
+                contentType = h;
+            else
+                response.addHeader(h);
+        }
+
+        if (m_statuses[id] == HttpStatus.SC_OK
+            && (matches(request.getFirstHeader("If-None-Match"), response.getFirstHeader("ETag"))
+                || matches(request.getFirstHeader("If-Modified-Since"), response.getFirstHeader("Last-Modified")))) {
+            m_notModified.incrementAndGet();
+            response.setStatusCode(HttpStatus.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setStatusCode(m_statuses[id]);
+        if (m_statuses[id] == HttpStatus.SC_NO_CONTENT || m_statuses[id] == HttpStatus.SC_NOT_MODIFIED)
+            return;
+
+        SliceEntity body = new SliceEntity(m_content, m_sizes[id]);
+        body.setContentType(contentType);
+        response.setEntity(body);
+        m_bytes.addAndGet(m_sizes[id]);
+    }
+
+    private void delay() {
+        long millis = m_latencyMillis;
+        if (m_jitterMillis > 0)
+            millis += (long) (Math.random() * m_jitterMillis);
+        if (millis <= 0)
+            return;
+
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int parseId(String uri) {
+        int start = uri.indexOf(PATH_PREFIX);
+        if (start < 0)
+            return -1;
+
+        start += PATH_PREFIX.length();
+        int end = start;
+        while (end < uri.length() && Character.isDigit(uri.charAt(end)))
+            ++end;
+
+        try {
+            int id = Integer.parseInt(uri.substring(start, end));
+            return id < m_sizes.length ? id : -1;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean matches(Header condition, Header validator) {
+        return condition != null && validator != null
+               && condition.getValue().trim().equals(validator.getValue().trim());
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            final Socket sock;
+            try {
+                sock = m_socket.accept();
+            }
+            catch (IOException e) {
+                System.err.println("[!] Origin stopped accepting: " + e.getMessage());
+                return;
+            }
+
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(sock);
+                }
+            }, "load-origin-conn");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void serve(Socket sock) {
+        DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
+        try {
+            conn.bind(sock, m_params);
+            HttpContext context = new BasicHttpContext(null);
+            while (conn.isOpen())
+                m_service.handleRequest(conn, context);
+        }
+        catch (ConnectionClosedException ignore) {
+        }
+        catch (IOException ignore) {
+        }
+        catch (HttpException e) {
+            System.err.println("[!] Origin got a bad request: " + e.getMessage());
+        }
+        finally {
+            try {
+                conn.shutdown();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * The first len bytes of a shared array, written out without copying.
+     */
+    private static class SliceEntity extends AbstractHttpEntity {
+        private final byte[] m_content;
+        private final int    m_len;
+
+        SliceEntity(byte[] content, int len) {
+            m_content = content;
+            m_len = len;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return m_len;
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(m_content, 0, m_len);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(m_content, 0, m_len);
+            out.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
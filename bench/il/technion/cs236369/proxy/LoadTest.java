@@ -0,0 +1,159 @@
+package il.technion.cs236369.proxy;
+
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Drives an HttpProxy with a memory-only cache at a fixed request rate,
+ * against a LoadOrigin on the loopback interface, and reports throughput,
+ * latency percentiles, hit ratios and the proxy's allocation rate.
+ *
+ * Request i is due at start + i/rate whether or not earlier requests were
+ * answered (see LoadClient), and the urls follow a Zipf popularity
+ * distribution.
+ *
+ * Options are given as key=value arguments (see DEFAULTS); arguments
+ * starting with "httproxy." are passed on to the proxy's configuration:
+ *
+ *   java -cp "bench-out:lib/*" il.technion.cs236369.proxy.LoadTest rate=800 zipf=1.0 \
+ *       httproxy.cache.admission=second-hit
+ *
+ * The allocation rate is that of the proxy's accept thread and its
+ * proxy-worker-N threads, which do all of the per-request work.
+ */
+public class LoadTest {
+
+    private static final String[][] DEFAULTS = {
+        { "rate",           "500" },            // requests per second
+        { "duration",       "30" },             // seconds measured
+        { "warmup",         "10" },             // seconds of load before measuring
+        { "threads",        "32" },             // requests in flight at most
+        { "objects",        "10000" },          // distinct urls
+        { "zipf",           "0.9" },            // popularity skew, 0 for uniform
+        { "size.min",       "512" },            // smallest object, bytes
+        { "size.max",       "65535" },          // largest object, bytes
+        { "latency",        "5" },              // origin delay, milliseconds
+        { "jitter",         "0" },              // added to the origin delay at random, milliseconds
+        { "cache.control",  "max-age=60" },     // Cache-Control of cacheable objects
+        { "uncacheable",    "5" },              // percentage of objects sent with no-store
+        { "proxy.port",     "18180" },
+        { "origin.port",    "18181" },
+        { "timeout",        "10000" },          // client socket timeout, milliseconds
+    };
+
+    private final Properties    m_options;
+    private final LoadOrigin    m_origin;
+    private final ZipfGenerator m_popularity;
+    private final int           m_proxyPort;
+    private final LoadClient    m_client;
+
+    private AtomicLong m_errors;
+    private AtomicLong m_bodyBytes;
+
+    private LoadTest(Properties options) {
+        m_options = options;
+        m_origin = new LoadOrigin(getInt("objects"), getInt("size.min"), getInt("size.max"),
+                                  getInt("latency"), getInt("jitter"),
+                                  options.getProperty("cache.control"), getInt("uncacheable"));
+        m_popularity = new ZipfGenerator(getInt("objects"), Double.parseDouble(options.getProperty("zipf")));
+        m_proxyPort = getInt("proxy.port");
+        m_client = new LoadClient(m_proxyPort, getInt("timeout"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest(Benchmarks.parseOptions("LoadTest", DEFAULTS, args)).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        m_origin.start(getInt("origin.port"));
+
+        Benchmarks.RunningProxy proxy = Benchmarks.startProxy(m_proxyPort, getInt("size.max"), m_options);
+        ProxyMetrics metrics = proxy.m_proxy.getMetrics();
+
+        System.out.println("Warming up for " + getInt("warmup") + "s");
+        drive(getInt("warmup"));
+
+        long hits = metrics.getHitCount();
+        long misses = metrics.getMissCount();
+        long originRequests = m_origin.getRequestCount();
+        long originNotModified = m_origin.getNotModifiedCount();
+        long originBytes = m_origin.getBytesSent();
+        long allocated = Benchmarks.allocatedBytes(proxy);
+        long start = System.nanoTime();
+
+        System.out.println("Measuring for " + getInt("duration") + "s");
+        long requests = drive(getInt("duration"));
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        hits = metrics.getHitCount() - hits;
+        misses = metrics.getMissCount() - misses;
+        originRequests = m_origin.getRequestCount() - originRequests;
+        originNotModified = m_origin.getNotModifiedCount() - originNotModified;
+        originBytes = m_origin.getBytesSent() - originBytes;
+        allocated = allocated >= 0 ? Benchmarks.allocatedBytes(proxy) - allocated : -1;
+
+        long errors = m_errors.get();
+        long answered = requests - errors;
+        System.out.println();
+        System.out.println(String.format(Locale.ENGLISH, "requests      %d (%d failed)", requests, errors));
+        System.out.println(String.format(Locale.ENGLISH, "throughput    %.1f req/s (offered %s req/s)",
+                                         answered / seconds, m_options.getProperty("rate")));
+        System.out.println("latency       " + Benchmarks.formatLatency(m_client.getLatency()));
+        System.out.println(String.format(Locale.ENGLISH, "hit ratio     %.1f%% (%d hits, %d misses)",
+                                         Benchmarks.percent(hits, hits + misses), hits, misses));
+        System.out.println(String.format(Locale.ENGLISH,
+                                         "origin        %d requests (%d answered 304), %.1f%% of bytes",
+                                         originRequests, originNotModified,
+                                         Benchmarks.percent(originBytes, m_bodyBytes.get())));
+        if (allocated >= 0) {
+            System.out.println(String.format(Locale.ENGLISH, "allocation    %.1f MB/s, %.1f KB/request",
+                                             allocated / seconds / (1024 * 1024),
+                                             answered > 0 ? allocated / 1024.0 / answered : 0));
+        }
+        else {
+            System.out.println("allocation    not supported by this JVM");
+        }
+    }
+
+    /**
+     * Sends requests at the configured rate for a while and waits for them.
+     * @param seconds
+     * @return number of requests sent
+     */
+    private long drive(int seconds) throws InterruptedException {
+        m_errors = new AtomicLong();
+        m_bodyBytes = new AtomicLong();
+
+        final long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(getInt("rate"), 1);
+        final long count = TimeUnit.SECONDS.toNanos(seconds) / interval;
+        final String urlPrefix = "GET http://127.0.0.1:" + m_origin.getPort() + "/obj/";
+        final String headerSuffix = " HTTP/1.1\r\nHost: 127.0.0.1:" + m_origin.getPort() +
+                                    "\r\nConnection: close\r\n\r\n";
+
+        m_client.drive(getInt("threads"), count, new LoadClient.Workload() {
+            @Override
+            public long dueNanos(long i) {
+                return i * interval;
+            }
+
+            @Override
+            public void send(LoadClient client, long i, long due, Random random, byte[] buf) {
+                int id = m_popularity.next(random);
+                if (client.exchange(urlPrefix + id + headerSuffix, 0, due, buf) == 200)
+                    m_bodyBytes.addAndGet(m_origin.getSize(id));
+                else
+                    m_errors.incrementAndGet();
+            }
+        });
+        return count;
+    }
+
+    private int getInt(String key) {
+        return Integer.parseInt(m_options.getProperty(key).trim());
+    }
+}
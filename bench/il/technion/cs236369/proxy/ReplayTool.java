@@ -0,0 +1,212 @@
+package il.technion.cs236369.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+
+/**
+ * Re-drives a proxy with the requests of a traffic capture (see
+ * TrafficCapture, enabled by httproxy.capture.file), against a LoadOrigin
+ * that answers every captured url with its captured status, body size and
+ * caching headers. The requests keep their method and key headers, and are
+ * sent at their captured times, scaled by a speed factor, or as fast as the
+ * threads allow (speed=0). The report compares the replayed hit ratio with
+ * the captured one:
+ *
+ *   java -cp "bench-out:lib/*" il.technion.cs236369.proxy.ReplayTool log=capture.bin speed=2 \
+ *       httproxy.cache.admission=second-hit
+ *
+ * The whole log is loaded in memory first. Tunnels (CONNECT) are skipped.
+ */
+public class ReplayTool {
+
+    private static final String[][] DEFAULTS = {
+        { "log",            "" },               // the traffic capture
+        { "speed",          "1" },              // 1 for the captured pace, 2 for twice as fast, 0 for maximum
+        { "threads",        "64" },             // requests in flight at most
+        { "latency",        "0" },              // origin delay, milliseconds
+        { "jitter",         "0" },              // added to the origin delay at random, milliseconds
+        { "proxy.port",     "18180" },
+        { "origin.port",    "18181" },
+        { "timeout",        "10000" },          // client socket timeout, milliseconds
+    };
+
+    /** headers the replay sets itself */
+    private static final String[] REPLACED_HEADERS = { "Host", "Content-Length", "Connection" };
+
+    private final Properties                   m_options;
+    private final List<TrafficCapture.Record>  m_records;
+    private final Map<String, Integer>         m_ids = new HashMap<String, Integer>();
+    private final LoadOrigin                   m_origin;
+    private final LoadClient                   m_client;
+
+    private ReplayTool(Properties options, List<TrafficCapture.Record> records) {
+        m_options = options;
+        m_records = records;
+
+        // Every url gets an object of the origin, answered like its last full response
+        List<TrafficCapture.Record> objects = new ArrayList<TrafficCapture.Record>();
+        for (TrafficCapture.Record r : records) {
+            Integer id = m_ids.get(r.m_uri);
+            if (id == null) {
+                m_ids.put(r.m_uri, objects.size());
+                objects.add(r);
+            }
+            else if (r.m_status != HttpStatus.SC_NOT_MODIFIED && r.m_status > 0) {
+                objects.set(id, r);
+            }
+        }
+
+        int[] statuses = new int[objects.size()];
+        int[] sizes = new int[objects.size()];
+        Header[][] headers = new Header[objects.size()][];
+        for (int i = 0; i < statuses.length; i++) {
+            TrafficCapture.Record r = objects.get(i);
+            statuses[i] = r.m_status > 0 && r.m_status != HttpStatus.SC_NOT_MODIFIED ? r.m_status : HttpStatus.SC_OK;
+            sizes[i] = (int) Math.min(r.m_responseBytes, Integer.MAX_VALUE);
+            headers[i] = r.m_responseHeaders;
+        }
+        m_origin = new LoadOrigin(statuses, sizes, headers, getInt("latency"), getInt("jitter"));
+        m_client = new LoadClient(getInt("proxy.port"), getInt("timeout"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties options = Benchmarks.parseOptions("ReplayTool", DEFAULTS, args);
+        if (options.getProperty("log").length() == 0) {
+            System.err.println("Usage: ReplayTool log=<capture file> [key=value]...");
+            System.exit(1);
+        }
+
+        List<TrafficCapture.Record> records = new ArrayList<TrafficCapture.Record>();
+        for (TrafficCapture.Record r : TrafficCapture.Reader.readAll(options.getProperty("log"))) {
+            if (!r.m_method.equalsIgnoreCase("CONNECT"))
+                records.add(r);
+        }
+        Collections.sort(records, new Comparator<TrafficCapture.Record>() {
+            @Override
+            public int compare(TrafficCapture.Record a, TrafficCapture.Record b) {
+                return a.m_arrivalMicros < b.m_arrivalMicros ? -1 : a.m_arrivalMicros > b.m_arrivalMicros ? 1 : 0;
+            }
+        });
+
+        new ReplayTool(options, records).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        if (m_records.isEmpty()) {
+            System.out.println("Nothing to replay");
+            return;
+        }
+
+        int maxSize = 0;
+        for (TrafficCapture.Record r : m_records)
+            maxSize = (int) Math.max(maxSize, Math.min(r.m_responseBytes, Integer.MAX_VALUE));
+
+        m_origin.start(getInt("origin.port"));
+        Benchmarks.RunningProxy proxy = Benchmarks.startProxy(getInt("proxy.port"), maxSize, m_options);
+        ProxyMetrics metrics = proxy.m_proxy.getMetrics();
+
+        final double speed = Double.parseDouble(m_options.getProperty("speed"));
+        final long first = m_records.get(0).m_arrivalMicros;
+        final String origin = "127.0.0.1:" + m_origin.getPort();
+        final AtomicLong statusChanges = new AtomicLong();
+
+        long span = m_records.get(m_records.size() - 1).m_arrivalMicros - first;
+        System.out.println(String.format(Locale.ENGLISH, "Replaying %d requests for %d urls, captured over %.1fs",
+                                         m_records.size(), m_ids.size(), span / 1e6));
+
+        long allocated = Benchmarks.allocatedBytes(proxy);
+        long start = System.nanoTime();
+        m_client.drive(getInt("threads"), m_records.size(), new LoadClient.Workload() {
+            @Override
+            public long dueNanos(long i) {
+                if (speed <= 0)
+                    return -1;
+                return (long) ((m_records.get((int) i).m_arrivalMicros - first) * 1000 / speed);
+            }
+
+            @Override
+            public void send(LoadClient client, long i, long due, Random random, byte[] buf) {
+                TrafficCapture.Record r = m_records.get((int) i);
+                int status = client.exchange(requestHead(r, origin), r.m_requestBytes, due, buf);
+                if (status > 0 && r.m_status > 0 && status != r.m_status)
+                    statusChanges.incrementAndGet();
+            }
+        });
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        allocated = allocated >= 0 ? Benchmarks.allocatedBytes(proxy) - allocated : -1;
+        long hits = metrics.getHitCount();
+        long misses = metrics.getMissCount();
+        long capturedHits = 0;
+        long capturedMisses = 0;
+        for (TrafficCapture.Record r : m_records) {
+            if (AccessLog.MISS.equals(r.m_cacheStatus))
+                ++capturedMisses;
+            else if (r.m_cacheStatus != null)
+                ++capturedHits;
+        }
+
+        long failures = m_client.getFailureCount();
+        long answered = m_records.size() - failures;
+        System.out.println();
+        System.out.println(String.format(Locale.ENGLISH, "requests      %d (%d failed, %d with another status)",
+                                         m_records.size(), failures, statusChanges.get()));
+        System.out.println(String.format(Locale.ENGLISH, "throughput    %.1f req/s in %.1fs",
+                                         answered / seconds, seconds));
+        System.out.println("latency       " + Benchmarks.formatLatency(m_client.getLatency()));
+        System.out.println(String.format(Locale.ENGLISH, "hit ratio     %.1f%% (captured %.1f%%)",
+                                         Benchmarks.percent(hits, hits + misses),
+                                         Benchmarks.percent(capturedHits, capturedHits + capturedMisses)));
+        System.out.println(String.format(Locale.ENGLISH, "origin        %d requests (%d answered 304)",
+                                         m_origin.getRequestCount(), m_origin.getNotModifiedCount()));
+        if (allocated >= 0) {
+            System.out.println(String.format(Locale.ENGLISH, "allocation    %.1f MB/s, %.1f KB/request",
+                                             allocated / seconds / (1024 * 1024),
+                                             answered > 0 ? allocated / 1024.0 / answered : 0));
+        }
+    }
+
+    /**
+     * @param r
+     * @param origin host:port of the stand-in origin
+     * @return the captured request, aimed at the object of its url on the stand-in origin
+     */
+    private String requestHead(TrafficCapture.Record r, String origin) {
+        StringBuilder head = new StringBuilder(256);
+        head.append(r.m_method).append(" http://").append(origin).append("/obj/").append(m_ids.get(r.m_uri))
+            .append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(origin).append("\r\n");
+        for (Header h : r.m_requestHeaders) {
+            if (!isReplaced(h.getName()))
+                head.append(h.getName()).append(": ").append(h.getValue()).append("\r\n");
+        }
+        if (r.m_requestBytes > 0)
+            head.append("Content-Length: ").append(r.m_requestBytes).append("\r\n");
+        head.append("Connection: close\r\n\r\n");
+        return head.toString();
+    }
+
+    private static boolean isReplaced(String name) {
+        for (String replaced : REPLACED_HEADERS) {
+            if (replaced.equalsIgnoreCase(name))
+                return true;
+        }
+        return false;
+    }
+
+    private int getInt(String key) {
+        return Integer.parseInt(m_options.getProperty(key).trim());
+    }
+}
@@ -0,0 +1,101 @@
+package il.technion.cs236369.proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The two ways a response body reaches the client: streamed from the
+ * target through ProxyRequestHandler.copyResponse, keeping a copy for the
+ * cache, and served from a cached body by setResponseEntity. Both write the
+ * body out to a sink that discards it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBodyBenchmark {
+
+    private static class DiscardingOutputStream extends OutputStream {
+        long m_count;
+
+        @Override
+        public void write(int b) {
+            ++m_count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            m_count += len;
+        }
+    }
+
+    @Param({ "1024", "16384", "65536" })
+    public int m_bodySize;
+
+    private ProxyRequestHandler m_handler;
+    private byte[]              m_body;
+    private BasicHeader         m_contentType;
+
+    @Setup
+    public void setUp() {
+        ProxyCache cache = Benchmarks.newMemoryCache(0);
+        cache.setMaxObjectSize(1024 * 1024);
+        m_handler = Benchmarks.newHandler(cache);
+        m_body = new byte[m_bodySize];
+        new Random(42).nextBytes(m_body);
+        m_contentType = new BasicHeader("Content-Type", "application/octet-stream");
+    }
+
+    @Benchmark
+    public long copyResponse() throws IOException {
+        HttpResponse from = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        from.addHeader("Content-Type", "application/octet-stream");
+        from.addHeader("Last-Modified", "Tue, 15 Oct 2024 08:12:40 GMT");
+        from.addHeader("Connection", "keep-alive");
+        from.addHeader("Keep-Alive", "timeout=5");
+        from.setEntity(new ByteArrayEntity(m_body));
+
+        HttpResponse to = new BasicHttpResponse(HttpVersion.HTTP_1_1, 500, "Error");
+        CachingEntity body = m_handler.copyResponse(from, to);
+        body.captureBody(new CachingEntity.BodyListener() {
+            @Override
+            public void bodyComplete(byte[] captured) {
+            }
+        });
+
+        DiscardingOutputStream out = new DiscardingOutputStream();
+        to.getEntity().writeTo(out);
+        return out.m_count;
+    }
+
+    @Benchmark
+    public long setResponseEntity() throws IOException {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        m_handler.setResponseEntity(response, m_body, m_contentType);
+
+        DiscardingOutputStream out = new DiscardingOutputStream();
+        response.getEntity().writeTo(out);
+        return out.m_count;
+    }
+}
@@ -0,0 +1,125 @@
+package il.technion.cs236369.proxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Adaptive replacement cache (Megiddo and Modha), weighted by size: T1
+ * holds the entries seen once recently, T2 those seen at least twice, and
+ * the ghost lists B1 and B2 remember the keys recently evicted from each.
+ * A miss that hits a ghost list moves the target size of T1 (in bytes)
+ * towards the list that would have kept the entry.
+ */
+public class SimulatedArc extends SimulatedCache {
+
+    private final LinkedHashMap<String, Long> m_t1 = new LinkedHashMap<String, Long>();
+    private final LinkedHashMap<String, Long> m_t2 = new LinkedHashMap<String, Long>();
+    private final LinkedHashMap<String, Long> m_b1 = new LinkedHashMap<String, Long>();
+    private final LinkedHashMap<String, Long> m_b2 = new LinkedHashMap<String, Long>();
+    private long m_t1Bytes;
+    private long m_t2Bytes;
+    private long m_b1Bytes;
+    private long m_b2Bytes;
+    private long m_target;
+
+    public SimulatedArc(long capacity) {
+        super(capacity);
+    }
+
+    @Override
+    public boolean get(String key) {
+        Long size = m_t1.remove(key);
+        if (size != null) {
+            m_t1Bytes -= size;
+        }
+        else {
+            size = m_t2.remove(key);
+            if (size == null)
+                return false;
+            m_t2Bytes -= size;
+        }
+
+        m_t2.put(key, size);
+        m_t2Bytes += size;
+        return true;
+    }
+
+    @Override
+    public void put(String key, long size) {
+        if (size > m_capacity)
+            return;
+
+        Long ghost = m_b1.remove(key);
+        if (ghost != null) {
+            m_b1Bytes -= ghost;
+            m_target = Math.min(m_capacity, m_target + Math.max(size, size * m_b2Bytes / Math.max(m_b1Bytes, 1)));
+            makeRoom(size, false);
+            m_t2.put(key, size);
+            m_t2Bytes += size;
+            return;
+        }
+
+        ghost = m_b2.remove(key);
+        if (ghost != null) {
+            m_b2Bytes -= ghost;
+            m_target = Math.max(0, m_target - Math.max(size, size * m_b1Bytes / Math.max(m_b2Bytes, 1)));
+            makeRoom(size, true);
+            m_t2.put(key, size);
+            m_t2Bytes += size;
+            return;
+        }
+
+        // a new key: keep T1 + B1 and the whole directory within bounds
+        while (m_t1Bytes + m_b1Bytes + size > m_capacity && !m_b1.isEmpty())
+            m_b1Bytes -= removeOldest(m_b1);
+        while (m_t1Bytes + size > m_capacity && !m_t1.isEmpty())
+            m_t1Bytes -= removeOldest(m_t1);
+        while (m_t1Bytes + m_t2Bytes + m_b1Bytes + m_b2Bytes + size > 2 * m_capacity && !m_b2.isEmpty())
+            m_b2Bytes -= removeOldest(m_b2);
+
+        makeRoom(size, false);
+        m_t1.put(key, size);
+        m_t1Bytes += size;
+    }
+
+    /**
+     * Evicts entries into the ghost lists until size more bytes fit.
+     * @param size
+     * @param inB2 whether the key being stored was found in B2
+     */
+    private void makeRoom(long size, boolean inB2) {
+        while (m_t1Bytes + m_t2Bytes + size > m_capacity) {
+            boolean fromT1 = !m_t1.isEmpty()
+                             && (m_t1Bytes > m_target || (inB2 && m_t1Bytes == m_target) || m_t2.isEmpty());
+            if (fromT1) {
+                Map.Entry<String, Long> e = oldest(m_t1);
+                m_t1Bytes -= removeOldest(m_t1);
+                m_b1.put(e.getKey(), e.getValue());
+                m_b1Bytes += e.getValue();
+            }
+            else {
+                Map.Entry<String, Long> e = oldest(m_t2);
+                m_t2Bytes -= removeOldest(m_t2);
+                m_b2.put(e.getKey(), e.getValue());
+                m_b2Bytes += e.getValue();
+            }
+        }
+        m_used = m_t1Bytes + m_t2Bytes + size;
+    }
+
+    private static Map.Entry<String, Long> oldest(LinkedHashMap<String, Long> list) {
+        return list.entrySet().iterator().next();
+    }
+
+    /**
+     * @param list
+     * @return size of the removed entry
+     */
+    private static long removeOldest(LinkedHashMap<String, Long> list) {
+        Iterator<Long> it = list.values().iterator();
+        long size = it.next();
+        it.remove();
+        return size;
+    }
+}
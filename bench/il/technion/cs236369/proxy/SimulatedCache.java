@@ -0,0 +1,37 @@
+package il.technion.cs236369.proxy;
+
+/**
+ * A cache policy as seen by HitRatioSimulator: keys with sizes, bounded by
+ * the total size in bytes. Only keeps the keys, never the bodies.
+ */
+public abstract class SimulatedCache {
+
+    protected final long m_capacity;
+    protected long       m_used;
+
+    /**
+     * @param capacity bytes the cache may hold
+     */
+    protected SimulatedCache(long capacity) {
+        m_capacity = capacity;
+    }
+
+    /**
+     * Looks key up, counting the access.
+     * @param key
+     * @return true on a hit
+     */
+    public abstract boolean get(String key);
+
+    /**
+     * Stores key after a miss, evicting entries to make room. Objects larger
+     * than the whole cache aren't stored.
+     * @param key
+     * @param size
+     */
+    public abstract void put(String key, long size);
+
+    public long getCapacity() {
+        return m_capacity;
+    }
+}
@@ -0,0 +1,69 @@
+package il.technion.cs236369.proxy;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Least frequently used eviction, counting the accesses of the cached
+ * entries only (in-cache LFU); ties go to the least recently used entry.
+ */
+public class SimulatedLfu extends SimulatedCache {
+
+    private static class Entry implements Comparable<Entry> {
+        final String m_key;
+        final long   m_size;
+        long         m_count;
+        long         m_tick;
+
+        Entry(String key, long size, long tick) {
+            m_key = key;
+            m_size = size;
+            m_count = 1;
+            m_tick = tick;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            if (m_count != o.m_count)
+                return m_count < o.m_count ? -1 : 1;
+            return m_tick < o.m_tick ? -1 : m_tick > o.m_tick ? 1 : 0;
+        }
+    }
+
+    private final HashMap<String, Entry> m_entries = new HashMap<String, Entry>();
+    private final TreeSet<Entry>         m_order = new TreeSet<Entry>();
+    private long                         m_clock;
+
+    public SimulatedLfu(long capacity) {
+        super(capacity);
+    }
+
+    @Override
+    public boolean get(String key) {
+        Entry e = m_entries.get(key);
+        if (e == null)
+            return false;
+
+        m_order.remove(e);
+        ++e.m_count;
+        e.m_tick = ++m_clock;
+        m_order.add(e);
+        return true;
+    }
+
+    @Override
+    public void put(String key, long size) {
+        if (size > m_capacity)
+            return;
+
+        while (m_used + size > m_capacity) {
+            Entry victim = m_order.pollFirst();
+            m_entries.remove(victim.m_key);
+            m_used -= victim.m_size;
+        }
+        Entry e = new Entry(key, size, ++m_clock);
+        m_entries.put(key, e);
+        m_order.add(e);
+        m_used += size;
+    }
+}
@@ -0,0 +1,35 @@
+package il.technion.cs236369.proxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used eviction.
+ */
+public class SimulatedLru extends SimulatedCache {
+
+    private final LinkedHashMap<String, Long> m_entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    public SimulatedLru(long capacity) {
+        super(capacity);
+    }
+
+    @Override
+    public boolean get(String key) {
+        return m_entries.get(key) != null;
+    }
+
+    @Override
+    public void put(String key, long size) {
+        if (size > m_capacity)
+            return;
+
+        Iterator<Long> it = m_entries.values().iterator();
+        while (m_used + size > m_capacity) {
+            m_used -= it.next();
+            it.remove();
+        }
+        m_entries.put(key, size);
+        m_used += size;
+    }
+}
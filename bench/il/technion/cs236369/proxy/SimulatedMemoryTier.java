@@ -0,0 +1,33 @@
+package il.technion.cs236369.proxy;
+
+import org.apache.http.Header;
+
+/**
+ * The proxy's own memory tier (MemoryCache), fed with bodies of the right
+ * size, so the simulation includes the url and header overhead it charges.
+ */
+public class SimulatedMemoryTier extends SimulatedCache {
+
+    private static final Header[] NO_HEADERS = new Header[0];
+
+    private final MemoryCache m_memory;
+
+    public SimulatedMemoryTier(long capacity) {
+        super(capacity);
+        m_memory = new MemoryCache(capacity);
+    }
+
+    @Override
+    public boolean get(String key) {
+        return m_memory.get(key) != null;
+    }
+
+    @Override
+    public void put(String key, long size) {
+        if (size > m_capacity)
+            return;
+
+        m_memory.put(key, new ProxyCache.CachedItem(key, NO_HEADERS, new byte[(int) size]));
+        m_used = m_memory.getBytes();
+    }
+}
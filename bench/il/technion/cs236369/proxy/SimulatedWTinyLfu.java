@@ -0,0 +1,107 @@
+package il.technion.cs236369.proxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU: new entries go to a small LRU window (1% of the bytes); an
+ * entry evicted from the window enters the main cache only if its
+ * estimated frequency beats that of the main cache's victim. The main
+ * cache is a segmented LRU whose protected segment (80%) holds the entries
+ * hit again while in probation. Frequencies come from the count-min sketch
+ * of TinyLfuAdmissionPolicy, which sees every access.
+ */
+public class SimulatedWTinyLfu extends SimulatedCache {
+
+    private final LinkedHashMap<String, Long> m_window    = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> m_probation = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> m_protected = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final TinyLfuAdmissionPolicy      m_sketch;
+    private final long                        m_windowCapacity;
+    private final long                        m_protectedCapacity;
+    private long                              m_windowBytes;
+    private long                              m_probationBytes;
+    private long                              m_protectedBytes;
+
+    /**
+     * @param capacity
+     * @param keys number of distinct keys the sketch should tell apart
+     */
+    public SimulatedWTinyLfu(long capacity, int keys) {
+        super(capacity);
+        m_sketch = new TinyLfuAdmissionPolicy(keys);
+        m_windowCapacity = Math.max(capacity / 100, 1);
+        m_protectedCapacity = (capacity - m_windowCapacity) * 8 / 10;
+    }
+
+    @Override
+    public boolean get(String key) {
+        m_sketch.increment(key);
+
+        if (m_window.get(key) != null || m_protected.get(key) != null)
+            return true;
+
+        Long size = m_probation.remove(key);
+        if (size == null)
+            return false;
+
+        // promote, demoting the protected segment's LRU entries to probation
+        m_probationBytes -= size;
+        m_protected.put(key, size);
+        m_protectedBytes += size;
+        Iterator<Map.Entry<String, Long>> it = m_protected.entrySet().iterator();
+        while (m_protectedBytes > m_protectedCapacity && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if (e.getKey().equals(key))
+                break;
+            it.remove();
+            m_protectedBytes -= e.getValue();
+            m_probation.put(e.getKey(), e.getValue());
+            m_probationBytes += e.getValue();
+        }
+        return true;
+    }
+
+    @Override
+    public void put(String key, long size) {
+        if (size > m_capacity)
+            return;
+
+        m_window.put(key, size);
+        m_windowBytes += size;
+        Iterator<Map.Entry<String, Long>> it = m_window.entrySet().iterator();
+        while (m_windowBytes > m_windowCapacity && it.hasNext()) {
+            Map.Entry<String, Long> candidate = it.next();
+            it.remove();
+            m_windowBytes -= candidate.getValue();
+            admit(candidate.getKey(), candidate.getValue());
+        }
+        m_used = m_windowBytes + m_probationBytes + m_protectedBytes;
+    }
+
+    /**
+     * Offers an entry evicted from the window to the main cache.
+     */
+    private void admit(String key, long size) {
+        long mainCapacity = m_capacity - m_windowCapacity;
+        if (size > mainCapacity)
+            return;
+
+        int frequency = m_sketch.frequency(key);
+        while (m_probationBytes + m_protectedBytes + size > mainCapacity) {
+            LinkedHashMap<String, Long> segment = m_probation.isEmpty() ? m_protected : m_probation;
+            Map.Entry<String, Long> victim = segment.entrySet().iterator().next();
+            if (m_sketch.frequency(victim.getKey()) >= frequency)
+                return;
+
+            segment.remove(victim.getKey());
+            if (segment == m_probation)
+                m_probationBytes -= victim.getValue();
+            else
+                m_protectedBytes -= victim.getValue();
+        }
+        m_probation.put(key, size);
+        m_probationBytes += size;
+    }
+}
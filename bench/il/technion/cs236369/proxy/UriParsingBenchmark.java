@@ -0,0 +1,57 @@
+package il.technion.cs236369.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Extraction of the target host and port from a request url
+ * (ProxyRequestHandler.getHost/getPort), done several times per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UriParsingBenchmark {
+
+    @Param({ "http://www.example.com/",
+             "http://static.example.com:8080/assets/js/app.min.js?v=20241015",
+             "http://example.com/search?q=a%20b&page=2#results" })
+    public String m_url;
+
+    private ProxyRequestHandler m_handler;
+
+    @Setup
+    public void setUp() {
+        m_handler = Benchmarks.newHandler(Benchmarks.newMemoryCache(0));
+    }
+
+    @Benchmark
+    public String getHost() {
+        return m_handler.getHost(m_url);
+    }
+
+    @Benchmark
+    public int getPort() {
+        return m_handler.getPort(m_url);
+    }
+
+    @Benchmark
+    public void hostAndPort(Blackhole bh) {
+        bh.consume(m_handler.getHost(m_url));
+        bh.consume(m_handler.getPort(m_url));
+    }
+}
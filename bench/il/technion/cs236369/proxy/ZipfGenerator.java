@@ -0,0 +1,41 @@
+package il.technion.cs236369.proxy;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws ranks 0..n-1 with probability proportional to 1/(rank+1)^exponent,
+ * the popularity distribution of web objects (rank 0 is the most popular).
+ * An exponent of 0 draws uniformly. Thread safe; each thread brings its
+ * own Random.
+ */
+public class ZipfGenerator {
+
+    private final double[] m_cdf;
+
+    /**
+     * @param n number of ranks
+     * @param exponent skew of the distribution, usually between 0.6 and 1.2
+     */
+    public ZipfGenerator(int n, double exponent) {
+        m_cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            m_cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++)
+            m_cdf[i] /= sum;
+    }
+
+    /**
+     * @param random
+     * @return the next rank
+     */
+    public int next(Random random) {
+        int i = Arrays.binarySearch(m_cdf, random.nextDouble());
+        if (i < 0)
+            i = -i - 1;
+        return Math.min(i, m_cdf.length - 1);
+    }
+}
@@ -0,0 +1,234 @@
+package il.technion.cs236369.proxy;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * One line per handled request, e.g.
+ *
+ *   1729334400.123 10.0.0.7 "GET http://host/a" 200 312 5120 1830us REVALIDATED
+ *
+ * (time, client, request line, status, bytes from and to the client,
+ * handling time, cache outcome). Requests only fill a preallocated slot of
+ * a ring buffer; a background thread formats and writes the lines. When
+ * the writer falls behind by a whole ring, records are dropped and counted
+ * rather than slowing requests down.
+ *
+ * The debug switch turns on the verbose per-request log (header dumps and
+ * the handling steps) that is otherwise skipped.
+ */
+public class AccessLog {
+    /** answered from the cache without asking the target */
+    public static final String HIT          = "HIT";
+    /** a cached error response or failed resolution */
+    public static final String NEGATIVE_HIT = "NEGATIVE_HIT";
+    /** answered from the cache of a peer node */
+    public static final String PEER_HIT     = "PEER_HIT";
+    /** answered from the cache after the target replied 304 */
+    public static final String REVALIDATED  = "REVALIDATED";
+    /** answered from the cache because the target couldn't be asked */
+    public static final String STALE        = "STALE";
+    /** cacheable, but fetched from the target */
+    public static final String MISS         = "MISS";
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final class Slot {
+        volatile long m_published;
+        long          m_time;
+        InetAddress   m_client;
+        String        m_method;
+        String        m_uri;
+        int           m_status;
+        long          m_bytesIn;
+        long          m_bytesOut;
+        long          m_micros;
+        String        m_cache;
+    }
+
+    private final String     m_file;
+    private final boolean    m_debug;
+    private final Slot[]     m_slots;
+    private final int        m_mask;
+    private final AtomicLong m_head = new AtomicLong();
+    private volatile long    m_tail;
+    private volatile boolean m_sleeping;
+    private volatile Thread  m_writer;
+
+    private final AtomicLong m_written = new AtomicLong();
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    /**
+     * @param file file the lines are appended to, "-" for stdout, empty to disable
+     * @param bufferSize records that may wait for the writer, rounded up to a power of two
+     * @param debug whether the verbose per-request log is on
+     */
+    @Inject
+    AccessLog(@Named("httproxy.log.access.file") String file,
+              @Named("httproxy.log.access.buffer") int bufferSize,
+              @Named("httproxy.log.debug") boolean debug) {
+        m_file = file.trim();
+        m_debug = debug;
+
+        int capacity = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+        m_slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            m_slots[i] = new Slot();
+            m_slots[i].m_published = i - capacity;
+        }
+        m_mask = capacity - 1;
+    }
+
+    /**
+     * @return true if header dumps and the per-request steps should be logged
+     */
+    public boolean isDebug() {
+        return m_debug;
+    }
+
+    /**
+     * Opens the log and starts the writer, unless the log is disabled.
+     * Returns immediately.
+     * @throws IOException if the log file can't be opened
+     */
+    public synchronized void start() throws IOException {
+        if (m_writer != null || m_file.length() == 0)
+            return;
+
+        final Writer out = new BufferedWriter(new OutputStreamWriter(
+            m_file.equals("-") ? System.out : new FileOutputStream(m_file, true), "UTF-8"), 64 * 1024);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain(out);
+            }
+        }, "access-log");
+        writer.setDaemon(true);
+        m_writer = writer;
+        writer.start();
+    }
+
+    /**
+     * Queues the record of a handled request. Never blocks.
+     * @param client
+     * @param method
+     * @param uri
+     * @param status status sent to the client, 0 if none was
+     * @param bytesIn bytes received from the client
+     * @param bytesOut bytes sent to the client
+     * @param micros time from accepting the connection to the end of the response
+     * @param cache one of the cache outcomes of this class, null if the cache wasn't used
+     */
+    public void log(InetAddress client, String method, String uri, int status,
+                    long bytesIn, long bytesOut, long micros, String cache) {
+        Thread writer = m_writer;
+        if (writer == null)
+            return;
+
+        long seq;
+        do {
+            seq = m_head.get();
+            if (seq - m_tail >= m_slots.length) {
+                m_dropped.incrementAndGet();
+                return;
+            }
+        } while (!m_head.compareAndSet(seq, seq + 1));
+
+        Slot slot = m_slots[(int) seq & m_mask];
+        slot.m_time = System.currentTimeMillis();
+        slot.m_client = client;
+        slot.m_method = method;
+        slot.m_uri = uri;
+        slot.m_status = status;
+        slot.m_bytesIn = bytesIn;
+        slot.m_bytesOut = bytesOut;
+        slot.m_micros = micros;
+        slot.m_cache = cache;
+        slot.m_published = seq;
+
+        if (m_sleeping)
+            LockSupport.unpark(writer);
+    }
+
+    public long getWrittenCount() {
+        return m_written.get();
+    }
+
+    /**
+     * @return number of records dropped because the writer fell behind
+     */
+    public long getDroppedCount() {
+        return m_dropped.get();
+    }
+
+    private void drain(Writer out) {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            long next = m_tail;
+            Slot slot = m_slots[(int) next & m_mask];
+            if (slot.m_published != next) {
+                try {
+                    out.flush();
+                }
+                catch (IOException e) {
+                    System.err.println("[!] Failed to write the access log: " + e.getMessage());
+                }
+
+                m_sleeping = true;
+                if (slot.m_published != next)
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                m_sleeping = false;
+                continue;
+            }
+
+            line.setLength(0);
+            format(slot, line);
+            slot.m_client = null;
+            slot.m_method = null;
+            slot.m_uri = null;
+            slot.m_cache = null;
+            m_tail = next + 1;
+
+            try {
+                out.append(line);
+                m_written.incrementAndGet();
+            }
+            catch (IOException e) {
+                System.err.println("[!] Failed to write the access log: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void format(Slot slot, StringBuilder line) {
+        line.append(slot.m_time / 1000).append('.');
+        long millis = slot.m_time % 1000;
+        if (millis < 100)
+            line.append('0');
+        if (millis < 10)
+            line.append('0');
+        line.append(millis).append(' ');
+
+        line.append(slot.m_client != null ? slot.m_client.getHostAddress() : "-").append(' ');
+        line.append('"').append(slot.m_method).append(' ').append(slot.m_uri).append("\" ");
+        if (slot.m_status > 0)
+            line.append(slot.m_status);
+        else
+            line.append('-');
+        line.append(' ').append(slot.m_bytesIn);
+        line.append(' ').append(slot.m_bytesOut);
+        line.append(' ').append(slot.m_micros).append("us ");
+        line.append(slot.m_cache != null ? slot.m_cache : "-");
+        line.append('\n');
+    }
+}
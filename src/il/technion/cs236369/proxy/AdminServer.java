@@ -0,0 +1,487 @@
+package il.technion.cs236369.proxy;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.net.ServerSocketFactory;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Admin listener of a running proxy, on its own port (by default bound to
+ * the loopback interface only):
+ *
+ *   GET  /metrics              metrics in the Prometheus text format
+ *   GET  /connections          client connections and open tunnels
+ *   GET  /slow                 timelines of the latest slow requests
+ *   POST /purge?url=&lt;url&gt;      removes the cache entry of url
+ *   POST /purge?prefix=&lt;p&gt;     removes the entries of all urls starting with p
+ *   POST /purge?host=&lt;host&gt;    removes the entries of all urls of host
+ *
+ * Requests are served one at a time, one per connection.
+ */
+public class AdminServer {
+    private static Logger log = Logger.getLogger(HttpProxy.class.getName());
+
+    private static final int CLIENT_TIMEOUT = 5000;
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final int                 m_port;
+    private final String              m_address;
+    private final ServerSocketFactory m_servSockFact;
+    private final ProxyMetrics        m_metrics;
+    private final CachePeers          m_peers;
+    private final H2cClient           m_h2c;
+    private final OriginHealth        m_health;
+    private final DnsCache            m_dns;
+    private final AccessLog           m_accessLog;
+    private final SlowRequestLog      m_slowLog;
+    private final ConcurrencyLimit    m_limit;
+    private final ClientRateLimiter   m_rateLimiter;
+    private final HttpParams          m_params;
+
+    private ServerSocket m_server;
+
+    /**
+     * @param port admin port, 0 to not listen
+     * @param address local address the admin port is bound to
+     * @param servSockFact
+     * @param metrics
+     * @param peers
+     * @param h2c
+     * @param health
+     * @param dns
+     * @param accessLog
+     * @param slowLog
+     * @param limit
+     * @param rateLimiter
+     */
+    @Inject
+    AdminServer(@Named("httproxy.admin.port") int port,
+                @Named("httproxy.admin.address") String address,
+                ServerSocketFactory servSockFact,
+                ProxyMetrics metrics,
+                CachePeers peers,
+                H2cClient h2c,
+                OriginHealth health,
+                DnsCache dns,
+                AccessLog accessLog,
+                SlowRequestLog slowLog,
+                ConcurrencyLimit limit,
+                ClientRateLimiter rateLimiter) {
+        m_port = port;
+        m_address = address;
+        m_servSockFact = servSockFact;
+        m_metrics = metrics;
+        m_peers = peers;
+        m_h2c = h2c;
+        m_health = health;
+        m_dns = dns;
+        m_accessLog = accessLog;
+        m_slowLog = slowLog;
+        m_limit = limit;
+        m_rateLimiter = rateLimiter;
+
+        m_params = new SyncBasicHttpParams();
+        m_params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, CLIENT_TIMEOUT);
+        m_params.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024);
+    }
+
+    /**
+     * Starts serving admin requests about cache, if an admin port is
+     * configured. Returns immediately.
+     * @param cache
+     * @throws IOException if the admin port can't be bound
+     */
+    public synchronized void start(ProxyCache cache) throws IOException {
+        if (m_server != null || m_port <= 0)
+            return;
+
+        m_server = m_servSockFact.createServerSocket(m_port, 50, InetAddress.getByName(m_address));
+        log.info("Admin listening on " + m_address + ":" + m_server.getLocalPort());
+
+        BasicHttpProcessor inhttpproc = new BasicHttpProcessor();
+        inhttpproc.addInterceptor(new ResponseDate());
+        inhttpproc.addInterceptor(new ResponseContent());
+        inhttpproc.addInterceptor(new ResponseConnControl());
+
+        HttpRequestHandlerRegistry registry = new HttpRequestHandlerRegistry();
+        registry.register("/metrics", new MetricsHandler(cache));
+        registry.register("/connections", new ConnectionsHandler());
+        registry.register("/slow", new SlowRequestsHandler());
+        registry.register("/purge", new PurgeHandler(cache));
+
+        final HttpService service = new HttpService(inhttpproc, new DefaultConnectionReuseStrategy(),
+                                                    new DefaultHttpResponseFactory(), registry, m_params);
+
+        final ServerSocket server = m_server;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    Socket sock = HttpProxy.acceptWithBackoff(server, null);
+                    if (sock == null)
+                        return;
+                    serve(service, sock);
+                }
+            }
+        }, "admin");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(HttpService service, Socket sock) {
+        DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
+        try {
+            conn.bind(sock, m_params);
+            service.handleRequest(conn, new BasicHttpContext(null));
+        }
+        catch (IOException e) {
+            System.err.println("[!] Admin request failed: " + e.getMessage());
+        }
+        catch (HttpException e) {
+            System.err.println("[!] Admin request violated HTTP: " + e.getMessage());
+        }
+        finally {
+            try {
+                conn.shutdown();
+            }
+            catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * Exports the metrics of the proxy, its cache tiers, connections and
+     * targets in the Prometheus text format.
+     */
+    private class MetricsHandler implements HttpRequestHandler {
+        private final ProxyCache m_cache;
+
+        MetricsHandler(ProxyCache cache) {
+            m_cache = cache;
+        }
+
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+            throws UnsupportedEncodingException
+        {
+            StringBuilder sb = new StringBuilder();
+
+            header(sb, "httproxy_requests_total", "counter", "Requests handled");
+            sample(sb, "httproxy_requests_total", "", m_metrics.getRequestCount());
+            header(sb, "httproxy_cache_hits_total", "counter", "Requests answered from the cache");
+            sample(sb, "httproxy_cache_hits_total", "", m_metrics.getHitCount());
+            header(sb, "httproxy_cache_misses_total", "counter", "Cacheable requests fetched from the target");
+            sample(sb, "httproxy_cache_misses_total", "", m_metrics.getMissCount());
+            header(sb, "httproxy_revalidations_total", "counter", "Revalidations of cached entries by result");
+            sample(sb, "httproxy_revalidations_total", label("result", "not_modified"),
+                   m_metrics.getNotModifiedCount());
+            sample(sb, "httproxy_revalidations_total", label("result", "modified"), m_metrics.getModifiedCount());
+            header(sb, "httproxy_client_bytes_total", "counter", "Bytes exchanged with clients");
+            sample(sb, "httproxy_client_bytes_total", label("direction", "in"), m_metrics.getBytesIn());
+            sample(sb, "httproxy_client_bytes_total", label("direction", "out"), m_metrics.getBytesOut());
+            header(sb, "httproxy_errors_total", "counter", "Errors by type");
+            for (Map.Entry<String, Long> e : m_metrics.getErrorCounts().entrySet())
+                sample(sb, "httproxy_errors_total", label("type", e.getKey()), e.getValue());
+
+            header(sb, "httproxy_phase_seconds", "summary", "Time spent in each phase of a request");
+            for (ProxyMetrics.Phase phase : ProxyMetrics.Phase.values()) {
+                LatencyHistogram h = m_metrics.getHistogram(phase);
+                String name = phase.name().toLowerCase(Locale.ENGLISH);
+                for (double q : QUANTILES)
+                    sample(sb, "httproxy_phase_seconds",
+                           label("phase", name) + "," + label("quantile", Double.toString(q)),
+                           h.getPercentile(q * 100) / 1e6);
+                sample(sb, "httproxy_phase_seconds_sum", label("phase", name), h.getSum() / 1e6);
+                sample(sb, "httproxy_phase_seconds_count", label("phase", name), h.getCount());
+            }
+
+            header(sb, "httproxy_connections", "gauge", "Open connections by kind");
+            sample(sb, "httproxy_connections", label("kind", "client"), m_metrics.getActiveConnections());
+            sample(sb, "httproxy_connections", label("kind", "tunnel"), ConnectTunnel.getActiveTunnels().size());
+            sample(sb, "httproxy_connections", label("kind", "h2c"), m_h2c.getConnectionCount());
+            header(sb, "httproxy_tunnel_bytes_total", "counter", "Bytes relayed through CONNECT tunnels");
+            sample(sb, "httproxy_tunnel_bytes_total", label("direction", "up"), ConnectTunnel.getTotalBytesUp());
+            sample(sb, "httproxy_tunnel_bytes_total", label("direction", "down"),
+                   ConnectTunnel.getTotalBytesDown());
+
+            header(sb, "httproxy_stranded_connects", "gauge",
+                   "Connects to targets that timed out and still wait for the OS");
+            sample(sb, "httproxy_stranded_connects", "", TargetConnector.getStrandedCount());
+            header(sb, "httproxy_rejected_connects_total", "counter",
+                   "Connects to targets failed because too many were in progress");
+            sample(sb, "httproxy_rejected_connects_total", "", TargetConnector.getRejectedCount());
+
+            writeCacheMetrics(sb);
+
+            header(sb, "httproxy_dns_lookups_total", "counter", "Target host resolutions by result");
+            sample(sb, "httproxy_dns_lookups_total", label("result", "hit"), m_dns.getHitCount());
+            sample(sb, "httproxy_dns_lookups_total", label("result", "negative_hit"), m_dns.getNegativeHitCount());
+            sample(sb, "httproxy_dns_lookups_total", label("result", "miss"), m_dns.getMissCount());
+            sample(sb, "httproxy_dns_lookups_total", label("result", "failure"), m_dns.getFailureCount());
+            header(sb, "httproxy_h2c_requests_total", "counter", "Requests sent to h2c origins by protocol");
+            sample(sb, "httproxy_h2c_requests_total", label("protocol", "h2c"), m_h2c.getRequestCount());
+            sample(sb, "httproxy_h2c_requests_total", label("protocol", "http1"), m_h2c.getFallbackCount());
+
+            header(sb, "httproxy_access_log_records_total", "counter", "Access log records by outcome");
+            sample(sb, "httproxy_access_log_records_total", label("outcome", "written"),
+                   m_accessLog.getWrittenCount());
+            sample(sb, "httproxy_access_log_records_total", label("outcome", "dropped"),
+                   m_accessLog.getDroppedCount());
+
+            header(sb, "httproxy_concurrency_limit", "gauge", "Requests that may be handled at once");
+            sample(sb, "httproxy_concurrency_limit", "", m_limit.getLimit());
+            header(sb, "httproxy_requests_in_flight", "gauge", "Requests being handled");
+            sample(sb, "httproxy_requests_in_flight", "", m_limit.getInFlight());
+            header(sb, "httproxy_queued_connections", "gauge", "Accepted connections waiting for a worker");
+            sample(sb, "httproxy_queued_connections", "", m_limit.getQueued());
+            header(sb, "httproxy_shed_total", "counter", "Connections answered 503 under overload");
+            sample(sb, "httproxy_shed_total", "", m_limit.getShedCount());
+            header(sb, "httproxy_tunnel_limit", "gauge", "CONNECT tunnels open at once at most");
+            sample(sb, "httproxy_tunnel_limit", "", m_limit.getMaxTunnels());
+            header(sb, "httproxy_tunnels_refused_total", "counter", "CONNECTs answered 503 because of the tunnel limit");
+            sample(sb, "httproxy_tunnels_refused_total", "", m_limit.getTunnelsRefusedCount());
+            header(sb, "httproxy_rate_limited_total", "counter", "Requests refused by the per-client rate limits");
+            sample(sb, "httproxy_rate_limited_total", "", m_rateLimiter.getRejectedCount());
+            header(sb, "httproxy_rate_limited_clients", "gauge", "Clients whose rates are tracked");
+            sample(sb, "httproxy_rate_limited_clients", "", m_rateLimiter.getClientCount());
+
+            header(sb, "httproxy_slow_requests_total", "counter", "Requests slower than the trace threshold");
+            sample(sb, "httproxy_slow_requests_total", "", m_slowLog.getCapturedCount());
+
+            header(sb, "httproxy_breaker_open", "gauge", "Targets whose circuit breaker isn't closed");
+            for (Map.Entry<HttpHost, CircuitBreaker> e : m_health.getBreakers().entrySet()) {
+                CircuitBreaker.State state = e.getValue().getState();
+                if (state != CircuitBreaker.State.CLOSED)
+                    sample(sb, "httproxy_breaker_open",
+                           label("target", e.getKey().toHostString()) + ","
+                           + label("state", state.name().toLowerCase(Locale.ENGLISH)), 1);
+            }
+
+            StringEntity entity = new StringEntity(sb.toString(), "UTF-8");
+            entity.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            response.setEntity(entity);
+        }
+
+        private void writeCacheMetrics(StringBuilder sb) {
+            long memoryHits = m_cache.getMemoryHitCount();
+            long dbHits = m_cache.getPersistentHitCount();
+            long misses = m_cache.getLookupMissCount();
+            long peerHits = m_peers.getHitCount();
+            long peerMisses = m_peers.getMissCount() + m_peers.getFailureCount();
+
+            header(sb, "httproxy_cache_tier_hits_total", "counter", "Cache lookups answered by each tier");
+            sample(sb, "httproxy_cache_tier_hits_total", label("tier", "memory"), memoryHits);
+            sample(sb, "httproxy_cache_tier_hits_total", label("tier", "database"), dbHits);
+            sample(sb, "httproxy_cache_tier_hits_total", label("tier", "peer"), peerHits);
+            header(sb, "httproxy_cache_tier_hit_ratio", "gauge", "Share of the lookups reaching a tier it answered");
+            sample(sb, "httproxy_cache_tier_hit_ratio", label("tier", "memory"),
+                   ratio(memoryHits, memoryHits + dbHits + misses));
+            sample(sb, "httproxy_cache_tier_hit_ratio", label("tier", "database"), ratio(dbHits, dbHits + misses));
+            sample(sb, "httproxy_cache_tier_hit_ratio", label("tier", "peer"), ratio(peerHits, peerHits + peerMisses));
+            header(sb, "httproxy_cache_negative_total", "counter", "Negative cache entries stored and served");
+            sample(sb, "httproxy_cache_negative_total", label("event", "store"), m_cache.getNegativeStoreCount());
+            sample(sb, "httproxy_cache_negative_total", label("event", "hit"), m_cache.getNegativeHitCount());
+            header(sb, "httproxy_peer_lookups_served_total", "counter", "Lookups of other nodes answered");
+            sample(sb, "httproxy_peer_lookups_served_total", "", m_peers.getServedCount());
+
+            MemoryCache memory = m_cache.getMemoryCache();
+            List<CacheShard> shards = m_cache.getShards();
+            List<ProxyCache.ShardStats> stats = new ArrayList<ProxyCache.ShardStats>();
+            for (CacheShard shard : shards)
+                stats.add(shard.isDown() ? null : m_cache.getShardStats(shard));
+
+            header(sb, "httproxy_cache_entries", "gauge", "Entries stored in each tier");
+            sample(sb, "httproxy_cache_entries", label("tier", "memory"), memory.getEntryCount());
+            for (int i = 0; i < shards.size(); i++) {
+                if (stats.get(i) != null)
+                    sample(sb, "httproxy_cache_entries", shardLabels(shards.get(i)), stats.get(i).m_entries);
+            }
+            header(sb, "httproxy_cache_bytes", "gauge", "Bytes of the bodies stored in each tier");
+            sample(sb, "httproxy_cache_bytes", label("tier", "memory"), memory.getBytes());
+            for (int i = 0; i < shards.size(); i++) {
+                if (stats.get(i) != null)
+                    sample(sb, "httproxy_cache_bytes", shardLabels(shards.get(i)), stats.get(i).m_bodyBytes);
+            }
+            header(sb, "httproxy_cache_shard_up", "gauge", "Whether a cache database can be reached");
+            for (int i = 0; i < shards.size(); i++)
+                sample(sb, "httproxy_cache_shard_up", label("shard", shards.get(i).getDbUrl()),
+                       stats.get(i) != null ? 1 : 0);
+            header(sb, "httproxy_cache_shard_idle_connections", "gauge", "Pooled connections of a cache database");
+            for (CacheShard shard : shards)
+                sample(sb, "httproxy_cache_shard_idle_connections", label("shard", shard.getDbUrl()),
+                       shard.getIdleCount());
+            header(sb, "httproxy_cache_shard_stale_connections_total", "counter",
+                   "Pooled connections of a cache database found closed by the server");
+            for (CacheShard shard : shards)
+                sample(sb, "httproxy_cache_shard_stale_connections_total", label("shard", shard.getDbUrl()),
+                       shard.getStaleCount());
+        }
+
+        private String shardLabels(CacheShard shard) {
+            return label("tier", "database") + "," + label("shard", shard.getDbUrl());
+        }
+    }
+
+    /**
+     * Lists the client connections and the open tunnels.
+     */
+    private class ConnectionsHandler implements HttpRequestHandler {
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+            throws UnsupportedEncodingException
+        {
+            StringBuilder sb = new StringBuilder();
+            sb.append("client connections: ").append(m_metrics.getActiveConnections()).append('\n');
+            sb.append("h2c connections: ").append(m_h2c.getConnectionCount()).append('\n');
+            sb.append("tunnels: ").append(ConnectTunnel.getActiveTunnels().size()).append('\n');
+            for (ConnectTunnel tunnel : ConnectTunnel.getActiveTunnels()) {
+                sb.append("  ").append(tunnel.getTarget())
+                  .append(" up=").append(tunnel.getBytesUp())
+                  .append(" down=").append(tunnel.getBytesDown()).append('\n');
+            }
+
+            response.setEntity(new StringEntity(sb.toString(), "UTF-8"));
+        }
+    }
+
+    /**
+     * Dumps the timelines and key headers of the latest slow requests.
+     */
+    private class SlowRequestsHandler implements HttpRequestHandler {
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+            throws UnsupportedEncodingException
+        {
+            StringBuilder sb = new StringBuilder();
+            for (SlowRequestLog.Entry entry : m_slowLog.getEntries()) {
+                sb.append(new Date(entry.m_time)).append("  ").append(entry.m_requestLine)
+                  .append("  ").append(entry.m_status > 0 ? Integer.toString(entry.m_status) : "-")
+                  .append("  ").append(entry.m_micros / 1000).append("ms");
+                if (entry.m_cacheStatus != null)
+                    sb.append("  ").append(entry.m_cacheStatus);
+                sb.append('\n').append(entry.m_headers).append(entry.m_timeline).append('\n');
+            }
+
+            response.setEntity(new StringEntity(sb.toString(), "UTF-8"));
+        }
+    }
+
+    /**
+     * Removes cache entries by url, url prefix or host.
+     */
+    private class PurgeHandler implements HttpRequestHandler {
+        private final ProxyCache m_cache;
+
+        PurgeHandler(ProxyCache cache) {
+            m_cache = cache;
+        }
+
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+            throws UnsupportedEncodingException
+        {
+            if (!request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH).equals("POST")) {
+                response.setStatusCode(HttpStatus.SC_METHOD_NOT_ALLOWED);
+                response.addHeader("Allow", "POST");
+                return;
+            }
+
+            Map<String, String> params = queryParams(request.getRequestLine().getUri());
+            int purged;
+            if (params.containsKey("url"))
+                purged = m_cache.invalidate(params.get("url")) ? 1 : 0;
+            else if (params.containsKey("prefix") && params.get("prefix").length() > 0)
+                purged = m_cache.invalidatePrefix(params.get("prefix"));
+            else if (params.containsKey("host") && params.get("host").length() > 0)
+                purged = m_cache.invalidateHost(params.get("host"));
+            else {
+                response.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+                response.setEntity(new StringEntity("expected one of url, prefix or host\n", "UTF-8"));
+                return;
+            }
+
+            log.info("Admin purged " + purged + " cache entries (" + params + ")");
+            response.setEntity(new StringEntity("purged " + purged + "\n", "UTF-8"));
+        }
+    }
+
+    /**
+     * @param uri
+     * @return the decoded parameters of the query of uri
+     * @throws UnsupportedEncodingException
+     */
+    private static Map<String, String> queryParams(String uri) throws UnsupportedEncodingException {
+        Map<String, String> res = new HashMap<String, String>();
+        int q = uri.indexOf('?');
+        if (q < 0)
+            return res;
+
+        for (String param : uri.substring(q + 1).split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0)
+                res.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+        }
+        return res;
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (labels.length() > 0)
+            sb.append('{').append(labels).append('}');
+        sb.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            sb.append((long) value);
+        else
+            sb.append(value);
+        sb.append('\n');
+    }
+
+    private static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    private static double ratio(long part, long total) {
+        return total == 0 ? 0 : (double) part / total;
+    }
+}
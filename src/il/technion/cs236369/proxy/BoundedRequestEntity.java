@@ -0,0 +1,51 @@
+package il.technion.cs236369.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Streams a client request body to the target server through a fixed size
+ * buffer, so an upload is never held in memory as a whole. Fails the
+ * transfer once more than the allowed number of bytes was sent.
+ */
+public class BoundedRequestEntity extends HttpEntityWrapper {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final long m_maxSize;
+
+    /**
+     * @param entity the entity of the client request
+     * @param maxSize maximal body size in bytes, 0 for unlimited
+     */
+    public BoundedRequestEntity(HttpEntity entity, long maxSize) {
+        super(entity);
+        m_maxSize = maxSize;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        // the stream isn't closed on failure, closing would drain the rest of the upload
+        InputStream in = wrappedEntity.getContent();
+        byte[] buf = new byte[BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            total += n;
+            if (m_maxSize > 0 && total > m_maxSize)
+                throw new IOException("Request body exceeds " + m_maxSize + " bytes");
+            outstream.write(buf, 0, n);
+        }
+        outstream.flush();
+        in.close();
+    }
+}
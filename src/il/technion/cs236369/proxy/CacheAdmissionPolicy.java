@@ -0,0 +1,77 @@
+package il.technion.cs236369.proxy;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a cacheable response that missed the cache is worth storing.
+ * Keeps counters of admitted vs. rejected entries.
+ */
+public abstract class CacheAdmissionPolicy {
+
+    public static final String ALWAYS     = "always";
+    public static final String SECOND_HIT = "second-hit";
+    public static final String TINYLFU    = "tinylfu";
+
+    private final AtomicLong m_admitted = new AtomicLong();
+    private final AtomicLong m_rejected = new AtomicLong();
+
+    /**
+     * Creates the admission policy by its configured name.
+     * @param name one of ALWAYS, SECOND_HIT, TINYLFU
+     * @param size number of keys the policy should be able to track
+     * @return the policy, ALWAYS if the name is unknown
+     */
+    public static CacheAdmissionPolicy create(String name, int size) {
+        String policy = name.trim().toLowerCase(Locale.ENGLISH);
+        if (policy.equals(SECOND_HIT))
+            return new DoorkeeperAdmissionPolicy(size);
+        if (policy.equals(TINYLFU))
+            return new TinyLfuAdmissionPolicy(size);
+
+        return new CacheAdmissionPolicy() {
+            @Override
+            protected boolean shouldAdmit(String key) {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Called on a cache miss for a cacheable response.
+     * @param key the url of the response
+     * @return true if the response should be stored in the cache
+     */
+    public boolean admit(String key) {
+        if (shouldAdmit(key)) {
+            m_admitted.incrementAndGet();
+            return true;
+        }
+
+        m_rejected.incrementAndGet();
+        return false;
+    }
+
+    public long getAdmittedCount() {
+        return m_admitted.get();
+    }
+
+    public long getRejectedCount() {
+        return m_rejected.get();
+    }
+
+    protected abstract boolean shouldAdmit(String key);
+
+    /**
+     * @param key
+     * @param seed
+     * @return a well spread hash of the key, different for every seed
+     */
+    protected static int hash(String key, int seed) {
+        int h = key.hashCode() * 0x9E3779B9 + seed * 0x85EBCA6B;
+        h ^= h >>> 16;
+        h *= 0x7FEB352D;
+        h ^= h >>> 15;
+        return h;
+    }
+}
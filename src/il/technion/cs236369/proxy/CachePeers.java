@@ -0,0 +1,453 @@
+package il.technion.cs236369.proxy;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ServerSocketFactory;
+import javax.net.SocketFactory;
+
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpClientConnection;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpRequestHandlerRegistry;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.RequestConnControl;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.util.EntityUtils;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Shares the caches of several proxy nodes. Every url is owned by one node,
+ * picked by consistent hashing over the configured peer addresses, so all
+ * nodes agree on the owner. On a local miss the owner is asked for the url
+ * before the target server is contacted.
+ *
+ * The peer protocol is plain HTTP on a separate port: "GET &lt;url&gt;" is
+ * answered with 200 and the cached response if the node holds it, and with
+ * 404 otherwise. A lookup never makes the owner contact the target server,
+ * and the owner doesn't revalidate the entry; the asking node revalidates
+ * its own copy from the next use on. Connections to peers are kept alive
+ * and reused; lookups have a short timeout, and a peer whose breaker opened
+ * is skipped, so a failing peer only costs a trip to the target server.
+ */
+public class CachePeers {
+    private static Logger log = Logger.getLogger(HttpProxy.class.getName());
+
+    private static final int MAX_IDLE_PER_PEER    = 4;
+    private static final int MAX_PEER_CONNECTIONS = 32;
+    private static final int PEER_IDLE_TIMEOUT    = 30000;
+
+    private final HashRing<HttpHost> m_ring;
+    private final HttpHost           m_self;
+    private final int                m_port;
+    private final int                m_timeout;
+    private final OriginHealth       m_health;
+    private final TargetConnector    m_connector;
+    private final ServerSocketFactory m_servSockFact;
+
+    private final HttpParams              m_params;
+    private final HttpRequestExecutor     m_httpexec = new HttpRequestExecutor();
+    private final BasicHttpProcessor      m_httpproc = new BasicHttpProcessor();
+    private final ConnectionReuseStrategy m_reuse    = new DefaultConnectionReuseStrategy();
+    private final ConcurrentHashMap<HttpHost, ConcurrentLinkedQueue<DefaultHttpClientConnection>> m_idle =
+        new ConcurrentHashMap<HttpHost, ConcurrentLinkedQueue<DefaultHttpClientConnection>>();
+
+    private ServerSocket m_server;
+
+    private final AtomicLong m_hits     = new AtomicLong();
+    private final AtomicLong m_misses   = new AtomicLong();
+    private final AtomicLong m_failures = new AtomicLong();
+    private final AtomicLong m_served   = new AtomicLong();
+
+    /**
+     * @param nodes comma separated host:port of the peer ports of all nodes, this one included
+     * @param self host:port of this node in nodes
+     * @param port peer port this node listens on, 0 to not serve peers
+     * @param timeout milliseconds a lookup at a peer may take
+     * @param virtualNodes points per node on the hash ring
+     * @param health breakers of the peers
+     * @param sockFact
+     * @param servSockFact
+     */
+    @Inject
+    CachePeers(@Named("httproxy.peer.nodes") String nodes,
+               @Named("httproxy.peer.self") String self,
+               @Named("httproxy.peer.port") int port,
+               @Named("httproxy.peer.timeout") int timeout,
+               @Named("httproxy.peer.virtual.nodes") int virtualNodes,
+               OriginHealth health,
+               SocketFactory sockFact,
+               ServerSocketFactory servSockFact) {
+        List<HttpHost> peers = new ArrayList<HttpHost>();
+        for (String node : nodes.split(",")) {
+            HttpHost peer = parseNode(node);
+            if (peer != null)
+                peers.add(peer);
+        }
+
+        m_ring = new HashRing<HttpHost>(peers, virtualNodes);
+        m_self = parseNode(self);
+        m_port = port;
+        m_timeout = timeout;
+        m_health = health;
+        m_connector = new TargetConnector(sockFact);
+        m_servSockFact = servSockFact;
+
+        m_params = new SyncBasicHttpParams();
+        m_params.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024);
+        m_params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false);
+        m_params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
+
+        m_httpproc.addInterceptor(new RequestContent());
+        m_httpproc.addInterceptor(new RequestTargetHost());
+        m_httpproc.addInterceptor(new RequestConnControl());
+    }
+
+    /**
+     * Starts serving lookups of other nodes from cache, if a peer port is
+     * configured. Returns immediately.
+     * @param cache
+     * @throws IOException if the peer port can't be bound
+     */
+    public synchronized void start(ProxyCache cache) throws IOException {
+        if (m_server != null || m_port <= 0)
+            return;
+
+        m_server = m_servSockFact.createServerSocket(m_port);
+        log.info("Serving cache peers on port " + m_server.getLocalPort());
+
+        final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+            0, MAX_PEER_CONNECTIONS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "peer-conn");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        BasicHttpProcessor inhttpproc = new BasicHttpProcessor();
+        inhttpproc.addInterceptor(new ResponseContent());
+        inhttpproc.addInterceptor(new ResponseConnControl());
+
+        HttpRequestHandlerRegistry registry = new HttpRequestHandlerRegistry();
+        registry.register("*", new LookupHandler(cache));
+
+        final HttpService service = new HttpService(inhttpproc, m_reuse, new DefaultHttpResponseFactory(),
+                                                    registry, m_params);
+
+        final ServerSocket server = m_server;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    final Socket sock = HttpProxy.acceptWithBackoff(server, null);
+                    if (sock == null)
+                        return;
+
+                    try {
+                        workers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(service, sock);
+                            }
+                        });
+                    }
+                    catch (RejectedExecutionException e) {
+                        System.err.println("[!] Too many peer connections");
+                        closeQuietly(sock);
+                    }
+                }
+            }
+        }, "peer-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Asks the node owning url for its cached response.
+     * @param url
+     * @param deadline of the client request
+     * @return the response cached by the owner, null if it has none, this
+     * node is the owner, or the owner couldn't answer in time
+     */
+    public ProxyCache.CachedItem fetch(String url, Deadline deadline) {
+        HttpHost peer = m_ring.get(url);
+        if (peer == null || peer.equals(m_self))
+            return null;
+
+        int timeout;
+        try {
+            timeout = deadline.bound(m_timeout);
+        }
+        catch (SocketTimeoutException e) {
+            return null;
+        }
+
+        CircuitBreaker breaker = m_health.get(peer);
+        if (!breaker.allowRequest())
+            return null;
+
+        long start = System.currentTimeMillis();
+        DefaultHttpClientConnection conn = null;
+        try {
+            conn = borrow(peer, timeout);
+            conn.setSocketTimeout(timeout);
+
+            HttpRequest request = new BasicHttpRequest("GET", url, HttpVersion.HTTP_1_1);
+            HttpContext context = new BasicHttpContext(null);
+            context.setAttribute(ExecutionContext.HTTP_CONNECTION, conn);
+            context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, peer);
+            m_httpexec.preProcess(request, m_httpproc, context);
+            HttpResponse response = m_httpexec.execute(request, conn, context);
+            byte[] body = response.getEntity() != null
+                ? EntityUtils.toByteArray(response.getEntity())
+                : new byte[0];
+            breaker.recordSuccess(System.currentTimeMillis() - start);
+
+            if (m_reuse.keepAlive(response, context))
+                release(peer, conn);
+            else
+                conn.close();
+            conn = null;
+
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                m_misses.incrementAndGet();
+                return null;
+            }
+
+            log.log(Level.FINE, "peer {0} had {1}", new Object[] { peer, url });
+            m_hits.incrementAndGet();
+            return new ProxyCache.CachedItem(url, entryHeaders(response), body);
+        }
+        catch (IOException e) {
+            log.info("lookup at peer " + peer.toHostString() + " failed: " + e.getMessage());
+            m_failures.incrementAndGet();
+            if (e instanceof SocketTimeoutException)
+                breaker.recordTimeout();
+            else
+                breaker.recordError();
+        }
+        catch (HttpException e) {
+            log.info("peer " + peer.toHostString() + " violated HTTP: " + e.getMessage());
+            m_failures.incrementAndGet();
+            breaker.recordError();
+        }
+        finally {
+            if (conn != null)
+                closeQuietly(conn);
+        }
+
+        return null;
+    }
+
+    public long getHitCount() {
+        return m_hits.get();
+    }
+
+    public long getMissCount() {
+        return m_misses.get();
+    }
+
+    public long getFailureCount() {
+        return m_failures.get();
+    }
+
+    /**
+     * @return number of lookups of other nodes answered from this node's cache
+     */
+    public long getServedCount() {
+        return m_served.get();
+    }
+
+    /**
+     * Answers peer lookups from the cache only.
+     */
+    private class LookupHandler implements HttpRequestHandler {
+        private final ProxyCache m_cache;
+
+        LookupHandler(ProxyCache cache) {
+            m_cache = cache;
+        }
+
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+            String url = request.getRequestLine().getUri();
+            ProxyCache.CachedItem entry = null;
+            if (request.getRequestLine().getMethod().equals("GET") && m_cache.contains(url))
+                entry = m_cache.retrieve(url);
+
+            if (entry == null || entry.isNegative() || entry.m_headers.length == 0) {
+                response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+                return;
+            }
+
+            m_served.incrementAndGet();
+            response.setStatusCode(HttpStatus.SC_OK);
+            for (Header h : entry.m_headers)
+                response.addHeader(h);
+            response.setEntity(new ByteArrayEntity(entry.m_body));
+        }
+    }
+
+    /**
+     * Handles the requests of a peer connection until the peer closes it.
+     * @param service
+     * @param sock
+     */
+    private void serve(HttpService service, Socket sock) {
+        DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
+        try {
+            conn.bind(sock, m_params);
+            conn.setSocketTimeout(PEER_IDLE_TIMEOUT);
+            while (conn.isOpen())
+                service.handleRequest(conn, new BasicHttpContext(null));
+        }
+        catch (IOException ignore) {
+            // the peer closed the connection or was idle for too long
+        }
+        catch (HttpException e) {
+            System.err.println("[!] HTTP protocol violation by peer: " + e.getMessage());
+        }
+        finally {
+            try {
+                conn.shutdown();
+            }
+            catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * @param peer
+     * @param timeout milliseconds to connect if no idle connection is available
+     * @return an idle connection to peer, or a new one
+     * @throws IOException
+     */
+    private DefaultHttpClientConnection borrow(HttpHost peer, int timeout) throws IOException {
+        ConcurrentLinkedQueue<DefaultHttpClientConnection> idle = m_idle.get(peer);
+        if (idle != null) {
+            DefaultHttpClientConnection conn;
+            while ((conn = idle.poll()) != null) {
+                if (!conn.isStale())
+                    return conn;
+                closeQuietly(conn);
+            }
+        }
+
+        Socket sock = m_connector.connect(peer.getHostName(), peer.getPort(), timeout);
+        DefaultHttpClientConnection conn = new DefaultHttpClientConnection();
+        try {
+            conn.bind(sock, m_params);
+        }
+        catch (IOException e) {
+            closeQuietly(sock);
+            throw e;
+        }
+
+        return conn;
+    }
+
+    private void release(HttpHost peer, DefaultHttpClientConnection conn) {
+        ConcurrentLinkedQueue<DefaultHttpClientConnection> idle = m_idle.get(peer);
+        if (idle == null) {
+            m_idle.putIfAbsent(peer, new ConcurrentLinkedQueue<DefaultHttpClientConnection>());
+            idle = m_idle.get(peer);
+        }
+
+        if (idle.size() < MAX_IDLE_PER_PEER)
+            idle.add(conn);
+        else
+            closeQuietly(conn);
+    }
+
+    /**
+     * @param response of a peer
+     * @return the headers of the response that belong in a cache entry
+     */
+    private static Header[] entryHeaders(HttpResponse response) {
+        List<Header> res = new ArrayList<Header>();
+        for (Header h : response.getAllHeaders()) {
+            String name = h.getName();
+            if (!name.equalsIgnoreCase(HTTP.CONTENT_LEN)
+                && !name.equalsIgnoreCase(HTTP.TRANSFER_ENCODING)
+                && !name.equalsIgnoreCase(HTTP.CONN_DIRECTIVE)
+                && !name.equalsIgnoreCase("Keep-Alive"))
+                res.add(h);
+        }
+
+        return res.toArray(new Header[res.size()]);
+    }
+
+    /**
+     * @param node host:port
+     * @return the node, null if it is empty
+     */
+    private static HttpHost parseNode(String node) {
+        node = node.trim();
+        if (node.length() == 0)
+            return null;
+
+        int sep = node.lastIndexOf(':');
+        if (sep <= 0)
+            throw new IllegalArgumentException("Peer " + node + " has no port");
+
+        return new HttpHost(node.substring(0, sep).toLowerCase(Locale.ENGLISH),
+                            Integer.parseInt(node.substring(sep + 1)));
+    }
+
+    private static void closeQuietly(DefaultHttpClientConnection conn) {
+        try {
+            conn.close();
+        }
+        catch (IOException ignore) {}
+    }
+
+    private static void closeQuietly(Socket sock) {
+        try {
+            sock.close();
+        }
+        catch (IOException ignore) {}
+    }
+}
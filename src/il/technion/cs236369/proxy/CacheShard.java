@@ -0,0 +1,253 @@
+package il.technion.cs236369.proxy;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * One cache database of ProxyCache, with a pool of idle connections. A shard
+ * that can't be reached is considered down for a while, during which its
+ * keys are cache misses instead of waiting for the database again.
+ *
+ * The server closes connections that stay idle too long (wait_timeout), so
+ * a connection that was idle for a while is checked before it's reused;
+ * otherwise its failure would take the whole shard down.
+ */
+public class CacheShard {
+    private static Logger log = Logger.getLogger(HttpProxy.class.getName());
+
+    private static final long RETRY_MILLIS = 5000;
+    private static final long VALIDATE_IDLE_MILLIS = 5000;
+    private static final int  VALIDATE_TIMEOUT = 2; // seconds
+
+    /**
+     * A pooled connection, and since when it's idle.
+     */
+    private static class Idle {
+        final Connection m_conn;
+        final long       m_since;
+
+        Idle(Connection conn) {
+            m_conn = conn;
+            m_since = System.currentTimeMillis();
+        }
+    }
+
+    private final String m_dbUrl;
+    private final ConcurrentLinkedQueue<Idle> m_idle = new ConcurrentLinkedQueue<Idle>();
+    private final AtomicInteger m_idleCount = new AtomicInteger();
+    private volatile int     m_maxIdle;
+    private volatile boolean m_schemaReady;
+    private final AtomicBoolean m_migrating = new AtomicBoolean();
+    private volatile long    m_downUntil;
+
+    private final AtomicLong m_connects = new AtomicLong();
+    private final AtomicLong m_reuses   = new AtomicLong();
+    private final AtomicLong m_failures = new AtomicLong();
+    private final AtomicLong m_skipped  = new AtomicLong();
+    private final AtomicLong m_stale    = new AtomicLong();
+
+    /**
+     * @param dbUrl JDBC url of the database server
+     * @param maxIdle connections kept open for reuse
+     */
+    public CacheShard(String dbUrl, int maxIdle) {
+        m_dbUrl = dbUrl;
+        m_maxIdle = maxIdle;
+    }
+
+    /**
+     * @param connprop user, password and timeouts of a new connection
+     * @param dbName database to use
+     * @return an idle or new connection, null if the shard is down or can't be reached
+     */
+    public Connection borrow(Properties connprop, String dbName) {
+        Connection dbconn = null;
+        Idle idle;
+        while ((idle = m_idle.poll()) != null) {
+            m_idleCount.decrementAndGet();
+            if (isUsable(idle)) {
+                m_reuses.incrementAndGet();
+                return idle.m_conn;
+            }
+            m_stale.incrementAndGet();
+            close(idle.m_conn);
+        }
+
+        if (isDown()) {
+            m_skipped.incrementAndGet();
+            return null;
+        }
+
+        try {
+            m_connects.incrementAndGet();
+            dbconn = DriverManager.getConnection(m_dbUrl, connprop);
+            dbconn.createStatement().executeQuery("USE " + dbName);
+            return dbconn;
+        }
+        catch (SQLException e) {
+            System.err.println("[!] Problem connecting to cache DB " + m_dbUrl + " - treating it as down");
+            close(dbconn);
+            markDown();
+            return null;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool, or closes it if the pool is full.
+     * @param dbconn may be null
+     */
+    public void release(Connection dbconn) {
+        if (dbconn == null)
+            return;
+
+        try {
+            if (!dbconn.getAutoCommit())
+                dbconn.setAutoCommit(true);
+        }
+        catch (SQLException e) {
+            close(dbconn);
+            return;
+        }
+
+        if (m_idleCount.incrementAndGet() <= m_maxIdle)
+            m_idle.add(new Idle(dbconn));
+        else {
+            m_idleCount.decrementAndGet();
+            close(dbconn);
+        }
+    }
+
+    /**
+     * Closes a connection that failed. If the database couldn't be reached
+     * the shard is considered down (borrow doesn't hand out idle connections
+     * the server already closed, so this is the database, not a stale one).
+     * @param dbconn
+     * @param e the failure
+     */
+    public void discard(Connection dbconn, SQLException e) {
+        close(dbconn);
+        if (e instanceof SQLRecoverableException)
+            markDown();
+    }
+
+    public boolean isDown() {
+        return m_downUntil > System.currentTimeMillis();
+    }
+
+    public boolean isSchemaReady() {
+        return m_schemaReady;
+    }
+
+    public void setSchemaReady() {
+        m_schemaReady = true;
+    }
+
+    /**
+     * @return true if the caller should bring the schema up to date, false
+     *         if that's under way already
+     */
+    public boolean beginMigration() {
+        return m_migrating.compareAndSet(false, true);
+    }
+
+    /**
+     * @param done false if the schema couldn't be brought up to date; the
+     *        shard is considered down for a while then, and tried again after
+     */
+    public void endMigration(boolean done) {
+        if (!done && !isDown())
+            markDown();
+        m_migrating.set(false);
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        m_maxIdle = maxIdle;
+    }
+
+    public String getDbUrl() {
+        return m_dbUrl;
+    }
+
+    public long getConnectCount() {
+        return m_connects.get();
+    }
+
+    public long getReuseCount() {
+        return m_reuses.get();
+    }
+
+    public long getFailureCount() {
+        return m_failures.get();
+    }
+
+    /**
+     * @return number of calls answered as misses because the shard was down
+     */
+    public long getSkippedCount() {
+        return m_skipped.get();
+    }
+
+    /**
+     * @return number of idle connections found closed by the server and dropped
+     */
+    public long getStaleCount() {
+        return m_stale.get();
+    }
+
+    public int getIdleCount() {
+        return m_idleCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return m_dbUrl;
+    }
+
+    private void markDown() {
+        m_failures.incrementAndGet();
+        m_downUntil = System.currentTimeMillis() + RETRY_MILLIS;
+        log.info("Cache DB " + m_dbUrl + " is down, retrying in " + RETRY_MILLIS + "ms");
+
+        Idle idle;
+        while ((idle = m_idle.poll()) != null) {
+            m_idleCount.decrementAndGet();
+            close(idle.m_conn);
+        }
+    }
+
+    /**
+     * @param idle
+     * @return false if the connection is closed, or was idle for a while and
+     *         doesn't answer anymore
+     */
+    private static boolean isUsable(Idle idle) {
+        try {
+            if (idle.m_conn.isClosed())
+                return false;
+            if (System.currentTimeMillis() - idle.m_since < VALIDATE_IDLE_MILLIS)
+                return true;
+            return idle.m_conn.isValid(VALIDATE_TIMEOUT);
+        }
+        catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void close(Connection dbconn) {
+        if (dbconn == null)
+            return;
+
+        try {
+            dbconn.close();
+        }
+        catch (SQLException ignore) {}
+    }
+}
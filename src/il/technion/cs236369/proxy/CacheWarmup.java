@@ -0,0 +1,199 @@
+package il.technion.cs236369.proxy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Periodically snapshots the hot set of the memory tier (urls and their hit
+ * counts) to a file, and on startup preloads the snapshotted entries from the
+ * cache database into memory in the background.
+ *
+ * The snapshot is a text file with a line per url: "hits url".
+ */
+public class CacheWarmup {
+    private static Logger log = Logger.getLogger(HttpProxy.class.getName());
+
+    private static final int PROGRESS_STEP = 100;
+
+    private final File       m_snapshotFile;
+    private final int        m_interval;
+    private final int        m_maxEntries;
+    private ScheduledExecutorService m_scheduler;
+
+    private final AtomicLong m_planned = new AtomicLong();
+    private final AtomicLong m_loaded  = new AtomicLong();
+    private final AtomicLong m_failed  = new AtomicLong();
+    private volatile boolean m_done    = false;
+
+    /**
+     * @param snapshotFile where the hot set is saved
+     * @param interval seconds between snapshots, 0 disables snapshots
+     * @param maxEntries maximal number of urls to snapshot and preload
+     */
+    @Inject
+    CacheWarmup(@Named("httproxy.cache.snapshot.file") String snapshotFile,
+                @Named("httproxy.cache.snapshot.interval") int interval,
+                @Named("httproxy.cache.warmup.max") int maxEntries) {
+        m_snapshotFile = new File(snapshotFile);
+        m_interval = interval;
+        m_maxEntries = maxEntries;
+    }
+
+    /**
+     * Starts preloading the last snapshot into cache and schedules the
+     * periodic snapshots. Returns immediately.
+     * @param cache
+     */
+    public synchronized void start(final ProxyCache cache) {
+        if (m_scheduler != null)
+            return;
+
+        m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cache-warmup");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        m_scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                preload(cache);
+            }
+        });
+
+        if (m_interval > 0) {
+            m_scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    snapshot(cache.getMemoryCache());
+                }
+            }, m_interval, m_interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Writes the hot set of memory to the snapshot file.
+     * @param memory
+     */
+    public void snapshot(MemoryCache memory) {
+        List<MemoryCache.HotKey> hotset = memory.hotSet(m_maxEntries);
+        if (hotset.isEmpty())
+            return;
+
+        File tmp = new File(m_snapshotFile.getPath() + ".tmp");
+        try {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                for (MemoryCache.HotKey k : hotset) {
+                    out.write(k.m_hits + " " + k.m_url);
+                    out.newLine();
+                }
+            }
+            finally {
+                out.close();
+            }
+
+            m_snapshotFile.delete();
+            if (!tmp.renameTo(m_snapshotFile))
+                System.err.println("[!] Failed to replace hot set snapshot " + m_snapshotFile);
+        }
+        catch (IOException e) {
+            System.err.println("[!] Failed to write hot set snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the entries listed in the snapshot file from the database into
+     * the memory tier, most accessed first.
+     * @param cache
+     */
+    public void preload(ProxyCache cache) {
+        List<MemoryCache.HotKey> hotset = readSnapshot();
+        m_planned.set(hotset.size());
+        log.info("Cache warmup: preloading " + hotset.size() + " entries");
+
+        for (MemoryCache.HotKey k : hotset) {
+            ProxyCache.CachedItem item = cache.retrievePersistent(k.m_url);
+            if (item.m_headers.length > 0) {
+                cache.getMemoryCache().put(k.m_url, item, k.m_hits);
+                m_loaded.incrementAndGet();
+            }
+            else
+                m_failed.incrementAndGet();
+
+            long progress = m_loaded.get() + m_failed.get();
+            if (progress % PROGRESS_STEP == 0)
+                log.info("Cache warmup: " + progress + "/" + hotset.size() + " entries processed");
+        }
+
+        m_done = true;
+        log.info("Cache warmup done: " + m_loaded.get() + " loaded, " + m_failed.get() + " failed");
+    }
+
+    public long getPlannedCount() {
+        return m_planned.get();
+    }
+
+    public long getLoadedCount() {
+        return m_loaded.get();
+    }
+
+    public long getFailedCount() {
+        return m_failed.get();
+    }
+
+    public boolean isDone() {
+        return m_done;
+    }
+
+    private List<MemoryCache.HotKey> readSnapshot() {
+        List<MemoryCache.HotKey> res = new ArrayList<MemoryCache.HotKey>();
+        if (!m_snapshotFile.exists())
+            return res;
+
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(m_snapshotFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null && res.size() < m_maxEntries) {
+                    int sep = line.indexOf(' ');
+                    if (sep <= 0)
+                        continue;
+                    try {
+                        res.add(new MemoryCache.HotKey(line.substring(sep + 1),
+                                                       Integer.parseInt(line.substring(0, sep))));
+                    }
+                    catch (NumberFormatException ignore) {}
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            System.err.println("[!] Failed to read hot set snapshot: " + e.getMessage());
+        }
+
+        return res;
+    }
+}
@@ -0,0 +1,145 @@
+package il.technion.cs236369.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Streams the body of a target server response to the client, and keeps a
+ * copy of it on the fly for the cache. If the body grows beyond the
+ * configured cap the copy is dropped, but the client still gets the whole
+ * body. Works the same for chunked and content-length delimited bodies.
+ */
+public class CachingEntity extends HttpEntityWrapper {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Notified once the whole body was read, if it fits in the cap.
+     */
+    public interface BodyListener {
+        void bodyComplete(byte[] body);
+    }
+
+    private final int             m_cap;
+    private BodyListener          m_listener;
+    private ByteArrayOutputStream m_capture;
+    private InputStream           m_content;
+    private boolean               m_eof;
+    private boolean               m_writing;
+    private boolean               m_notified;
+
+    /**
+     * @param entity the entity of the target server response
+     * @param cap maximal size of a body kept for the cache
+     */
+    public CachingEntity(HttpEntity entity, int cap) {
+        super(entity);
+        m_cap = cap;
+    }
+
+    /**
+     * Starts keeping a copy of the body for listener. Must be called before
+     * the body is read.
+     * @param listener
+     */
+    public void captureBody(BodyListener listener) {
+        long len = wrappedEntity.getContentLength();
+        if (len > m_cap)
+            return;
+
+        m_listener = listener;
+        m_capture = new ByteArrayOutputStream(len >= 0 ? (int) len : BUFFER_SIZE);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (m_content == null)
+            m_content = new TeeInputStream(wrappedEntity.getContent());
+
+        return m_content;
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        InputStream in = getContent();
+        m_writing = true;
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                outstream.write(buf, 0, n);
+            outstream.flush();
+        }
+        finally {
+            m_writing = false;
+            in.close();
+        }
+
+        // the client already has the body, store it now
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        if (!m_eof || m_notified || m_listener == null || m_capture == null)
+            return;
+
+        m_notified = true;
+        m_listener.bodyComplete(m_capture.toByteArray());
+        m_capture = null;
+    }
+
+    private class TeeInputStream extends FilterInputStream {
+        TeeInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1)
+                reachedEof();
+            else if (m_capture != null)
+                capture(new byte[] { (byte) b }, 0, 1);
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1)
+                reachedEof();
+            else if (m_capture != null)
+                capture(b, off, n);
+
+            return n;
+        }
+
+        private void capture(byte[] b, int off, int len) {
+            if (m_capture.size() + len > m_cap) {
+                // too big for the cache, keep streaming to the client only
+                m_capture = null;
+                return;
+            }
+
+            m_capture.write(b, off, len);
+        }
+
+        private void reachedEof() {
+            m_eof = true;
+            if (!m_writing)
+                notifyListener();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package il.technion.cs236369.proxy;
+
+/**
+ * Health of a single target server. Outcomes of the last requests are kept
+ * in a sliding window; once enough of them failed (errors, timeouts or calls
+ * slower than the slow threshold) the breaker opens and requests to the
+ * target fail fast. After the open period a single trial request is let
+ * through (half open): its success closes the breaker, its failure opens it
+ * again. A trial whose outcome wasn't reported within another open period
+ * is given up, and the next request is let through as a new trial.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final byte SUCCESS = 0;
+    private static final byte ERROR   = 1;
+    private static final byte TIMEOUT = 2;
+    private static final byte SLOW    = 3;
+
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final String m_name;
+    private final int    m_minRequests;
+    private final double m_failureRatio;
+    private final long   m_openMillis;
+    private final long   m_slowMillis;
+
+    private final byte[] m_window;
+    private int          m_next;
+    private int          m_count;
+    private int          m_failures;
+
+    private State   m_state;
+    private long    m_openedAt;
+    private boolean m_trialInFlight;
+    private long    m_trialStartedAt;
+    private boolean m_lastFailureTimeout;
+
+    private long    m_errors;
+    private long    m_timeouts;
+    private long    m_rejected;
+    private double  m_latencyEwma;
+
+    /**
+     * @param name the target, for reporting
+     * @param windowSize number of recent requests considered
+     * @param minRequests requests needed in the window before the breaker may open
+     * @param failureRatio failed fraction of the window that opens the breaker
+     * @param openMillis how long the breaker stays open before a trial
+     * @param slowMillis requests slower than this count as failures, 0 to disable
+     */
+    public CircuitBreaker(String name, int windowSize, int minRequests, double failureRatio,
+                          long openMillis, long slowMillis) {
+        m_name = name;
+        m_window = new byte[Math.max(windowSize, 1)];
+        m_minRequests = minRequests;
+        m_failureRatio = failureRatio;
+        m_openMillis = openMillis;
+        m_slowMillis = slowMillis;
+        m_state = State.CLOSED;
+    }
+
+    /**
+     * @return true if a request may be sent to the target now. If so, its
+     * outcome must be reported with one of the record methods.
+     */
+    public synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (m_state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (now - m_openedAt < m_openMillis)
+                break;
+            m_state = State.HALF_OPEN;
+            m_trialInFlight = true;
+            m_trialStartedAt = now;
+            return true;
+        case HALF_OPEN:
+            if (m_trialInFlight && now - m_trialStartedAt < m_openMillis)
+                break;
+            m_trialInFlight = true;
+            m_trialStartedAt = now;
+            return true;
+        }
+
+        ++m_rejected;
+        return false;
+    }
+
+    /**
+     * @param millis time until the response header arrived
+     */
+    public synchronized void recordSuccess(long millis) {
+        m_latencyEwma = m_count == 0 && m_latencyEwma == 0
+            ? millis
+            : LATENCY_WEIGHT * millis + (1 - LATENCY_WEIGHT) * m_latencyEwma;
+
+        record(m_slowMillis > 0 && millis > m_slowMillis ? SLOW : SUCCESS);
+    }
+
+    public synchronized void recordError() {
+        ++m_errors;
+        m_lastFailureTimeout = false;
+        record(ERROR);
+    }
+
+    public synchronized void recordTimeout() {
+        ++m_timeouts;
+        m_lastFailureTimeout = true;
+        record(TIMEOUT);
+    }
+
+    /**
+     * Reports a request that ended without saying anything about the
+     * target's health, so a half open breaker may try again.
+     */
+    public synchronized void recordNothing() {
+        m_trialInFlight = false;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    public synchronized State getState() {
+        return m_state;
+    }
+
+    /**
+     * @return true if the last failure was a timeout (reported as 504 rather than 502)
+     */
+    public synchronized boolean isLastFailureTimeout() {
+        return m_lastFailureTimeout;
+    }
+
+    public synchronized long getErrorCount() {
+        return m_errors;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return m_timeouts;
+    }
+
+    public synchronized long getRejectedCount() {
+        return m_rejected;
+    }
+
+    public synchronized double getLatencyEwma() {
+        return m_latencyEwma;
+    }
+
+    /**
+     * @return failed fraction of the requests in the window
+     */
+    public synchronized double getFailureRate() {
+        return m_count == 0 ? 0 : (double) m_failures / m_count;
+    }
+
+    private void record(byte outcome) {
+        if (m_count == m_window.length) {
+            if (m_window[m_next] != SUCCESS)
+                --m_failures;
+        }
+        else
+            ++m_count;
+
+        m_window[m_next] = outcome;
+        m_next = (m_next + 1) % m_window.length;
+        if (outcome != SUCCESS)
+            ++m_failures;
+
+        if (m_state == State.HALF_OPEN) {
+            m_trialInFlight = false;
+            if (outcome == SUCCESS)
+                close();
+            else
+                open();
+        }
+        else if (m_state == State.CLOSED && m_count >= m_minRequests
+                 && getFailureRate() >= m_failureRatio)
+            open();
+    }
+
+    private void open() {
+        m_state = State.OPEN;
+        m_openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        m_state = State.CLOSED;
+        m_count = 0;
+        m_next = 0;
+        m_failures = 0;
+    }
+}
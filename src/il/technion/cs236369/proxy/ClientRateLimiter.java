@@ -0,0 +1,249 @@
+package il.technion.cs236369.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Limits the requests per second and the bytes per second of every client
+ * address with a pair of token buckets, so a single client can't use up the
+ * proxy. A client may spend a burst of a few seconds' worth at once.
+ *
+ * A bucket is kept as the System.nanoTime() at which it will be full again,
+ * and updated with a compare-and-set, so requests never lock. Bytes are only
+ * known once a request is done: they are charged afterwards, and a client
+ * that went over its byte rate is refused until it paid the excess off.
+ *
+ * Buckets that are full again are dropped (they'd start full anyway), every
+ * SWEEP_INTERVAL and whenever more than the maximum number of clients are
+ * tracked. Clients in the allowlist are never limited.
+ */
+public class ClientRateLimiter {
+
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * The buckets of a client: when each will be full again.
+     */
+    private static class Bucket {
+        final AtomicLong m_requestsFullAt;
+        final AtomicLong m_bytesFullAt;
+
+        Bucket(long now) {
+            m_requestsFullAt = new AtomicLong(now);
+            m_bytesFullAt = new AtomicLong(now);
+        }
+
+        boolean isFull(long now) {
+            return m_requestsFullAt.get() - now <= 0 && m_bytesFullAt.get() - now <= 0;
+        }
+    }
+
+    private final ConcurrentHashMap<InetAddress, Bucket> m_buckets =
+        new ConcurrentHashMap<InetAddress, Bucket>();
+
+    private final double        m_nanosPerRequest;
+    private final double        m_nanosPerByte;
+    private final long          m_burstNanos;
+    private final int           m_maxClients;
+    private final List<byte[]>  m_allowed = new ArrayList<byte[]>();
+    private final List<Integer> m_allowedBits = new ArrayList<Integer>();
+    private final AtomicLong    m_lastSweep = new AtomicLong(System.nanoTime());
+    private final AtomicLong    m_rejected = new AtomicLong();
+
+    /**
+     * @param requestRate requests per second a client may send, 0 for unlimited
+     * @param byteRate bytes per second a client may exchange, 0 for unlimited
+     * @param burstSeconds seconds' worth of requests and bytes a client may spend at once
+     * @param maxClients clients tracked at most
+     * @param allow comma separated addresses or address/bits blocks that aren't limited
+     */
+    @Inject
+    ClientRateLimiter(@Named("httproxy.client.rate.requests") double requestRate,
+                      @Named("httproxy.client.rate.bytes") double byteRate,
+                      @Named("httproxy.client.rate.burst") double burstSeconds,
+                      @Named("httproxy.client.rate.max.clients") int maxClients,
+                      @Named("httproxy.client.rate.allow") String allow) {
+        m_nanosPerRequest = requestRate > 0 ? 1e9 / requestRate : 0;
+        m_nanosPerByte = byteRate > 0 ? 1e9 / byteRate : 0;
+        m_burstNanos = (long) (Math.max(burstSeconds, 0) * 1e9);
+        m_maxClients = Math.max(maxClients, 1);
+
+        for (String entry : allow.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0)
+                continue;
+
+            int slash = entry.indexOf('/');
+            byte[] address;
+            try {
+                address = InetAddress.getByName(slash >= 0 ? entry.substring(0, slash) : entry).getAddress();
+            }
+            catch (UnknownHostException e) {
+                System.err.println("[!] Ignoring unknown address in the rate limit allowlist: " + entry);
+                continue;
+            }
+            int bits = slash >= 0 ? Integer.parseInt(entry.substring(slash + 1).trim()) : address.length * 8;
+            m_allowed.add(address);
+            m_allowedBits.add(Math.min(bits, address.length * 8));
+        }
+    }
+
+    /**
+     * Takes a request token of client.
+     * @param client
+     * @return 0 if the request may be handled, otherwise the nanoseconds
+     *         until the client may send another
+     */
+    public long admit(InetAddress client) {
+        if (!isEnabled() || isAllowed(client))
+            return 0;
+
+        long now = System.nanoTime();
+        long lastSweep = m_lastSweep.get();
+        if (now - lastSweep > SWEEP_INTERVAL && m_lastSweep.compareAndSet(lastSweep, now))
+            sweep(now);
+
+        Bucket bucket = getBucket(client, now);
+        long wait = 0;
+        if (m_nanosPerByte > 0)
+            wait = bucket.m_bytesFullAt.get() - now - m_burstNanos;
+        if (wait <= 0 && m_nanosPerRequest > 0)
+            wait = take(bucket.m_requestsFullAt, now, (long) m_nanosPerRequest);
+        if (wait <= 0)
+            return 0;
+
+        m_rejected.incrementAndGet();
+        return wait;
+    }
+
+    /**
+     * Charges client for the bytes of a request it sent or received.
+     * @param client
+     * @param bytes
+     */
+    public void charge(InetAddress client, long bytes) {
+        if (m_nanosPerByte == 0 || bytes <= 0 || isAllowed(client))
+            return;
+
+        long now = System.nanoTime();
+        AtomicLong fullAt = getBucket(client, now).m_bytesFullAt;
+        long cost = (long) (bytes * m_nanosPerByte);
+        while (true) {
+            long current = fullAt.get();
+            if (fullAt.compareAndSet(current, (current - now > 0 ? current : now) + cost))
+                return;
+        }
+    }
+
+    /**
+     * @return number of requests refused since startup
+     */
+    public long getRejectedCount() {
+        return m_rejected.get();
+    }
+
+    /**
+     * @return number of clients whose buckets are tracked
+     */
+    public int getClientCount() {
+        return m_buckets.size();
+    }
+
+    private boolean isEnabled() {
+        return m_nanosPerRequest > 0 || m_nanosPerByte > 0;
+    }
+
+    /**
+     * Takes cost from a bucket if that doesn't overdraw it.
+     * @param fullAt
+     * @param now
+     * @param cost
+     * @return 0 if taken, otherwise the nanoseconds until it can be
+     */
+    private long take(AtomicLong fullAt, long now, long cost) {
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + cost;
+            long wait = next - now - Math.max(m_burstNanos, cost);
+            if (wait > 0)
+                return wait;
+            if (fullAt.compareAndSet(current, next))
+                return 0;
+        }
+    }
+
+    private Bucket getBucket(InetAddress client, long now) {
+        Bucket bucket = m_buckets.get(client);
+        if (bucket != null)
+            return bucket;
+
+        if (m_buckets.size() >= m_maxClients)
+            sweep(now);
+        bucket = new Bucket(now);
+        Bucket existing = m_buckets.putIfAbsent(client, bucket);
+        return existing != null ? existing : bucket;
+    }
+
+    /**
+     * Drops the buckets that are full again, and if there are still too
+     * many, any bucket (whose client then starts over with a full one).
+     */
+    private void sweep(long now) {
+        Iterator<Bucket> it = m_buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isFull(now))
+                it.remove();
+        }
+
+        it = m_buckets.values().iterator();
+        while (m_buckets.size() >= m_maxClients && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private boolean isAllowed(InetAddress client) {
+        if (m_allowed.isEmpty())
+            return false;
+
+        byte[] address = client.getAddress();
+        for (int i = 0; i < m_allowed.size(); i++) {
+            if (matches(address, m_allowed.get(i), m_allowedBits.get(i)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param address
+     * @param block
+     * @param bits length of the prefix of block that is compared
+     * @return true if address is within block
+     */
+    private static boolean matches(byte[] address, byte[] block, int bits) {
+        if (address.length != block.length)
+            return false;
+
+        int i = 0;
+        for (; bits >= 8; bits -= 8, i++) {
+            if (address[i] != block[i])
+                return false;
+        }
+        if (bits <= 0)
+            return true;
+
+        int mask = 0xFF << (8 - bits);
+        return (address[i] & mask) == (block[i] & mask);
+    }
+}
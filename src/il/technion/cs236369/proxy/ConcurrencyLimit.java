@@ -0,0 +1,228 @@
+package il.technion.cs236369.proxy;
+
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Bounds the number of requests handled at once, and the number of accepted
+ * connections waiting for their turn; connections that don't fit in the
+ * queue or wait in it for too long are shed (answered 503). The limit
+ * adapts to the observed latency (AIMD): while requests finish within the
+ * target latency and the limit is used up, it grows by one per limit's
+ * worth of requests; when they take longer it's cut by a fifth, at most
+ * once per target latency, so a single spike doesn't collapse it. It stays
+ * between the minimum and the maximum, and is fixed at the maximum when not
+ * adaptive.
+ *
+ * A CONNECT tunnel outlives its request (and keeps two threads of its own),
+ * so open tunnels are counted against a cap of their own; CONNECTs beyond it
+ * are answered 503 too.
+ */
+public class ConcurrencyLimit {
+
+    private static final double BACKOFF = 0.8;
+
+    private final int     m_min;
+    private final int     m_max;
+    private final boolean m_adaptive;
+    private final long    m_targetNanos;
+    private final long    m_queueTimeoutMillis;
+    private final int     m_retryAfter;
+    private final int     m_maxTunnels;
+
+    private double m_limit;
+    private int    m_inFlight;
+    private long   m_lastBackoff;
+
+    private final BlockingQueue<Pending> m_queue;
+    private final AtomicLong             m_shed = new AtomicLong();
+    private final AtomicInteger          m_tunnels = new AtomicInteger();
+    private final AtomicLong             m_tunnelsRefused = new AtomicLong();
+
+    /**
+     * An accepted client connection waiting for its turn.
+     */
+    public static class Pending {
+        public final Socket m_socket;
+        public final long   m_acceptedAt;
+
+        public Pending(Socket socket, long acceptedAt) {
+            m_socket = socket;
+            m_acceptedAt = acceptedAt;
+        }
+    }
+
+    /**
+     * @param min the limit never drops below this
+     * @param max requests handled at once at most, also the number of worker threads
+     * @param adaptive false to keep the limit at max
+     * @param targetMillis requests slower than this lower the limit
+     * @param queueSize accepted connections that may wait for a worker
+     * @param queueTimeoutMillis connections that waited longer are answered 503
+     * @param retryAfter seconds clients are told to wait when answered 503
+     * @param maxTunnels CONNECT tunnels open at once at most
+     */
+    @Inject
+    ConcurrencyLimit(@Named("httproxy.limit.min") int min,
+                     @Named("httproxy.limit.max") int max,
+                     @Named("httproxy.limit.adaptive") boolean adaptive,
+                     @Named("httproxy.limit.latency.target") long targetMillis,
+                     @Named("httproxy.limit.queue") int queueSize,
+                     @Named("httproxy.limit.queue.timeout") long queueTimeoutMillis,
+                     @Named("httproxy.limit.retry.after") int retryAfter,
+                     @Named("httproxy.limit.tunnels") int maxTunnels) {
+        m_max = Math.max(max, 1);
+        m_min = Math.min(Math.max(min, 1), m_max);
+        m_adaptive = adaptive;
+        m_targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        m_queue = new ArrayBlockingQueue<Pending>(Math.max(queueSize, 1));
+        m_queueTimeoutMillis = queueTimeoutMillis;
+        m_retryAfter = retryAfter;
+        m_maxTunnels = Math.max(maxTunnels, 0);
+        m_limit = m_adaptive ? Math.max(m_min, m_max / 2) : m_max;
+        m_lastBackoff = System.nanoTime() - m_targetNanos;
+    }
+
+    /**
+     * Queues an accepted connection. Never blocks.
+     * @param socket
+     * @param acceptedAt System.nanoTime() when the connection was accepted
+     * @return false if the queue is full, and the connection should be shed
+     */
+    public boolean offer(Socket socket, long acceptedAt) {
+        return m_queue.offer(new Pending(socket, acceptedAt));
+    }
+
+    /**
+     * @return the connection that waited the longest, once there is one
+     * @throws InterruptedException
+     */
+    public Pending take() throws InterruptedException {
+        return m_queue.take();
+    }
+
+    /**
+     * Waits until the request of a queued connection may be handled.
+     * @param pending
+     * @return System.nanoTime() when the request was admitted (to pass to
+     *         release), -1 if the connection waited too long and should be shed
+     * @throws InterruptedException
+     */
+    public synchronized long acquire(Pending pending) throws InterruptedException {
+        long deadline = pending.m_acceptedAt + TimeUnit.MILLISECONDS.toNanos(m_queueTimeoutMillis);
+        while (m_inFlight >= (int) m_limit) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return -1;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        ++m_inFlight;
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends a request admitted by acquire, and adapts the limit to how long it took.
+     * @param admittedAt as returned by acquire
+     */
+    public synchronized void release(long admittedAt) {
+        long now = System.nanoTime();
+        boolean saturated = m_inFlight >= (int) m_limit;
+        --m_inFlight;
+
+        if (m_adaptive) {
+            if (now - admittedAt > m_targetNanos) {
+                if (now - m_lastBackoff > m_targetNanos) {
+                    m_limit = Math.max(m_min, m_limit * BACKOFF);
+                    m_lastBackoff = now;
+                }
+            }
+            else if (saturated) {
+                m_limit = Math.min(m_max, m_limit + 1 / m_limit);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Counts a connection answered 503 without being handled.
+     */
+    public void countShed() {
+        m_shed.incrementAndGet();
+    }
+
+    /**
+     * Takes a slot for a CONNECT tunnel, to be given back with releaseTunnel
+     * once the tunnel is closed or won't be opened after all.
+     * @return false if the maximum number of tunnels is open already
+     */
+    public boolean acquireTunnel() {
+        while (true) {
+            int tunnels = m_tunnels.get();
+            if (tunnels >= m_maxTunnels) {
+                m_tunnelsRefused.incrementAndGet();
+                return false;
+            }
+            if (m_tunnels.compareAndSet(tunnels, tunnels + 1))
+                return true;
+        }
+    }
+
+    public void releaseTunnel() {
+        m_tunnels.decrementAndGet();
+    }
+
+    public synchronized int getLimit() {
+        return (int) m_limit;
+    }
+
+    public synchronized int getInFlight() {
+        return m_inFlight;
+    }
+
+    public int getMax() {
+        return m_max;
+    }
+
+    /**
+     * @return number of accepted connections waiting for a worker
+     */
+    public int getQueued() {
+        return m_queue.size();
+    }
+
+    public int getRetryAfter() {
+        return m_retryAfter;
+    }
+
+    /**
+     * @return number of connections answered 503 because the proxy was overloaded
+     */
+    public long getShedCount() {
+        return m_shed.get();
+    }
+
+    /**
+     * @return number of CONNECT tunnels holding a slot
+     */
+    public int getTunnels() {
+        return m_tunnels.get();
+    }
+
+    public int getMaxTunnels() {
+        return m_maxTunnels;
+    }
+
+    /**
+     * @return number of CONNECTs answered 503 because too many tunnels were open
+     */
+    public long getTunnelsRefusedCount() {
+        return m_tunnelsRefused.get();
+    }
+}
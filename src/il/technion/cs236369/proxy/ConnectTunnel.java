@@ -0,0 +1,196 @@
+package il.technion.cs236369.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Relays raw bytes between a client and a target server after a CONNECT
+ * request was accepted. Each direction is copied by its own thread with its
+ * own buffer; the tunnel is closed when either side closes or when no bytes
+ * moved in either direction for the idle timeout. The tunnel's slot of the
+ * concurrency limit is given back once it's closed.
+ */
+public class ConnectTunnel {
+    private static Logger log = Logger.getLogger(HttpProxy.class.getName());
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final AtomicInteger    s_ids       = new AtomicInteger();
+    private static final AtomicLong       s_totalUp   = new AtomicLong();
+    private static final AtomicLong       s_totalDown = new AtomicLong();
+    private static final Set<ConnectTunnel> s_active  =
+        Collections.newSetFromMap(new ConcurrentHashMap<ConnectTunnel, Boolean>());
+
+    private final int        m_id;
+    private final String     m_target;
+    private final Socket     m_client;
+    private final Socket     m_server;
+    private final int        m_idleTimeout;
+    private final ConcurrencyLimit m_limit;
+    private final AtomicLong m_bytesUp      = new AtomicLong();
+    private final AtomicLong m_bytesDown    = new AtomicLong();
+    private final AtomicLong m_lastActivity = new AtomicLong();
+    private final AtomicInteger m_running   = new AtomicInteger();
+
+    /**
+     * @param client the client socket, after the 200 response was sent on it
+     * @param server the connected socket to the target server
+     * @param target host:port of the target, for logging
+     * @param idleTimeout milliseconds without traffic before the tunnel is closed
+     * @param limit holds the tunnel's slot
+     */
+    public ConnectTunnel(Socket client, Socket server, String target, int idleTimeout,
+                         ConcurrencyLimit limit) {
+        m_id = s_ids.incrementAndGet();
+        m_client = client;
+        m_server = server;
+        m_target = target;
+        m_idleTimeout = idleTimeout;
+        m_limit = limit;
+    }
+
+    /**
+     * Starts relaying in both directions. Returns immediately.
+     * @throws IOException if the sockets can't be set up for relaying; the
+     *         tunnel is closed then
+     */
+    public void start() throws IOException {
+        m_lastActivity.set(System.currentTimeMillis());
+        m_running.set(2);
+        s_active.add(this);
+        try {
+            // wake up every so often to check whether the other direction is active
+            int tick = Math.max(m_idleTimeout / 4, 100);
+            m_client.setSoTimeout(tick);
+            m_server.setSoTimeout(tick);
+            m_client.setTcpNoDelay(true);
+            m_server.setTcpNoDelay(true);
+
+            InputStream clientIn = m_client.getInputStream();
+            OutputStream clientOut = m_client.getOutputStream();
+            InputStream serverIn = m_server.getInputStream();
+            OutputStream serverOut = m_server.getOutputStream();
+            log.info("Tunnel #" + m_id + " to " + m_target + " opened");
+
+            startRelay("tunnel-" + m_id + "-up", clientIn, serverOut, m_server, m_bytesUp, s_totalUp);
+            startRelay("tunnel-" + m_id + "-down", serverIn, clientOut, m_client, m_bytesDown, s_totalDown);
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public String getTarget() {
+        return m_target;
+    }
+
+    /**
+     * @return bytes sent from the client to the target server
+     */
+    public long getBytesUp() {
+        return m_bytesUp.get();
+    }
+
+    /**
+     * @return bytes sent from the target server to the client
+     */
+    public long getBytesDown() {
+        return m_bytesDown.get();
+    }
+
+    public static Set<ConnectTunnel> getActiveTunnels() {
+        return Collections.unmodifiableSet(s_active);
+    }
+
+    public static long getTotalBytesUp() {
+        return s_totalUp.get();
+    }
+
+    public static long getTotalBytesDown() {
+        return s_totalDown.get();
+    }
+
+    private void startRelay(String name, final InputStream in, final OutputStream out,
+                            final Socket outSock, final AtomicLong counter, final AtomicLong total) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                relay(in, out, outSock, counter, total);
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void relay(InputStream in, OutputStream out, Socket outSock,
+                       AtomicLong counter, AtomicLong total) {
+        byte[] buf = new byte[BUFFER_SIZE];
+        try {
+            while (true) {
+                int n;
+                try {
+                    n = in.read(buf);
+                }
+                catch (SocketTimeoutException e) {
+                    if (System.currentTimeMillis() - m_lastActivity.get() >= m_idleTimeout) {
+                        log.info("Tunnel #" + m_id + " idle, closing");
+                        break;
+                    }
+                    continue;
+                }
+
+                if (n == -1) {
+                    // half close so the other direction can drain
+                    try {
+                        outSock.shutdownOutput();
+                    }
+                    catch (IOException ignore) {}
+                    break;
+                }
+
+                out.write(buf, 0, n);
+                out.flush();
+                counter.addAndGet(n);
+                total.addAndGet(n);
+                m_lastActivity.set(System.currentTimeMillis());
+            }
+        }
+        catch (IOException e) {
+            // either side reset the connection
+        }
+        finally {
+            // after a half close keep the tunnel until the other direction is done too
+            boolean halfClosed = outSock.isOutputShutdown();
+            if (m_running.decrementAndGet() == 0 || !halfClosed)
+                close();
+        }
+    }
+
+    private void close() {
+        if (!s_active.remove(this))
+            return;
+        m_limit.releaseTunnel();
+
+        try {
+            m_client.close();
+        }
+        catch (IOException ignore) {}
+        try {
+            m_server.close();
+        }
+        catch (IOException ignore) {}
+
+        log.info("Tunnel #" + m_id + " to " + m_target + " closed, " + m_bytesUp.get() +
+                 " bytes up, " + m_bytesDown.get() + " bytes down");
+    }
+}
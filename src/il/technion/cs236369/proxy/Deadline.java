@@ -0,0 +1,60 @@
+package il.technion.cs236369.proxy;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * The time by which handling of a request must be done. Every blocking step
+ * of the request (connecting, waiting for the target, cache database calls)
+ * bounds its own timeout by what's left of the deadline.
+ */
+public class Deadline {
+
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private final long m_expires; // System.currentTimeMillis() based
+
+    private Deadline(long expires) {
+        m_expires = expires;
+    }
+
+    /**
+     * @param millis time budget, 0 or less for no deadline
+     * @return a deadline millis from now
+     */
+    public static Deadline after(long millis) {
+        if (millis <= 0)
+            return NONE;
+
+        return new Deadline(System.currentTimeMillis() + millis);
+    }
+
+    /**
+     * @return milliseconds left, Long.MAX_VALUE if there is no deadline
+     */
+    public long remaining() {
+        if (this == NONE)
+            return Long.MAX_VALUE;
+
+        return Math.max(m_expires - System.currentTimeMillis(), 0);
+    }
+
+    public boolean isExpired() {
+        return remaining() == 0;
+    }
+
+    /**
+     * @param timeout a timeout in milliseconds, 0 for infinite
+     * @return timeout shortened to the remaining time
+     * @throws SocketTimeoutException if the deadline already passed
+     */
+    public int bound(int timeout) throws SocketTimeoutException {
+        long left = remaining();
+        if (left == 0)
+            throw new SocketTimeoutException("Request deadline exceeded");
+
+        if (timeout <= 0)
+            return left == Long.MAX_VALUE ? 0 : (int) Math.min(left, Integer.MAX_VALUE);
+
+        return (int) Math.min(timeout, left);
+    }
+}
@@ -0,0 +1,246 @@
+package il.technion.cs236369.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Remembers how the host names connected to resolved, both successfully
+ * (positive TTL) and not (negative TTL). Names that are in use are
+ * re-resolved in the background shortly before they expire.
+ *
+ * Connections are opened by host name through the configured SocketFactory,
+ * which may route, authenticate or log by name, so the factory resolves the
+ * name itself and the cache never does a lookup on the request path: the
+ * entries are filled by the connects (see TargetConnector). Only the
+ * negative entries change how a request goes: a name that didn't resolve
+ * on a connect, or on a background refresh, fails fast until the entry
+ * expires. The positive entries only feed the metrics and tell which names
+ * are hot.
+ */
+public class DnsCache {
+    private static Logger log = Logger.getLogger(HttpProxy.class.getName());
+
+    private static class Entry {
+        final String   m_address; // null for a failed resolution
+        final long     m_expires;
+        volatile boolean m_used;
+
+        Entry(String address, long expires) {
+            m_address = address;
+            m_expires = expires;
+            m_used = false;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> m_entries = new ConcurrentHashMap<String, Entry>();
+    private final long m_ttl;
+    private final long m_negativeTtl;
+    private final int  m_maxEntries;
+    private ScheduledExecutorService m_refresher;
+
+    private final AtomicLong m_hits         = new AtomicLong();
+    private final AtomicLong m_negativeHits = new AtomicLong();
+    private final AtomicLong m_misses       = new AtomicLong();
+    private final AtomicLong m_failures     = new AtomicLong();
+    private final AtomicLong m_refreshes    = new AtomicLong();
+    private final AtomicLong m_lookupNanos  = new AtomicLong();
+
+    /**
+     * @param ttl seconds a resolved address is used
+     * @param negativeTtl seconds a failed resolution is remembered
+     * @param maxEntries maximal number of cached names
+     */
+    @Inject
+    DnsCache(@Named("httproxy.dns.ttl") int ttl,
+             @Named("httproxy.dns.negative.ttl") int negativeTtl,
+             @Named("httproxy.dns.max.entries") int maxEntries) {
+        m_ttl = TimeUnit.SECONDS.toMillis(ttl);
+        m_negativeTtl = TimeUnit.SECONDS.toMillis(negativeTtl);
+        m_maxEntries = maxEntries;
+    }
+
+    /**
+     * Starts refreshing hot names in the background.
+     */
+    public synchronized void start() {
+        if (m_refresher != null || m_ttl <= 0)
+            return;
+
+        m_refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "dns-refresh");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        final long period = Math.max(m_ttl / 4, 1000);
+        m_refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh(period);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called before connecting to host by name. Doesn't resolve host.
+     * @param host
+     * @throws UnknownHostException if host recently didn't resolve
+     */
+    public void check(String host) throws UnknownHostException {
+        Entry e = m_entries.get(host.toLowerCase(Locale.ENGLISH));
+        if (e == null || e.m_expires <= System.currentTimeMillis()) {
+            m_misses.incrementAndGet();
+            return;
+        }
+
+        e.m_used = true;
+        if (e.m_address == null) {
+            m_negativeHits.incrementAndGet();
+            throw new UnknownHostException(host);
+        }
+        m_hits.incrementAndGet();
+    }
+
+    /**
+     * Records the address a connect to host went to.
+     * @param host
+     * @param address may be null if unknown
+     */
+    public void resolved(String host, InetAddress address) {
+        if (address == null)
+            return;
+
+        String key = host.toLowerCase(Locale.ENGLISH);
+        Entry e = m_entries.get(key);
+        if (e == null || e.m_address == null || e.m_expires <= System.currentTimeMillis())
+            cache(key, new Entry(address.getHostAddress(), System.currentTimeMillis() + m_ttl));
+    }
+
+    /**
+     * Records that a connect to host failed because it didn't resolve.
+     * @param host
+     */
+    public void failed(String host) {
+        m_failures.incrementAndGet();
+        cache(host.toLowerCase(Locale.ENGLISH), new Entry(null, System.currentTimeMillis() + m_negativeTtl));
+    }
+
+    public long getHitCount() {
+        return m_hits.get();
+    }
+
+    public long getNegativeHitCount() {
+        return m_negativeHits.get();
+    }
+
+    public long getMissCount() {
+        return m_misses.get();
+    }
+
+    public long getFailureCount() {
+        return m_failures.get();
+    }
+
+    public long getRefreshCount() {
+        return m_refreshes.get();
+    }
+
+    /**
+     * @return total time the background refresh spent waiting for the
+     *         resolver, in nanoseconds
+     */
+    public long getLookupNanos() {
+        return m_lookupNanos.get();
+    }
+
+    public int size() {
+        return m_entries.size();
+    }
+
+    /**
+     * Resolves host with the system resolver and caches the result.
+     * @param host
+     * @return the new entry
+     * @throws UnknownHostException if resolution failed
+     */
+    private Entry lookup(String host) throws UnknownHostException {
+        long start = System.nanoTime();
+        try {
+            String address = InetAddress.getByName(host).getHostAddress();
+            Entry e = new Entry(address, System.currentTimeMillis() + m_ttl);
+            cache(host, e);
+            return e;
+        }
+        catch (UnknownHostException ex) {
+            m_failures.incrementAndGet();
+            cache(host, new Entry(null, System.currentTimeMillis() + m_negativeTtl));
+            throw ex;
+        }
+        finally {
+            m_lookupNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void cache(String host, Entry e) {
+        if (m_entries.size() >= m_maxEntries && !m_entries.containsKey(host)) {
+            removeExpired();
+            if (m_entries.size() >= m_maxEntries)
+                return;
+        }
+
+        m_entries.put(host, e);
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = m_entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().m_expires <= now)
+                it.remove();
+        }
+    }
+
+    /**
+     * Re-resolves names that were used since they were resolved and expire
+     * before the next refresh; drops expired names nobody used.
+     * @param period milliseconds until the next refresh
+     */
+    private void refresh(long period) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> me : m_entries.entrySet()) {
+            Entry e = me.getValue();
+            if (e.m_address == null || e.m_expires > now + period)
+                continue;
+
+            if (!e.m_used) {
+                if (e.m_expires <= now)
+                    m_entries.remove(me.getKey(), e);
+                continue;
+            }
+
+            try {
+                lookup(me.getKey());
+                m_refreshes.incrementAndGet();
+            }
+            catch (UnknownHostException ex) {
+                log.info("Background resolution of " + me.getKey() + " failed");
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package il.technion.cs236369.proxy;
+
+import java.util.BitSet;
+
+/**
+ * "Cache on second request": a url is admitted only if it was already seen
+ * since the last reset. Seen urls are kept in a bloom filter which is cleared
+ * once it holds as many keys as it was sized for, so old sightings age out.
+ */
+public class DoorkeeperAdmissionPolicy extends CacheAdmissionPolicy {
+
+    private static final int HASHES = 3;
+
+    private final BitSet m_bits;
+    private final int    m_nbits;
+    private final int    m_capacity;
+    private int          m_inserted;
+
+    public DoorkeeperAdmissionPolicy(int capacity) {
+        m_capacity = Math.max(capacity, 16);
+        // ~10 bits per key keeps false positives around 1% with 3 hashes
+        m_nbits = m_capacity * 10;
+        m_bits = new BitSet(m_nbits);
+        m_inserted = 0;
+    }
+
+    @Override
+    protected synchronized boolean shouldAdmit(String key) {
+        boolean seen = true;
+        for (int i = 0; i < HASHES; ++i) {
+            int idx = (hash(key, i) & Integer.MAX_VALUE) % m_nbits;
+            if (!m_bits.get(idx)) {
+                seen = false;
+                m_bits.set(idx);
+            }
+        }
+
+        if (!seen && ++m_inserted >= m_capacity) {
+            m_bits.clear();
+            m_inserted = 0;
+        }
+
+        return seen;
+    }
+}
@@ -0,0 +1,305 @@
+package il.technion.cs236369.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.net.SocketFactory;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.HTTP;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Sends requests to the configured origins over HTTP/2 with prior
+ * knowledge (h2c), all concurrent requests to an origin sharing a single
+ * connection. Responses are handed back as HTTP/1.1 responses whose entity
+ * streams the body of the HTTP/2 stream.
+ *
+ * Origins that turn out not to speak HTTP/2 are fetched over HTTP/1.1 for
+ * a while (execute returns null), as are requests with a body and requests
+ * while an origin's connection has no room for another stream.
+ */
+public class H2cClient {
+    private static Logger log = Logger.getLogger(HttpProxy.class.getName());
+
+    private static final long FALLBACK_MILLIS = 60000;
+
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<String>();
+    static {
+        CONNECTION_HEADERS.add("connection");
+        CONNECTION_HEADERS.add("keep-alive");
+        CONNECTION_HEADERS.add("proxy-connection");
+        CONNECTION_HEADERS.add("transfer-encoding");
+        CONNECTION_HEADERS.add("upgrade");
+        CONNECTION_HEADERS.add("te");
+        CONNECTION_HEADERS.add("host");
+        CONNECTION_HEADERS.add("expect");
+        CONNECTION_HEADERS.add("content-length");
+    }
+
+    private final Set<HttpHost>     m_origins = new HashSet<HttpHost>();
+    private final TargetConnector   m_connector;
+    private final ConcurrentHashMap<HttpHost, H2cConnection> m_connections =
+        new ConcurrentHashMap<HttpHost, H2cConnection>();
+    private final ConcurrentHashMap<HttpHost, FutureTask<H2cConnection>> m_connecting =
+        new ConcurrentHashMap<HttpHost, FutureTask<H2cConnection>>();
+    private final ConcurrentHashMap<HttpHost, Long> m_fallbackUntil = new ConcurrentHashMap<HttpHost, Long>();
+
+    private final AtomicLong m_requests  = new AtomicLong();
+    private final AtomicLong m_connects  = new AtomicLong();
+    private final AtomicLong m_fallbacks = new AtomicLong();
+
+    /**
+     * @param origins comma separated host:port of the origins known to speak h2c
+     * @param sockFact
+     * @param dns
+     */
+    @Inject
+    H2cClient(@Named("httproxy.h2c.origins") String origins, SocketFactory sockFact, DnsCache dns) {
+        for (String origin : origins.split(",")) {
+            origin = origin.trim().toLowerCase(Locale.ENGLISH);
+            if (origin.length() == 0)
+                continue;
+
+            int sep = origin.lastIndexOf(':');
+            if (sep > 0)
+                m_origins.add(new HttpHost(origin.substring(0, sep), Integer.parseInt(origin.substring(sep + 1))));
+            else
+                m_origins.add(new HttpHost(origin, 80));
+        }
+
+        m_connector = new TargetConnector(sockFact, dns);
+    }
+
+    /**
+     * @param target
+     * @param request
+     * @return true if request may be sent to target over HTTP/2
+     */
+    public boolean accepts(HttpHost target, HttpRequest request) {
+        if (!m_origins.contains(target) || request.getFirstHeader(HTTP.CONTENT_LEN) != null
+            || request.getFirstHeader(HTTP.TRANSFER_ENCODING) != null)
+            return false;
+
+        Long until = m_fallbackUntil.get(target);
+        return until == null || until < System.currentTimeMillis();
+    }
+
+    /**
+     * @param target
+     * @param request a request without a body, already prepared for forwarding
+     * @param connectTimeout milliseconds to connect if there is no connection yet
+     * @param headerTimeout milliseconds to wait for the response header
+     * @param readTimeout milliseconds to wait for data of the body
+     * @return the response, its entity streaming the body; null if it must be sent over HTTP/1.1
+     * @throws IOException if the request failed
+     */
+    public HttpResponse execute(HttpHost target, HttpRequest request,
+                                int connectTimeout, int headerTimeout, int readTimeout)
+        throws IOException
+    {
+        H2cConnection conn = connection(target, connectTimeout);
+        if (conn == null)
+            return null;
+
+        H2cConnection.Stream stream = conn.send(requestHeaders(target, request));
+        if (stream == null) {
+            m_fallbacks.incrementAndGet();
+            return null;
+        }
+        m_requests.incrementAndGet();
+
+        List<String[]> headers;
+        try {
+            headers = stream.awaitHeaders(headerTimeout);
+        }
+        catch (IOException e) {
+            stream.cancel();
+            throw e;
+        }
+        stream.setReadTimeout(readTimeout);
+
+        return toResponse(headers, stream.getBody());
+    }
+
+    public long getRequestCount() {
+        return m_requests.get();
+    }
+
+    public long getConnectCount() {
+        return m_connects.get();
+    }
+
+    /**
+     * @return number of open connections to h2c origins
+     */
+    public int getConnectionCount() {
+        int res = 0;
+        for (H2cConnection conn : m_connections.values()) {
+            if (!conn.isClosed())
+                ++res;
+        }
+        return res;
+    }
+
+    /**
+     * @return number of requests to h2c origins sent over HTTP/1.1 instead
+     */
+    public long getFallbackCount() {
+        return m_fallbacks.get();
+    }
+
+    /**
+     * Requests to a target without a connection wait for a single connect to
+     * it, and share its outcome; requests to other targets don't wait.
+     * @return the open connection to target, a new one if there is none,
+     * null if target doesn't speak HTTP/2
+     */
+    private H2cConnection connection(final HttpHost target, final int connectTimeout) throws IOException {
+        H2cConnection conn = m_connections.get(target);
+        if (conn != null && !conn.isClosed())
+            return conn;
+
+        FutureTask<H2cConnection> task = new FutureTask<H2cConnection>(new Callable<H2cConnection>() {
+            @Override
+            public H2cConnection call() throws IOException {
+                return connect(target, connectTimeout);
+            }
+        });
+        FutureTask<H2cConnection> connecting = m_connecting.putIfAbsent(target, task);
+        if (connecting == null) {
+            connecting = task;
+            try {
+                task.run();
+            }
+            finally {
+                m_connecting.remove(target, task);
+            }
+        }
+
+        try {
+            return connecting.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + target.toHostString());
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause.toString());
+        }
+    }
+
+    /**
+     * Opens a connection to target, unless another request just did.
+     * @return the connection, null if target doesn't speak HTTP/2
+     */
+    private H2cConnection connect(HttpHost target, int connectTimeout) throws IOException {
+        H2cConnection conn = m_connections.get(target);
+        if (conn != null && !conn.isClosed())
+            return conn;
+
+        Socket sock = m_connector.connect(target.getHostName(), target.getPort(), connectTimeout);
+        try {
+            m_connects.incrementAndGet();
+            conn = new H2cConnection(sock, target.toHostString(), connectTimeout);
+        }
+        catch (IOException e) {
+            log.info(target.toHostString() + " doesn't speak h2c (" + e.getMessage() + "), using HTTP/1.1");
+            try {
+                sock.close();
+            }
+            catch (IOException ignore) {}
+            m_fallbackUntil.put(target, System.currentTimeMillis() + FALLBACK_MILLIS);
+            m_fallbacks.incrementAndGet();
+            return null;
+        }
+
+        m_connections.put(target, conn);
+        return conn;
+    }
+
+    private static List<String[]> requestHeaders(HttpHost target, HttpRequest request) {
+        URI uri = URI.create(request.getRequestLine().getUri());
+        String path = uri.getRawPath();
+        if (path == null || path.length() == 0)
+            path = "/";
+        if (uri.getRawQuery() != null)
+            path += "?" + uri.getRawQuery();
+
+        List<String[]> res = new ArrayList<String[]>();
+        res.add(new String[] { ":method", request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH) });
+        res.add(new String[] { ":scheme", "http" });
+        res.add(new String[] { ":authority", target.toHostString() });
+        res.add(new String[] { ":path", path });
+        for (Header h : request.getAllHeaders()) {
+            String name = h.getName().toLowerCase(Locale.ENGLISH);
+            if (!CONNECTION_HEADERS.contains(name))
+                res.add(new String[] { name, h.getValue() });
+        }
+        return res;
+    }
+
+    private static HttpResponse toResponse(List<String[]> headers, InputStream body) throws IOException {
+        int status = -1;
+        long length = -1;
+        for (String[] h : headers) {
+            if (h[0].equals(":status"))
+                status = parseNumber(h[1]);
+            else if (h[0].equals("content-length"))
+                length = parseNumber(h[1]);
+        }
+        if (status < 200)
+            throw new IOException("HTTP/2 response without a valid status");
+
+        BasicHttpResponse response = new BasicHttpResponse(
+            HttpVersion.HTTP_1_1, status, EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.ENGLISH));
+        for (String[] h : headers) {
+            if (!h[0].startsWith(":"))
+                response.addHeader(h[0], h[1]);
+        }
+
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(body);
+        entity.setContentLength(length);
+        entity.setChunked(length < 0);
+        response.setEntity(entity);
+        return response;
+    }
+
+    private static int parseNumber(String s) {
+        try {
+            return Integer.parseInt(s.trim());
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
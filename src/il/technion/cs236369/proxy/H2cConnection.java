@@ -0,0 +1,576 @@
+package il.technion.cs236369.proxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A client HTTP/2 connection with prior knowledge (h2c) to a single server.
+ * Requests are multiplexed on the connection as streams; a reader thread
+ * dispatches the frames of the server to their streams.
+ *
+ * Received data is flow controlled per stream: a stream's window is only
+ * reopened as its body is read, so a slow reader holds back its own stream
+ * and not the others. The connection window is reopened as data arrives.
+ * Only requests without a body are sent.
+ */
+public class H2cConnection {
+    private static Logger log = Logger.getLogger(HttpProxy.class.getName());
+
+    private static final byte[] PREFACE = {
+        'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+        '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+    };
+
+    private static final int DATA          = 0x0;
+    private static final int HEADERS       = 0x1;
+    private static final int RST_STREAM    = 0x3;
+    private static final int SETTINGS      = 0x4;
+    private static final int PUSH_PROMISE  = 0x5;
+    private static final int PING          = 0x6;
+    private static final int GOAWAY        = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION  = 0x9;
+
+    private static final int FLAG_END_STREAM  = 0x1;
+    private static final int FLAG_ACK         = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED      = 0x8;
+    private static final int FLAG_PRIORITY    = 0x20;
+
+    private static final int SETTINGS_ENABLE_PUSH            = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE    = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE         = 0x5;
+
+    private static final int ERROR_NO_ERROR = 0x0;
+    private static final int ERROR_PROTOCOL = 0x1;
+    private static final int ERROR_CANCEL   = 0x8;
+
+    private static final int STREAM_WINDOW     = 256 * 1024;
+    private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+    private static final int MAX_FRAME_SIZE    = 16 * 1024;
+    private static final int MAX_HEADER_LIST   = 64 * 1024;
+
+    private final Socket          m_socket;
+    private final String          m_name;
+    private final DataInputStream m_in;
+    private final OutputStream    m_out;
+    private final Hpack           m_decoder = new Hpack(4096, MAX_HEADER_LIST);
+    private final ConcurrentHashMap<Integer, Stream> m_streams = new ConcurrentHashMap<Integer, Stream>();
+
+    private int              m_nextStreamId = 1;
+    private volatile int     m_maxConcurrent = 100;
+    private volatile boolean m_closed;
+    private volatile String  m_closeReason;
+
+    /**
+     * Sends the connection preface and waits for the settings of the server.
+     * @param socket connected to the server
+     * @param name the server, for reporting
+     * @param timeout milliseconds to wait for the server's settings
+     * @throws IOException if the server doesn't speak HTTP/2
+     */
+    public H2cConnection(Socket socket, String name, int timeout) throws IOException {
+        m_socket = socket;
+        m_name = name;
+        m_in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MAX_FRAME_SIZE));
+        m_out = new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME_SIZE);
+
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(timeout);
+
+        synchronized (m_out) {
+            m_out.write(PREFACE);
+            writeFrame(SETTINGS, 0, 0, settings(SETTINGS_ENABLE_PUSH, 0,
+                                                SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW,
+                                                SETTINGS_MAX_FRAME_SIZE, MAX_FRAME_SIZE));
+            writeFrame(WINDOW_UPDATE, 0, 0, int32(CONNECTION_WINDOW - 65535));
+            m_out.flush();
+        }
+
+        int[] header = readFrameHeader();
+        if (header[1] != SETTINGS || (header[2] & FLAG_ACK) != 0 || header[3] != 0)
+            throw new IOException(name + " didn't answer with HTTP/2 settings");
+        onSettings(header[0], header[2]);
+
+        socket.setSoTimeout(0);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "h2c-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a request without a body.
+     * @param headers pseudo headers first, names in lower case
+     * @return the stream of the request, null if the connection has no room for another stream
+     * @throws IOException if the connection is closed
+     */
+    public Stream send(List<String[]> headers) throws IOException {
+        byte[] block = Hpack.encode(headers);
+        Stream stream;
+        synchronized (m_out) {
+            if (m_closed)
+                throw new IOException("HTTP/2 connection to " + m_name + " is closed: " + m_closeReason);
+            if (m_streams.size() >= m_maxConcurrent || m_nextStreamId < 0)
+                return null;
+
+            stream = new Stream(m_nextStreamId);
+            m_nextStreamId += 2;
+            m_streams.put(stream.m_id, stream);
+
+            int flags = FLAG_END_STREAM;
+            int off = 0;
+            int type = HEADERS;
+            do {
+                int len = Math.min(block.length - off, MAX_FRAME_SIZE);
+                if (off + len == block.length)
+                    flags |= FLAG_END_HEADERS;
+                writeFrame(type, flags, stream.m_id, block, off, len);
+                off += len;
+                type = CONTINUATION;
+                flags = 0;
+            } while (off < block.length);
+            m_out.flush();
+        }
+        return stream;
+    }
+
+    public boolean isClosed() {
+        return m_closed;
+    }
+
+    /**
+     * @return number of requests in progress
+     */
+    public int getActiveStreams() {
+        return m_streams.size();
+    }
+
+    public void close() {
+        fail("closed", ERROR_NO_ERROR);
+    }
+
+    /**
+     * A request in progress. The response header is awaited with
+     * awaitHeaders(), then the body is read from getBody().
+     */
+    public class Stream {
+        private final int m_id;
+        private final LinkedList<byte[]> m_data = new LinkedList<byte[]>();
+        private List<String[]> m_headers;
+        private boolean m_ended;
+        private String  m_error;
+        private int     m_unacked; // bytes read since the window was last reopened
+        private volatile int m_readTimeout;
+        private final InputStream m_body = new BodyStream();
+
+        Stream(int id) {
+            m_id = id;
+        }
+
+        /**
+         * @param timeout milliseconds, 0 to wait forever
+         * @return the response header fields, pseudo headers included
+         * @throws SocketTimeoutException if no final response arrived in time
+         * @throws IOException if the stream failed
+         */
+        public synchronized List<String[]> awaitHeaders(int timeout) throws IOException {
+            long end = System.currentTimeMillis() + timeout;
+            while (m_headers == null) {
+                check();
+                waitFor(timeout, end);
+            }
+            return m_headers;
+        }
+
+        /**
+         * @param readTimeout milliseconds a body read may wait for data, 0 to wait forever
+         */
+        public void setReadTimeout(int readTimeout) {
+            m_readTimeout = readTimeout;
+        }
+
+        /**
+         * @return the response body; closing it before its end resets the stream
+         */
+        public InputStream getBody() {
+            return m_body;
+        }
+
+        /**
+         * Cancels the stream unless it completed.
+         */
+        public void cancel() {
+            synchronized (this) {
+                if (m_ended || m_error != null) {
+                    m_streams.remove(m_id);
+                    return;
+                }
+                m_error = "cancelled";
+                m_data.clear();
+                notifyAll();
+            }
+            m_streams.remove(m_id);
+            try {
+                synchronized (m_out) {
+                    writeFrame(RST_STREAM, 0, m_id, int32(ERROR_CANCEL));
+                    m_out.flush();
+                }
+            }
+            catch (IOException e) {
+                fail(e.getMessage(), ERROR_NO_ERROR);
+            }
+        }
+
+        synchronized void onHeaders(List<String[]> headers, boolean end) {
+            if (m_headers == null) {
+                String status = null;
+                for (String[] h : headers) {
+                    if (h[0].equals(":status"))
+                        status = h[1];
+                }
+                if (status != null && status.startsWith("1"))
+                    return; // interim response
+                m_headers = headers;
+            }
+            if (end)
+                m_ended = true;
+            notifyAll();
+        }
+
+        synchronized void onData(byte[] data, boolean end) {
+            if (m_error == null && data.length > 0)
+                m_data.add(data);
+            if (end)
+                m_ended = true;
+            notifyAll();
+        }
+
+        synchronized void onError(String error) {
+            if (m_error == null && !m_ended)
+                m_error = error;
+            notifyAll();
+        }
+
+        private void check() throws IOException {
+            if (m_error != null)
+                throw new IOException("HTTP/2 stream " + m_id + " to " + m_name + " failed: " + m_error);
+        }
+
+        private void waitFor(int timeout, long end) throws IOException {
+            long left = timeout > 0 ? end - System.currentTimeMillis() : 0;
+            if (timeout > 0 && left <= 0)
+                throw new SocketTimeoutException("HTTP/2 stream " + m_id + " to " + m_name + " timed out");
+            try {
+                wait(left);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * Reopens the stream window once half of it was read.
+         */
+        private void consumed(int n) throws IOException {
+            int increment;
+            synchronized (this) {
+                m_unacked += n;
+                if (m_ended || m_unacked < STREAM_WINDOW / 2)
+                    return;
+                increment = m_unacked;
+                m_unacked = 0;
+            }
+            synchronized (m_out) {
+                writeFrame(WINDOW_UPDATE, 0, m_id, int32(increment));
+                m_out.flush();
+            }
+        }
+
+        private class BodyStream extends InputStream {
+            private byte[]  m_chunk;
+            private int     m_pos;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+
+                if (m_chunk == null || m_pos == m_chunk.length) {
+                    synchronized (Stream.this) {
+                        int timeout = m_readTimeout;
+                        long end = System.currentTimeMillis() + timeout;
+                        while (m_data.isEmpty()) {
+                            check();
+                            if (m_ended) {
+                                m_streams.remove(m_id);
+                                return -1;
+                            }
+                            waitFor(timeout, end);
+                        }
+                        m_chunk = m_data.removeFirst();
+                        m_pos = 0;
+                    }
+                }
+
+                int n = Math.min(len, m_chunk.length - m_pos);
+                System.arraycopy(m_chunk, m_pos, b, off, n);
+                m_pos += n;
+                consumed(n);
+                return n;
+            }
+
+            @Override
+            public void close() {
+                cancel();
+            }
+        }
+    }
+
+    // ++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+
+    private void readLoop() {
+        try {
+            while (!m_closed) {
+                int[] header = readFrameHeader();
+                dispatch(header[0], header[1], header[2], header[3]);
+            }
+        }
+        catch (EOFException e) {
+            fail("closed by the server", ERROR_NO_ERROR);
+        }
+        catch (IOException e) {
+            fail(e.getMessage(), ERROR_PROTOCOL);
+        }
+    }
+
+    private void dispatch(int len, int type, int flags, int streamId) throws IOException {
+        switch (type) {
+        case DATA: {
+            byte[] payload = unpad(readPayload(len), flags);
+            // the connection window is reopened right away, the stream's as it is read
+            if (len > 0) {
+                synchronized (m_out) {
+                    writeFrame(WINDOW_UPDATE, 0, 0, int32(len));
+                    m_out.flush();
+                }
+            }
+            Stream stream = m_streams.get(streamId);
+            if (stream != null)
+                stream.onData(payload, (flags & FLAG_END_STREAM) != 0);
+            break;
+        }
+        case HEADERS: {
+            byte[] payload = unpad(readPayload(len), flags);
+            int skip = (flags & FLAG_PRIORITY) != 0 ? 5 : 0;
+            byte[] block = readHeaderBlock(payload, skip, flags);
+            List<String[]> headers = m_decoder.decode(block);
+            Stream stream = m_streams.get(streamId);
+            if (stream != null)
+                stream.onHeaders(headers, (flags & FLAG_END_STREAM) != 0);
+            break;
+        }
+        case RST_STREAM: {
+            byte[] payload = readPayload(len);
+            Stream stream = m_streams.remove(streamId);
+            if (stream != null)
+                stream.onError("reset by the server (error " + readInt32(payload, 0) + ")");
+            break;
+        }
+        case SETTINGS:
+            onSettings(len, flags);
+            break;
+        case PING: {
+            byte[] payload = readPayload(len);
+            if ((flags & FLAG_ACK) == 0) {
+                synchronized (m_out) {
+                    writeFrame(PING, FLAG_ACK, 0, payload);
+                    m_out.flush();
+                }
+            }
+            break;
+        }
+        case GOAWAY: {
+            byte[] payload = readPayload(len);
+            int lastStream = readInt32(payload, 0) & 0x7FFFFFFF;
+            synchronized (m_out) {
+                m_closed = true;
+                m_closeReason = "server going away";
+            }
+            for (Stream stream : m_streams.values()) {
+                if (stream.m_id > lastStream)
+                    stream.onError("not processed by the server");
+            }
+            break;
+        }
+        case PUSH_PROMISE:
+            throw new IOException("Server push wasn't enabled");
+        case CONTINUATION:
+            throw new IOException("Unexpected CONTINUATION frame");
+        default:
+            // WINDOW_UPDATE (no bodies are sent), PRIORITY and unknown frames
+            readPayload(len);
+        }
+    }
+
+    /**
+     * Reads the CONTINUATION frames of a header block that didn't fit in its
+     * first frame.
+     */
+    private byte[] readHeaderBlock(byte[] payload, int skip, int flags) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(payload, skip, payload.length - skip);
+        while ((flags & FLAG_END_HEADERS) == 0) {
+            int[] header = readFrameHeader();
+            if (header[1] != CONTINUATION)
+                throw new IOException("Header block interrupted by frame type " + header[1]);
+            if (block.size() + header[0] > MAX_HEADER_LIST)
+                throw new IOException("Header block too large");
+            block.write(readPayload(header[0]));
+            flags = header[2];
+        }
+        return block.toByteArray();
+    }
+
+    private void onSettings(int len, int flags) throws IOException {
+        byte[] payload = readPayload(len);
+        if ((flags & FLAG_ACK) != 0)
+            return;
+
+        // our header blocks are never indexed and our frames are no larger than
+        // the minimal MAX_FRAME_SIZE, so only the stream limit matters
+        for (int i = 0; i + 6 <= payload.length; i += 6) {
+            int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+            if (id == SETTINGS_MAX_CONCURRENT_STREAMS)
+                m_maxConcurrent = readInt32(payload, i + 2);
+        }
+
+        synchronized (m_out) {
+            writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+            m_out.flush();
+        }
+    }
+
+    private void fail(String reason, int error) {
+        synchronized (m_out) {
+            if (!m_closed)
+                m_closeReason = reason;
+            m_closed = true;
+            if (!m_socket.isClosed()) {
+                try {
+                    writeFrame(GOAWAY, 0, 0, concat(int32(0), int32(error)));
+                    m_out.flush();
+                }
+                catch (IOException ignore) {}
+                try {
+                    m_socket.close();
+                }
+                catch (IOException ignore) {}
+            }
+        }
+
+        for (Stream stream : m_streams.values())
+            stream.onError(reason);
+        if (error != ERROR_NO_ERROR)
+            log.info("HTTP/2 connection to " + m_name + " failed: " + reason);
+    }
+
+    private int[] readFrameHeader() throws IOException {
+        int len = (m_in.readUnsignedByte() << 16) | (m_in.readUnsignedByte() << 8) | m_in.readUnsignedByte();
+        int type = m_in.readUnsignedByte();
+        int flags = m_in.readUnsignedByte();
+        int streamId = m_in.readInt() & 0x7FFFFFFF;
+        if (len > MAX_FRAME_SIZE)
+            throw new IOException("Frame of " + len + " bytes exceeds the frame size");
+        return new int[] { len, type, flags, streamId };
+    }
+
+    private byte[] readPayload(int len) throws IOException {
+        byte[] payload = new byte[len];
+        m_in.readFully(payload);
+        return payload;
+    }
+
+    private static byte[] unpad(byte[] payload, int flags) throws IOException {
+        if ((flags & FLAG_PADDED) == 0)
+            return payload;
+        if (payload.length == 0)
+            throw new IOException("Padded frame without padding length");
+
+        int padding = payload[0] & 0xFF;
+        if (padding >= payload.length)
+            throw new IOException("Padding exceeds the frame");
+        byte[] res = new byte[payload.length - 1 - padding];
+        System.arraycopy(payload, 1, res, 0, res.length);
+        return res;
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        writeFrame(type, flags, streamId, payload, 0, payload.length);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len)
+        throws IOException
+    {
+        m_out.write(len >>> 16);
+        m_out.write(len >>> 8);
+        m_out.write(len);
+        m_out.write(type);
+        m_out.write(flags);
+        m_out.write(int32(streamId));
+        m_out.write(payload, off, len);
+    }
+
+    private static byte[] settings(int... pairs) {
+        byte[] res = new byte[pairs.length / 2 * 6];
+        for (int i = 0; i < pairs.length; i += 2) {
+            int pos = i / 2 * 6;
+            res[pos] = (byte) (pairs[i] >>> 8);
+            res[pos + 1] = (byte) pairs[i];
+            System.arraycopy(int32(pairs[i + 1]), 0, res, pos + 2, 4);
+        }
+        return res;
+    }
+
+    private static byte[] int32(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    private static int readInt32(byte[] b, int off) {
+        if (b.length < off + 4)
+            return 0;
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] res = new byte[a.length + b.length];
+        System.arraycopy(a, 0, res, 0, a.length);
+        System.arraycopy(b, 0, res, a.length, b.length);
+        return res;
+    }
+}
@@ -0,0 +1,72 @@
+package il.technion.cs236369.proxy;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of string keys to nodes. Each node is placed at several
+ * points (virtual nodes) of a ring of 64 bit hashes, and a key belongs to
+ * the first node at or after its own hash. Adding or removing a node only
+ * moves the keys of that node.
+ *
+ * Points depend only on the nodes' toString(), so every process configured
+ * with the same nodes builds the same ring.
+ */
+public class HashRing<T> {
+
+    private final TreeMap<Long, T> m_ring = new TreeMap<Long, T>();
+
+    /**
+     * @param nodes
+     * @param virtualNodes points per node
+     */
+    public HashRing(Collection<T> nodes, int virtualNodes) {
+        for (T node : nodes) {
+            for (int i = 0; i < Math.max(virtualNodes, 1); ++i)
+                m_ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    /**
+     * @param key
+     * @return the node owning key, null if the ring is empty
+     */
+    public T get(String key) {
+        if (m_ring.isEmpty())
+            return null;
+
+        Map.Entry<Long, T> e = m_ring.ceilingEntry(hash(key));
+        return e != null ? e.getValue() : m_ring.firstEntry().getValue();
+    }
+
+    public boolean isEmpty() {
+        return m_ring.isEmpty();
+    }
+
+    /**
+     * @param s
+     * @return the first 8 bytes of the MD5 of s
+     */
+    private static long hash(String s) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException e) {
+            return s.hashCode();
+        }
+        catch (UnsupportedEncodingException e) {
+            return s.hashCode();
+        }
+
+        long res = 0;
+        for (int i = 0; i < 8; ++i)
+            res = (res << 8) | (digest[i] & 0xFF);
+
+        return res;
+    }
+}
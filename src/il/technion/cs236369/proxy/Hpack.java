@@ -0,0 +1,288 @@
+package il.technion.cs236369.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * HTTP/2 header compression (RFC 7541), as much of it as a client needs.
+ * Header blocks sent are encoded as literals that are never indexed, so the
+ * peer's decoder state never changes. Header blocks received are fully
+ * decoded: static and dynamic table references, literals and Huffman coded
+ * strings.
+ *
+ * A decoder instance belongs to a single connection and must be fed the
+ * header blocks in the order they were received.
+ */
+public class Hpack {
+
+    private static final String[][] STATIC_TABLE = {
+        { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+        { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+        { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+        { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+        { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+        { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+        { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+        { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+        { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" },
+        { "host", "" }, { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" },
+        { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" },
+        { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+        { "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+        { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+        { "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" },
+        { "vary", "" }, { "via", "" }, { "www-authenticate", "" }
+    };
+
+    /**
+     * Code lengths of the Huffman code (RFC 7541 appendix B) by symbol, 256 is
+     * EOS. The code is canonical, so the codes follow from the lengths.
+     */
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+
+    private static final int   MAX_CODE_LENGTH = 30;
+    // canonical decoding tables: per code length, the first code, how many
+    // codes there are, and where their symbols start in HUFFMAN_SYMBOLS
+    private static final int[] HUFFMAN_FIRST  = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] HUFFMAN_COUNT  = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] HUFFMAN_OFFSET = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] HUFFMAN_SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+
+    static {
+        for (byte len : HUFFMAN_LENGTHS)
+            ++HUFFMAN_COUNT[len];
+
+        int code = 0;
+        int offset = 0;
+        for (int len = 1; len <= MAX_CODE_LENGTH; ++len) {
+            code = (code + HUFFMAN_COUNT[len - 1]) << 1;
+            HUFFMAN_FIRST[len] = code;
+            HUFFMAN_OFFSET[len] = offset;
+            offset += HUFFMAN_COUNT[len];
+        }
+
+        int[] next = HUFFMAN_OFFSET.clone();
+        for (int sym = 0; sym < HUFFMAN_LENGTHS.length; ++sym)
+            HUFFMAN_SYMBOLS[next[HUFFMAN_LENGTHS[sym]]++] = sym;
+    }
+
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private final LinkedList<String[]> m_dynamic = new LinkedList<String[]>(); // newest first
+    private int m_dynamicSize;
+    private int m_maxDynamicSize;
+    private final int m_maxHeaderListSize;
+
+    /**
+     * @param maxDynamicSize table size the peer may use (SETTINGS_HEADER_TABLE_SIZE)
+     * @param maxHeaderListSize largest decoded header list accepted, in bytes
+     */
+    public Hpack(int maxDynamicSize, int maxHeaderListSize) {
+        m_maxDynamicSize = maxDynamicSize;
+        m_maxHeaderListSize = maxHeaderListSize;
+    }
+
+    /**
+     * @param headers name and value pairs, names in lower case
+     * @return the header block
+     */
+    public static byte[] encode(List<String[]> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String[] h : headers) {
+            out.write(0x10); // literal never indexed, new name
+            writeString(out, h[0]);
+            writeString(out, h[1]);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param block a complete header block
+     * @return the name and value pairs of the block
+     * @throws IOException if the block is malformed (a connection error)
+     */
+    public List<String[]> decode(byte[] block) throws IOException {
+        List<String[]> res = new ArrayList<String[]>();
+        int[] pos = { 0 };
+        int listSize = 0;
+        while (pos[0] < block.length) {
+            int b = block[pos[0]] & 0xFF;
+            String[] h;
+            if ((b & 0x80) != 0) {
+                h = entry(readInt(block, pos, 7));
+            }
+            else if ((b & 0x40) != 0) {
+                h = readLiteral(block, pos, 6);
+                add(h);
+            }
+            else if ((b & 0x20) != 0) {
+                int size = readInt(block, pos, 5);
+                if (size > m_maxDynamicSize)
+                    throw new IOException("HPACK table size " + size + " exceeds the limit");
+                m_maxDynamicSize = size;
+                evict(0);
+                continue;
+            }
+            else {
+                h = readLiteral(block, pos, 4);
+            }
+
+            listSize += h[0].length() + h[1].length() + ENTRY_OVERHEAD;
+            if (listSize > m_maxHeaderListSize)
+                throw new IOException("Header list exceeds " + m_maxHeaderListSize + " bytes");
+            res.add(h);
+        }
+        return res;
+    }
+
+    private String[] readLiteral(byte[] block, int[] pos, int prefix) throws IOException {
+        int index = readInt(block, pos, prefix);
+        String name = index == 0 ? readString(block, pos) : entry(index)[0];
+        return new String[] { name, readString(block, pos) };
+    }
+
+    private String[] entry(int index) throws IOException {
+        if (index <= 0)
+            throw new IOException("Invalid HPACK index 0");
+        if (index <= STATIC_TABLE.length)
+            return STATIC_TABLE[index - 1];
+        if (index - STATIC_TABLE.length > m_dynamic.size())
+            throw new IOException("Invalid HPACK index " + index);
+        return m_dynamic.get(index - STATIC_TABLE.length - 1);
+    }
+
+    private void add(String[] h) {
+        int size = h[0].length() + h[1].length() + ENTRY_OVERHEAD;
+        evict(size);
+        if (size <= m_maxDynamicSize) {
+            m_dynamic.addFirst(h);
+            m_dynamicSize += size;
+        }
+    }
+
+    /**
+     * Evicts the oldest entries until there is room for size more bytes.
+     */
+    private void evict(int size) {
+        while (!m_dynamic.isEmpty() && m_dynamicSize + size > m_maxDynamicSize) {
+            String[] h = m_dynamic.removeLast();
+            m_dynamicSize -= h[0].length() + h[1].length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    private static int readInt(byte[] block, int[] pos, int prefix) throws IOException {
+        int max = (1 << prefix) - 1;
+        int value = block[pos[0]++] & max;
+        if (value < max)
+            return value;
+
+        int shift = 0;
+        int b;
+        do {
+            if (pos[0] >= block.length || shift > 28)
+                throw new IOException("Truncated HPACK integer");
+            b = block[pos[0]++] & 0xFF;
+            value += (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        if (value < 0)
+            throw new IOException("HPACK integer overflow");
+        return value;
+    }
+
+    private static String readString(byte[] block, int[] pos) throws IOException {
+        if (pos[0] >= block.length)
+            throw new IOException("Truncated HPACK string");
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int len = readInt(block, pos, 7);
+        if (len > block.length - pos[0])
+            throw new IOException("Truncated HPACK string");
+
+        int start = pos[0];
+        pos[0] += len;
+        if (huffman)
+            return huffmanDecode(block, start, len);
+        return new String(block, start, len, "ISO-8859-1");
+    }
+
+    private static String huffmanDecode(byte[] block, int start, int len) throws IOException {
+        StringBuilder res = new StringBuilder(len * 8 / 5);
+        int code = 0;
+        int codeLen = 0;
+        for (int i = start; i < start + len; ++i) {
+            for (int bit = 7; bit >= 0; --bit) {
+                code = (code << 1) | ((block[i] >> bit) & 1);
+                ++codeLen;
+                int idx = code - HUFFMAN_FIRST[codeLen];
+                if (idx >= 0 && idx < HUFFMAN_COUNT[codeLen]) {
+                    int sym = HUFFMAN_SYMBOLS[HUFFMAN_OFFSET[codeLen] + idx];
+                    if (sym == 256)
+                        throw new IOException("EOS in Huffman coded string");
+                    res.append((char) sym);
+                    code = 0;
+                    codeLen = 0;
+                }
+                else if (codeLen == MAX_CODE_LENGTH)
+                    throw new IOException("Invalid Huffman code");
+            }
+        }
+
+        // padding is the most significant bits of EOS, all ones and shorter than a byte
+        if (codeLen > 7 || code != (1 << codeLen) - 1)
+            throw new IOException("Invalid Huffman padding");
+        return res.toString();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] b;
+        try {
+            b = s.getBytes("ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException e) {
+            b = s.getBytes();
+        }
+
+        writeInt(out, 0x00, 7, b.length);
+        out.write(b, 0, b.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int max = (1 << prefix) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
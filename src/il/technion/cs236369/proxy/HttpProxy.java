@@ -2,12 +2,17 @@ package il.technion.cs236369.proxy;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
@@ -15,7 +20,11 @@ import javax.net.ServerSocketFactory;
 import javax.net.SocketFactory;
 
 import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpConnectionMetrics;
 import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpVersion;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.DefaultHttpResponseFactory;
@@ -27,6 +36,7 @@ import org.apache.http.params.HttpParams;
 import org.apache.http.params.SyncBasicHttpParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestExecutor;
 import org.apache.http.protocol.HttpRequestHandlerRegistry;
 import org.apache.http.protocol.HttpService;
@@ -52,6 +62,23 @@ public class HttpProxy {
     public static final int MAX_RESPONSE_SIZE = 65535; // bytes
     public static final String CLIENT_CONN = "CLIENT_CONN";
     public static final String TARGET_CONN = "TARGET_CONN";
+    public static final String TUNNEL_CONN = "TUNNEL_CONN";
+    public static final String EXPECT_CONTINUED = "EXPECT_CONTINUED";
+    public static final String DEADLINE = "DEADLINE";
+    public static final String PARENT_PROXY = "PARENT_PROXY";
+    public static final String TARGET_STREAM = "TARGET_STREAM";
+    public static final String REQUEST_START = "REQUEST_START";
+    public static final String RESPONSE_START = "RESPONSE_START";
+    public static final String CACHE_STATUS = "CACHE_STATUS";
+    public static final String TRACE = "TRACE";
+    // the request received from the client and the response sent to it, as
+    // HTTP_REQUEST and HTTP_RESPONSE are replaced by the ones sent to the target
+    public static final String CLIENT_REQUEST = "CLIENT_REQUEST";
+    public static final String CLIENT_RESPONSE = "CLIENT_RESPONSE";
+
+    static final String WORKER_NAME = "proxy-worker-";
+
+    private static final int ACCEPT_BACKOFF = 100; // milliseconds
 
     private static final BasicHttpResponse ERR_RESPONSE =
         new BasicHttpResponse(HttpVersion.HTTP_1_1, 500, "Internal Server Error");
@@ -92,6 +119,18 @@ public class HttpProxy {
     private HttpParams          m_httpparams;
     private HttpService         m_httpservice;
     private ProxyCache          m_cache;
+    private CacheWarmup         m_warmup;
+    private int                 m_tunnelIdleTimeout;
+    private DnsCache            m_dns;
+    private CachePeers          m_peers;
+    private OriginHealth        m_health;
+    private ProxyMetrics        m_metrics;
+    private AdminServer         m_admin;
+    private AccessLog           m_accessLog;
+    private SlowRequestLog      m_slowLog;
+    private TrafficCapture      m_capture;
+    private ConcurrencyLimit    m_limit;
+    private ClientRateLimiter   m_rateLimiter;
 
     /**
      * Constructs the proxy
@@ -110,6 +149,31 @@ public class HttpProxy {
      * @param dbUsername Database's username (e.g. root)
      * @param dbPassword Database's password
      * @param dbDriver Database's driver class name (com.mysql.jdbc.Driver)
+     * @param admission Decides which cache misses are worth storing
+     * @param memorySize Size in bytes of the in memory cache tier
+     * @param maxObjectSize Largest response body (in bytes) that is cached
+     * @param warmup Snapshots the hot set and preloads it on startup
+     * @param tunnelPorts Comma separated ports CONNECT may tunnel to (e.g. 443)
+     * @param tunnelIdleTimeout Milliseconds without traffic before a tunnel is closed
+     * @param maxUploadSize Largest request body (in bytes) forwarded, 0 for unlimited
+     * @param dns Caches resolutions of target host names
+     * @param health Circuit breakers of the target servers
+     * @param timeouts Connect, read and total timeouts of requests to target servers
+     * @param clientTimeout Milliseconds a client may be silent while we read its request
+     * @param dbTimeout Milliseconds a cache database call may take
+     * @param negativeTtl How long error responses and unknown hosts are cached
+     * @param parents Upstream proxies requests are forwarded to
+     * @param peers Other proxy nodes sharing their caches with this one
+     * @param dbShards Whitespace separated JDBC urls the cache is sharded across, empty for dbURL only
+     * @param dbPoolSize Idle connections kept per cache database
+     * @param h2c Sends requests to origins that speak HTTP/2 over a shared connection
+     * @param metrics Latencies of the request phases and traffic counters
+     * @param admin Serves metrics and cache purges on the admin port
+     * @param accessLog Writes a line per request in the background, and holds the debug switch
+     * @param slowLog Keeps the timelines of the latest slow requests
+     * @param capture Records the handled requests for replaying them later
+     * @param limit Bounds the requests handled at once and the connections waiting for them
+     * @param rateLimiter Limits the requests and bytes per second of every client
      */
 
     @SuppressWarnings("deprecation")
@@ -121,17 +185,57 @@ public class HttpProxy {
               @Named("httproxy.db.table") String tblName,
               @Named("httproxy.db.username") String dbUsername,
               @Named("httproxy.db.password") String dbPassword,
-              @Named("httproxy.db.driver") String dbDriver) {
+              @Named("httproxy.db.driver") String dbDriver,
+              CacheAdmissionPolicy admission,
+              @Named("httproxy.cache.memory.size") long memorySize,
+              @Named("httproxy.cache.max.object.size") int maxObjectSize,
+              CacheWarmup warmup,
+              @Named("httproxy.tunnel.ports") String tunnelPorts,
+              @Named("httproxy.tunnel.idle.timeout") int tunnelIdleTimeout,
+              @Named("httproxy.net.max.upload.size") long maxUploadSize,
+              DnsCache dns,
+              OriginHealth health,
+              RequestTimeouts timeouts,
+              @Named("httproxy.net.client.timeout") int clientTimeout,
+              @Named("httproxy.db.timeout") int dbTimeout,
+              NegativeCacheTtl negativeTtl,
+              ParentProxies parents,
+              CachePeers peers,
+              @Named("httproxy.db.shards") String dbShards,
+              @Named("httproxy.db.pool.size") int dbPoolSize,
+              H2cClient h2c,
+              ProxyMetrics metrics,
+              AdminServer admin,
+              AccessLog accessLog,
+              SlowRequestLog slowLog,
+              TrafficCapture capture,
+              ConcurrencyLimit limit,
+              ClientRateLimiter rateLimiter) {
         log.info("Initializing Http Proxy");
 
         m_clientSockFact = sockFactory;
         m_servSockFact = srvSockFactory;
         m_port = port;
-
+        m_tunnelIdleTimeout = tunnelIdleTimeout;
+        m_dns = dns;
+        m_peers = peers;
+        m_health = health;
+        m_metrics = metrics;
+        m_admin = admin;
+        m_accessLog = accessLog;
+        m_slowLog = slowLog;
+        m_capture = capture;
+        m_limit = limit;
+        m_rateLimiter = rateLimiter;
+        if (accessLog.isDebug()) {
+            log.setLevel(Level.FINE);
+            for (Handler h : log.getHandlers())
+                h.setLevel(Level.FINE);
+        }
 
         // Setup HTTP request handling
         m_httpparams = new SyncBasicHttpParams();
-        m_httpparams.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 5000);
+        m_httpparams.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, clientTimeout);
         m_httpparams.setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024);
         m_httpparams.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false);
         m_httpparams.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
@@ -143,6 +247,14 @@ public class HttpProxy {
         inhttpproc.addInterceptor(new ResponseServer());
         inhttpproc.addInterceptor(new ResponseContent());
         inhttpproc.addInterceptor(new ResponseConnControl());
+        inhttpproc.addInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context) {
+                // the response is about to be sent, time it to the end of the body
+                context.setAttribute(RESPONSE_START, System.nanoTime());
+                context.setAttribute(CLIENT_RESPONSE, response);
+            }
+        });
 
         // Set up HTTP protocol processor for outgoing connections
         BasicHttpProcessor outhttpproc = new BasicHttpProcessor();
@@ -153,18 +265,39 @@ public class HttpProxy {
         outhttpproc.addInterceptor(new RequestExpectContinue());
 
         // Initialize cache
-        m_cache = new ProxyCache(dbURL, dbName, tblName, dbUsername, dbPassword, dbDriver);
+        m_cache = new ProxyCache(dbURL, dbName, tblName, dbUsername, dbPassword, dbDriver, memorySize);
+        m_cache.setAdmissionPolicy(admission);
+        m_cache.setMaxObjectSize(maxObjectSize);
+        m_cache.setDbTimeout(dbTimeout);
+        m_cache.setPoolSize(dbPoolSize);
+        if (dbShards.trim().length() > 0)
+            m_cache.setShards(Arrays.asList(dbShards.trim().split("\\s+")));
+        m_warmup = warmup;
 
         // Set up outgoing request executor
         HttpRequestExecutor httpexecutor = new HttpRequestExecutor();
 
         // Set up incoming request handler
         HttpRequestHandlerRegistry reqistry = new HttpRequestHandlerRegistry();
-        reqistry.register("*", new ProxyRequestHandler(m_httpparams,
-                                                       outhttpproc,
-                                                       httpexecutor,
-                                                       m_clientSockFact,
-                                                       m_cache));
+        ProxyRequestHandler handler = new ProxyRequestHandler(m_httpparams,
+                                                              outhttpproc,
+                                                              httpexecutor,
+                                                              m_clientSockFact,
+                                                              m_cache,
+                                                              tunnelPorts,
+                                                              maxUploadSize,
+                                                              m_dns,
+                                                              m_health,
+                                                              timeouts,
+                                                              negativeTtl,
+                                                              parents,
+                                                              peers,
+                                                              h2c,
+                                                              m_metrics,
+                                                              m_accessLog,
+                                                              m_rateLimiter,
+                                                              m_limit);
+        reqistry.register("*", handler);
 
         // Set up the HTTP service
         m_httpservice = new HttpService(inhttpproc,
@@ -172,6 +305,7 @@ public class HttpProxy {
                                        new DefaultHttpResponseFactory());
         m_httpservice.setParams(m_httpparams);
         m_httpservice.setHandlerResolver(reqistry);
+        m_httpservice.setExpectationVerifier(handler);
     }
 
     /**
@@ -184,7 +318,8 @@ public class HttpProxy {
     }
 
     /**
-     * Starts the server loop: listens to client requests and executes them. To
+     * Starts the server loop: listens to client requests and hands them to
+     * the worker threads, which execute them within the concurrency limit. To
      * create new sockets for connecting to servers use ONLY
      * SocketFactory.createSocket(String host, int port) where SocketFactory is
      * the one passed to the constructor.
@@ -192,55 +327,301 @@ public class HttpProxy {
     public void start() {
         log.info("HttpProxy is listening on port " + m_socket.getLocalPort());
 
+        m_warmup.start(m_cache);
+        m_dns.start();
+        try {
+            m_peers.start(m_cache);
+        }
+        catch (IOException e) {
+            System.err.println("[!] Failed to listen for cache peers: " + e.getMessage());
+        }
+        try {
+            m_accessLog.start();
+        }
+        catch (IOException e) {
+            System.err.println("[!] Failed to open the access log: " + e.getMessage());
+        }
+        try {
+            m_capture.start();
+        }
+        catch (IOException e) {
+            System.err.println("[!] Failed to open the traffic capture: " + e.getMessage());
+        }
+        try {
+            m_admin.start(m_cache);
+        }
+        catch (IOException e) {
+            System.err.println("[!] Failed to listen for admin requests: " + e.getMessage());
+        }
+
+        for (int i = 0; i < m_limit.getMax(); i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, WORKER_NAME + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        // Accepting never waits for the workers: when too many connections
+        // are waiting already, the new one is answered 503 right away
+        while (true) {
+            Socket clientSock = acceptWithBackoff(m_socket, m_metrics);
+            if (clientSock == null)
+                return;
+
+            if (!m_limit.offer(clientSock, System.nanoTime()))
+                shed(clientSock);
+        }
+    }
+
+    /**
+     * Accepts a connection. A failed accept is logged and tried again after
+     * ACCEPT_BACKOFF: the failure is usually one that lasts a while (out of
+     * file descriptors), and trying again right away would only spin on it.
+     * @param server
+     * @param metrics counts the failures, may be null
+     * @return the accepted connection, null once server is closed or the
+     *         thread is interrupted
+     */
+    static Socket acceptWithBackoff(ServerSocket server, ProxyMetrics metrics) {
         while (true) {
-            Socket clientSock;
             try {
-                clientSock = m_socket.accept();
+                return server.accept();
             }
             catch (IOException e) {
-                System.err.println("[!] Client socket creation failed.");
-                continue;
+                if (server.isClosed())
+                    return null;
+                System.err.println("[!] Failed to accept a connection on port " + server.getLocalPort() +
+                                   ": " + e.getMessage());
+                if (metrics != null)
+                    metrics.countError(e);
             }
 
-            DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
             try {
-                conn.bind(clientSock, m_httpparams);
+                Thread.sleep(ACCEPT_BACKOFF);
             }
-            catch (IOException e) {
-                System.err.println("[!] Connection with client failed");
-                continue;
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
             }
+        }
+    }
 
-            log.info("Client from ip: " + clientSock.getInetAddress() + "\n");
+    /**
+     * Loop of a worker thread: takes the accepted connections and serves
+     * them once the concurrency limit allows, or sheds them if they waited
+     * too long.
+     */
+    private void work() {
+        while (true) {
+            ConcurrencyLimit.Pending pending;
+            long admittedAt;
             try {
-
-                m_httpservice.handleRequest(conn, new BasicHttpContext(null));
-
-            }
-            catch (ConnectionClosedException ex) {
-                System.err.println("[!] Client closed connection");
+                pending = m_limit.take();
+                admittedAt = m_limit.acquire(pending);
             }
-            catch (UnknownHostException e) {
-                System.err.println("[!] Unknown destination host");
-                sendErr(conn);
+            catch (InterruptedException e) {
+                return;
             }
-            catch (IOException e) {
-                System.err.println("[!] " + e.getMessage());
+
+            if (admittedAt < 0) {
+                shed(pending.m_socket);
+                continue;
             }
-            catch (HttpException ex) {
-                System.err.println("[!] HTTP protocol violation: " + ex.getMessage());
-                sendErr(conn);
+            try {
+                serve(pending.m_socket, pending.m_acceptedAt, admittedAt);
             }
             finally {
+                m_limit.release(admittedAt);
+            }
+        }
+    }
+
+    /**
+     * Handles the request of an accepted connection.
+     * @param clientSock
+     * @param acceptedAt System.nanoTime() when the connection was accepted
+     * @param admittedAt System.nanoTime() when the concurrency limit let it in
+     */
+    private void serve(Socket clientSock, long acceptedAt, long admittedAt) {
+        m_metrics.record(ProxyMetrics.Phase.QUEUE, acceptedAt);
+
+        DefaultHttpServerConnection conn = new DefaultHttpServerConnection();
+        try {
+            conn.bind(clientSock, m_httpparams);
+        }
+        catch (IOException e) {
+            System.err.println("[!] Connection with client failed");
+            m_metrics.countError(e);
+            try {
+                clientSock.close();
+            } catch (IOException ignore) {}
+            return;
+        }
+        m_metrics.record(ProxyMetrics.Phase.ACCEPT, admittedAt);
+        m_metrics.connectionOpened();
+
+        log.log(Level.FINE, "Client from ip: {0}", clientSock.getInetAddress());
+        BasicHttpContext context = new BasicHttpContext(null);
+        RequestTrace trace = m_slowLog.newTrace(acceptedAt);
+        if (trace != null) {
+            trace.span(ProxyMetrics.Phase.QUEUE.name(), acceptedAt);
+            trace.span(ProxyMetrics.Phase.ACCEPT.name(), admittedAt);
+            context.setAttribute(TRACE, trace);
+        }
+        context.setAttribute(REQUEST_START, System.nanoTime());
+        boolean tunneled = false;
+        try {
+
+            m_httpservice.handleRequest(conn, context);
+            Long responseStart = (Long) context.getAttribute(RESPONSE_START);
+            if (responseStart != null) {
+                m_metrics.record(ProxyMetrics.Phase.BODY, responseStart);
+                if (trace != null)
+                    trace.span(ProxyMetrics.Phase.BODY.name(), responseStart);
+            }
+            tunneled = startTunnel(clientSock, context);
+
+        }
+        catch (ConnectionClosedException ex) {
+            System.err.println("[!] Client closed connection");
+            m_metrics.countError(ex);
+        }
+        catch (UnknownHostException e) {
+            System.err.println("[!] Unknown destination host");
+            m_metrics.countError(e);
+            sendErr(conn, context);
+        }
+        catch (IOException e) {
+            System.err.println("[!] " + e.getMessage());
+            m_metrics.countError(e);
+        }
+        catch (HttpException ex) {
+            System.err.println("[!] HTTP protocol violation: " + ex.getMessage());
+            m_metrics.countError(ex);
+            sendErr(conn, context);
+        }
+        finally {
+            m_metrics.countBytes(conn.getMetrics().getReceivedBytesCount(),
+                                 conn.getMetrics().getSentBytesCount());
+            m_rateLimiter.charge(clientSock.getInetAddress(),
+                                 conn.getMetrics().getReceivedBytesCount()
+                                 + conn.getMetrics().getSentBytesCount());
+            m_metrics.connectionClosed();
+            finishRequest(clientSock, conn.getMetrics(), context, acceptedAt);
+            ProxyRequestHandler.closeTargetConnection(context);
+            if (!tunneled) {
+                Socket targetSock = (Socket) context.removeAttribute(TUNNEL_CONN);
                 try {
+                    if (targetSock != null) {
+                        // the tunnel wasn't started, give back its slot
+                        m_limit.releaseTunnel();
+                        targetSock.close();
+                    }
                     conn.shutdown();
                 } catch (IOException ignore) {}
             }
         }
     }
 
+    /**
+     * Answers 503 with a Retry-After to a connection that won't be served,
+     * without reading its request. Only the bytes that already arrived are
+     * discarded, so closing doesn't reset the connection before the client
+     * sees the response.
+     * @param clientSock
+     */
+    private void shed(Socket clientSock) {
+        m_limit.countShed();
+        try {
+            InputStream in = clientSock.getInputStream();
+            int available = in.available();
+            if (available > 0)
+                in.skip(available);
+
+            OutputStream out = clientSock.getOutputStream();
+            out.write(("HTTP/1.1 503 Service Unavailable\r\n"
+                       + "Retry-After: " + m_limit.getRetryAfter() + "\r\n"
+                       + "Content-Length: 0\r\n"
+                       + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+            clientSock.shutdownOutput();
+        }
+        catch (IOException e) {
+            log.log(Level.FINE, "Failed to answer a shed connection: {0}", e.getMessage());
+        }
+        finally {
+            try {
+                clientSock.close();
+            } catch (IOException ignore) {}
+        }
+    }
 
-    private void sendErr(DefaultHttpServerConnection con) {
+    /**
+     * If the handled request was an accepted CONNECT, starts relaying between
+     * the client and the target in the background.
+     * @param clientSock
+     * @param context
+     * @return true if a tunnel now owns the client socket
+     */
+    private boolean startTunnel(Socket clientSock, HttpContext context) {
+        Socket targetSock = (Socket) context.removeAttribute(TUNNEL_CONN);
+        if (targetSock == null)
+            return false;
+
+        ConnectTunnel tunnel = new ConnectTunnel(clientSock, targetSock,
+                                                 targetSock.getInetAddress() + ":" + targetSock.getPort(),
+                                                 m_tunnelIdleTimeout, m_limit);
+        try {
+            tunnel.start();
+        }
+        catch (IOException e) {
+            // the tunnel closed its sockets and gave back its slot
+            System.err.println("[!] Failed to start tunnel: " + e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Queues the access log and capture records of the request handled in
+     * context, and captures its trace if it was slow.
+     * @param clientSock
+     * @param connMetrics
+     * @param context
+     * @param acceptedAt System.nanoTime() when the connection was accepted
+     */
+    private void finishRequest(Socket clientSock, HttpConnectionMetrics connMetrics, HttpContext context,
+                               long acceptedAt) {
+        HttpRequest request = (HttpRequest) context.getAttribute(CLIENT_REQUEST);
+        if (request == null)
+            return;
+
+        HttpResponse response = (HttpResponse) context.getAttribute(CLIENT_RESPONSE);
+        m_accessLog.log(clientSock.getInetAddress(),
+                        request.getRequestLine().getMethod(),
+                        request.getRequestLine().getUri(),
+                        response != null ? response.getStatusLine().getStatusCode() : 0,
+                        connMetrics.getReceivedBytesCount(),
+                        connMetrics.getSentBytesCount(),
+                        (System.nanoTime() - acceptedAt) / 1000,
+                        (String) context.getAttribute(CACHE_STATUS));
+        m_capture.record(request, response,
+                         connMetrics.getReceivedBytesCount(),
+                         connMetrics.getSentBytesCount(),
+                         acceptedAt,
+                         (String) context.getAttribute(CACHE_STATUS));
+        m_slowLog.finish((RequestTrace) context.getAttribute(TRACE), request, response,
+                         (String) context.getAttribute(CACHE_STATUS));
+    }
+
+    private void sendErr(DefaultHttpServerConnection con, HttpContext context) {
+        context.setAttribute(CLIENT_RESPONSE, ERR_RESPONSE);
         try {
             con.sendResponseHeader(ERR_RESPONSE);
             con.flush();
@@ -250,6 +631,13 @@ public class HttpProxy {
         }
     }
 
+    /**
+     * @return latencies of the request phases and traffic counters, updated while the proxy runs
+     */
+    public ProxyMetrics getMetrics() {
+        return m_metrics;
+    }
+
     public static void main(String[] args) throws Exception {
         // first arg is the path to the config file
         Properties props = new Properties();
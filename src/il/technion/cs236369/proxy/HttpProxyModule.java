@@ -6,7 +6,10 @@ import javax.net.ServerSocketFactory;
 import javax.net.SocketFactory;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
 import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 
 public class HttpProxyModule extends AbstractModule {
@@ -23,6 +26,64 @@ public class HttpProxyModule extends AbstractModule {
         defaultProps.setProperty("httproxy.db.username", "root");
         defaultProps.setProperty("httproxy.db.password", "****");
         defaultProps.setProperty("httproxy.net.port", "8080");
+        defaultProps.setProperty("httproxy.net.client.timeout", "5000");
+        defaultProps.setProperty("httproxy.net.connect.timeout", "3000");
+        defaultProps.setProperty("httproxy.net.read.timeout", "5000");
+        defaultProps.setProperty("httproxy.net.request.timeout", "30000");
+        defaultProps.setProperty("httproxy.db.timeout", "2000");
+        defaultProps.setProperty("httproxy.db.shards", "");
+        defaultProps.setProperty("httproxy.db.pool.size", "4");
+        defaultProps.setProperty("httproxy.dns.ttl", "30");
+        defaultProps.setProperty("httproxy.dns.negative.ttl", "10");
+        defaultProps.setProperty("httproxy.dns.max.entries", "4096");
+        defaultProps.setProperty("httproxy.breaker.window", "20");
+        defaultProps.setProperty("httproxy.breaker.min.requests", "5");
+        defaultProps.setProperty("httproxy.breaker.failure.ratio", "0.5");
+        defaultProps.setProperty("httproxy.breaker.open.millis", "10000");
+        defaultProps.setProperty("httproxy.breaker.slow.millis", "4000");
+        defaultProps.setProperty("httproxy.net.max.upload.size", String.valueOf(100 * 1024 * 1024));
+        defaultProps.setProperty("httproxy.tunnel.ports", "443");
+        defaultProps.setProperty("httproxy.tunnel.idle.timeout", "60000");
+        defaultProps.setProperty("httproxy.cache.admission", CacheAdmissionPolicy.ALWAYS);
+        defaultProps.setProperty("httproxy.cache.admission.size", "65536");
+        defaultProps.setProperty("httproxy.cache.memory.size", String.valueOf(16 * 1024 * 1024));
+        defaultProps.setProperty("httproxy.cache.max.object.size", "65535");
+        defaultProps.setProperty("httproxy.cache.snapshot.file", "hotset.snapshot");
+        defaultProps.setProperty("httproxy.cache.snapshot.interval", "60");
+        defaultProps.setProperty("httproxy.cache.warmup.max", "1000");
+        defaultProps.setProperty("httproxy.cache.negative.ttl", "404:30,410:300");
+        defaultProps.setProperty("httproxy.cache.negative.dns.ttl", "10");
+        defaultProps.setProperty("httproxy.parent.proxies", "");
+        defaultProps.setProperty("httproxy.parent.bypass", "localhost,127.0.0.1");
+        defaultProps.setProperty("httproxy.parent.direct.fallback", "true");
+        defaultProps.setProperty("httproxy.h2c.origins", "");
+        defaultProps.setProperty("httproxy.admin.port", "0");
+        defaultProps.setProperty("httproxy.log.access.file", "-");
+        defaultProps.setProperty("httproxy.log.access.buffer", "8192");
+        defaultProps.setProperty("httproxy.log.debug", "false");
+        defaultProps.setProperty("httproxy.trace.slow.millis", "1000");
+        defaultProps.setProperty("httproxy.trace.slow.buffer", "64");
+        defaultProps.setProperty("httproxy.capture.file", "");
+        defaultProps.setProperty("httproxy.capture.buffer", "8192");
+        defaultProps.setProperty("httproxy.limit.min", "4");
+        defaultProps.setProperty("httproxy.limit.max", "64");
+        defaultProps.setProperty("httproxy.limit.adaptive", "true");
+        defaultProps.setProperty("httproxy.limit.latency.target", "2000");
+        defaultProps.setProperty("httproxy.limit.queue", "256");
+        defaultProps.setProperty("httproxy.limit.queue.timeout", "3000");
+        defaultProps.setProperty("httproxy.limit.retry.after", "1");
+        defaultProps.setProperty("httproxy.limit.tunnels", "256");
+        defaultProps.setProperty("httproxy.client.rate.requests", "0");
+        defaultProps.setProperty("httproxy.client.rate.bytes", "0");
+        defaultProps.setProperty("httproxy.client.rate.burst", "2");
+        defaultProps.setProperty("httproxy.client.rate.max.clients", "65536");
+        defaultProps.setProperty("httproxy.client.rate.allow", "");
+        defaultProps.setProperty("httproxy.admin.address", "127.0.0.1");
+        defaultProps.setProperty("httproxy.peer.nodes", "");
+        defaultProps.setProperty("httproxy.peer.self", "");
+        defaultProps.setProperty("httproxy.peer.port", "0");
+        defaultProps.setProperty("httproxy.peer.timeout", "200");
+        defaultProps.setProperty("httproxy.peer.virtual.nodes", "64");
 
         return defaultProps;
     }
@@ -47,5 +108,22 @@ public class HttpProxyModule extends AbstractModule {
         bind(ServerSocketFactory.class).toInstance(ServerSocketFactory.getDefault());
         bind(SocketFactory.class).toInstance(SocketFactory.getDefault());
         bind(HttpProxy.class).in(Scopes.SINGLETON);
+        bind(DnsCache.class).in(Scopes.SINGLETON);
+        bind(OriginHealth.class).in(Scopes.SINGLETON);
+        bind(CachePeers.class).in(Scopes.SINGLETON);
+        bind(H2cClient.class).in(Scopes.SINGLETON);
+        bind(ProxyMetrics.class).in(Scopes.SINGLETON);
+        bind(AdminServer.class).in(Scopes.SINGLETON);
+        bind(AccessLog.class).in(Scopes.SINGLETON);
+        bind(SlowRequestLog.class).in(Scopes.SINGLETON);
+        bind(TrafficCapture.class).in(Scopes.SINGLETON);
+        bind(ConcurrencyLimit.class).in(Scopes.SINGLETON);
+        bind(ClientRateLimiter.class).in(Scopes.SINGLETON);
+    }
+
+    @Provides @Singleton
+    CacheAdmissionPolicy provideAdmissionPolicy(@Named("httproxy.cache.admission") String policy,
+                                                @Named("httproxy.cache.admission.size") int size) {
+        return CacheAdmissionPolicy.create(policy, size);
     }
 }
@@ -0,0 +1,125 @@
+package il.technion.cs236369.proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in microseconds, with buckets of
+ * logarithmically growing width (each power of two is split into 16 linear
+ * sub-buckets), so any recorded value is reported within about 6% and up to
+ * about 19 hours. Recording is a couple of atomic increments; readers get
+ * a view that is consistent enough for monitoring, not a snapshot.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_SUB_COUNT = SUB_COUNT / 2;
+    private static final long MAX_VALUE = (1L << 36) - 1;
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      m_count  = new AtomicLong();
+    private final AtomicLong      m_sum    = new AtomicLong();
+    private final AtomicLong      m_max    = new AtomicLong();
+
+    /**
+     * @param micros
+     */
+    public void record(long micros) {
+        if (micros < 0)
+            micros = 0;
+        else if (micros > MAX_VALUE)
+            micros = MAX_VALUE;
+
+        m_counts.incrementAndGet(indexOf(micros));
+        m_count.incrementAndGet();
+        m_sum.addAndGet(micros);
+
+        long max;
+        while (micros > (max = m_max.get()) && !m_max.compareAndSet(max, micros))
+            ;
+    }
+
+    /**
+     * Records the time elapsed since startNanos.
+     * @param startNanos a System.nanoTime() value
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long getCount() {
+        return m_count.get();
+    }
+
+    /**
+     * @return sum of all recorded values, in microseconds
+     */
+    public long getSum() {
+        return m_sum.get();
+    }
+
+    public long getMax() {
+        return m_max.get();
+    }
+
+    public double getMean() {
+        long count = m_count.get();
+        return count == 0 ? 0 : (double) m_sum.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value equivalent to the value at percentile, in
+     * microseconds, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = m_counts.get(i);
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), m_max.get());
+        }
+        return m_max.get();
+    }
+
+    /**
+     * @param upperBound in microseconds
+     * @return number of recorded values whose bucket lies entirely at or
+     * below upperBound
+     */
+    public long getCountAtOrBelow(long upperBound) {
+        long res = 0;
+        for (int i = 0; i < BUCKETS && highestValueOf(i) <= upperBound; i++)
+            res += m_counts.get(i);
+        return res;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+        return shift * HALF_SUB_COUNT + (int) (value >>> shift);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_COUNT)
+            return index;
+
+        int shift = index / HALF_SUB_COUNT - 1;
+        long top = index % HALF_SUB_COUNT + HALF_SUB_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+}
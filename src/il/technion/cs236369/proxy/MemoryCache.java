@@ -0,0 +1,172 @@
+package il.technion.cs236369.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+
+/**
+ * In memory LRU tier in front of the cache database, bounded by the total
+ * size (in bytes) of the stored entries. Keeps the number of hits of every
+ * entry so the hot set can be snapshotted.
+ */
+public class MemoryCache {
+
+    private static class Entry {
+        final ProxyCache.CachedItem m_item;
+        final long                  m_size;
+        int                         m_hits;
+
+        Entry(ProxyCache.CachedItem item, int hits) {
+            m_item = item;
+            m_size = sizeOf(item);
+            m_hits = hits;
+        }
+    }
+
+    /**
+     * A url of the hot set and the number of times it was accessed.
+     */
+    public static class HotKey {
+        public final String m_url;
+        public final int    m_hits;
+
+        public HotKey(String url, int hits) {
+            m_url = url;
+            m_hits = hits;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> m_entries;
+    private final long                         m_maxBytes;
+    private long                               m_bytes;
+
+    /**
+     * @param maxBytes maximal total size of the stored entries, 0 disables the tier
+     */
+    public MemoryCache(long maxBytes) {
+        m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        m_maxBytes = maxBytes;
+        m_bytes = 0;
+    }
+
+    public synchronized boolean contains(String url) {
+        return m_entries.containsKey(url);
+    }
+
+    /**
+     * @param url
+     * @return the cached item of url, null if it isn't in memory
+     */
+    public synchronized ProxyCache.CachedItem get(String url) {
+        Entry e = m_entries.get(url);
+        if (e == null)
+            return null;
+
+        ++e.m_hits;
+        return e.m_item;
+    }
+
+    public void put(String url, ProxyCache.CachedItem item) {
+        put(url, item, 0);
+    }
+
+    /**
+     * Stores item, evicting least recently used entries if the tier is full.
+     * @param url
+     * @param item
+     * @param hits initial number of hits of the entry
+     */
+    public synchronized void put(String url, ProxyCache.CachedItem item, int hits) {
+        Entry e = new Entry(item, hits);
+        if (e.m_size > m_maxBytes)
+            return;
+
+        Entry old = m_entries.put(url, e);
+        if (old != null) {
+            m_bytes -= old.m_size;
+            e.m_hits += old.m_hits;
+        }
+        m_bytes += e.m_size;
+
+        Iterator<Entry> it = m_entries.values().iterator();
+        while (m_bytes > m_maxBytes && it.hasNext()) {
+            m_bytes -= it.next().m_size;
+            it.remove();
+        }
+    }
+
+    /**
+     * @param url
+     * @return true if url had an entry
+     */
+    public synchronized boolean remove(String url) {
+        Entry e = m_entries.remove(url);
+        if (e == null)
+            return false;
+
+        m_bytes -= e.m_size;
+        return true;
+    }
+
+    /**
+     * Removes the entries of all urls starting with prefix.
+     * @param prefix
+     * @return the removed urls
+     */
+    public synchronized List<String> removePrefix(String prefix) {
+        List<String> res = new ArrayList<String>();
+        Iterator<Map.Entry<String, Entry>> it = m_entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                m_bytes -= e.getValue().m_size;
+                res.add(e.getKey());
+                it.remove();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @param max
+     * @return up to max urls with the most hits, most accessed first
+     */
+    public List<HotKey> hotSet(int max) {
+        List<HotKey> res = new ArrayList<HotKey>();
+        synchronized (this) {
+            for (Map.Entry<String, Entry> e : m_entries.entrySet())
+                res.add(new HotKey(e.getKey(), e.getValue().m_hits));
+        }
+
+        Collections.sort(res, new Comparator<HotKey>() {
+            @Override
+            public int compare(HotKey a, HotKey b) {
+                return b.m_hits < a.m_hits ? -1 : (b.m_hits == a.m_hits ? 0 : 1);
+            }
+        });
+
+        return res.size() > max ? res.subList(0, max) : res;
+    }
+
+    public synchronized int getEntryCount() {
+        return m_entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return m_bytes;
+    }
+
+    private static long sizeOf(ProxyCache.CachedItem item) {
+        long size = item.m_url.length() + item.m_body.length;
+        for (Header h : item.m_headers)
+            size += h.getName().length() + h.getValue().length() + 4;
+
+        return size;
+    }
+}
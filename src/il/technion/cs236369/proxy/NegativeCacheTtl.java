@@ -0,0 +1,54 @@
+package il.technion.cs236369.proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * How long negative cache entries are served: error responses per status
+ * code, and requests whose target host couldn't be resolved.
+ */
+public class NegativeCacheTtl {
+
+    private final Map<Integer, Long> m_statusTtl = new HashMap<Integer, Long>();
+    private final long m_dnsTtl;
+
+    /**
+     * @param statusTtl comma separated status:seconds pairs, e.g. "404:30,410:300"
+     * @param dnsTtl seconds a failed resolution of the target host is cached, 0 to disable
+     */
+    @Inject
+    NegativeCacheTtl(@Named("httproxy.cache.negative.ttl") String statusTtl,
+                     @Named("httproxy.cache.negative.dns.ttl") int dnsTtl) {
+        for (String pair : statusTtl.split(",")) {
+            int sep = pair.indexOf(':');
+            if (sep < 0)
+                continue;
+
+            int status = Integer.parseInt(pair.substring(0, sep).trim());
+            long ttl = Long.parseLong(pair.substring(sep + 1).trim());
+            if (ttl > 0)
+                m_statusTtl.put(status, TimeUnit.SECONDS.toMillis(ttl));
+        }
+        m_dnsTtl = TimeUnit.SECONDS.toMillis(dnsTtl);
+    }
+
+    /**
+     * @param status
+     * @return milliseconds a response with this status is cached, 0 if it isn't
+     */
+    public long forStatus(int status) {
+        Long ttl = m_statusTtl.get(status);
+        return ttl == null ? 0 : ttl;
+    }
+
+    /**
+     * @return milliseconds a failed resolution is cached, 0 if it isn't
+     */
+    public long forUnknownHost() {
+        return m_dnsTtl;
+    }
+}
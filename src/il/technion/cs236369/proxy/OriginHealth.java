@@ -0,0 +1,74 @@
+package il.technion.cs236369.proxy;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.HttpHost;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Keeps a CircuitBreaker per target server.
+ */
+public class OriginHealth {
+
+    private static final int MAX_ORIGINS = 4096;
+
+    private final ConcurrentHashMap<HttpHost, CircuitBreaker> m_breakers =
+        new ConcurrentHashMap<HttpHost, CircuitBreaker>();
+
+    private final int    m_windowSize;
+    private final int    m_minRequests;
+    private final double m_failureRatio;
+    private final long   m_openMillis;
+    private final long   m_slowMillis;
+
+    @Inject
+    OriginHealth(@Named("httproxy.breaker.window") int windowSize,
+                 @Named("httproxy.breaker.min.requests") int minRequests,
+                 @Named("httproxy.breaker.failure.ratio") double failureRatio,
+                 @Named("httproxy.breaker.open.millis") long openMillis,
+                 @Named("httproxy.breaker.slow.millis") long slowMillis) {
+        m_windowSize = windowSize;
+        m_minRequests = minRequests;
+        m_failureRatio = failureRatio;
+        m_openMillis = openMillis;
+        m_slowMillis = slowMillis;
+    }
+
+    /**
+     * @param target
+     * @return the breaker of target, created on first use
+     */
+    public CircuitBreaker get(HttpHost target) {
+        CircuitBreaker breaker = m_breakers.get(target);
+        if (breaker != null)
+            return breaker;
+
+        if (m_breakers.size() >= MAX_ORIGINS)
+            forgetHealthy();
+
+        breaker = new CircuitBreaker(target.toHostString(), m_windowSize, m_minRequests,
+                                     m_failureRatio, m_openMillis, m_slowMillis);
+        CircuitBreaker existing = m_breakers.putIfAbsent(target, breaker);
+        return existing != null ? existing : breaker;
+    }
+
+    public Map<HttpHost, CircuitBreaker> getBreakers() {
+        return Collections.unmodifiableMap(m_breakers);
+    }
+
+    /**
+     * Drops the breakers of targets that are currently healthy.
+     */
+    private void forgetHealthy() {
+        Iterator<CircuitBreaker> it = m_breakers.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getState() == CircuitBreaker.State.CLOSED)
+                it.remove();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package il.technion.cs236369.proxy;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of contacting a target server whose circuit breaker is open.
+ */
+public class OriginUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CircuitBreaker m_breaker;
+
+    public OriginUnavailableException(CircuitBreaker breaker) {
+        super("Circuit to " + breaker.getName() + " is open");
+        m_breaker = breaker;
+    }
+
+    public CircuitBreaker getBreaker() {
+        return m_breaker;
+    }
+}
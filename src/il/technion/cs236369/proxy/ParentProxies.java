@@ -0,0 +1,143 @@
+package il.technion.cs236369.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.http.HttpHost;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Upstream proxies requests are forwarded to instead of the target server.
+ *
+ * A parent is picked by the power of two choices: two random parents are
+ * compared by their latency, weighted by their recent failure rate, and the
+ * better one is tried first. The others follow from best to worst, so a
+ * failing parent falls back to the next one, and finally to the target
+ * server itself unless direct fallback is disabled. Health of the parents is
+ * tracked by their breakers in OriginHealth.
+ *
+ * Hosts matching a bypass rule are always fetched directly. A rule matches
+ * the domain itself and all its subdomains.
+ */
+public class ParentProxies {
+
+    private final List<HttpHost> m_parents = new ArrayList<HttpHost>();
+    private final List<String>   m_bypass  = new ArrayList<String>();
+    private final boolean        m_directFallback;
+    private final OriginHealth   m_health;
+    private final Random         m_random  = new Random();
+
+    /**
+     * @param parents comma separated host:port of the parent proxies, empty to fetch directly
+     * @param bypass comma separated domains fetched directly
+     * @param directFallback fetch directly if all parents failed
+     * @param health breakers of the parents
+     */
+    @Inject
+    ParentProxies(@Named("httproxy.parent.proxies") String parents,
+                  @Named("httproxy.parent.bypass") String bypass,
+                  @Named("httproxy.parent.direct.fallback") boolean directFallback,
+                  OriginHealth health) {
+        for (String parent : parents.split(",")) {
+            parent = parent.trim();
+            if (parent.length() == 0)
+                continue;
+
+            int sep = parent.lastIndexOf(':');
+            if (sep > 0)
+                m_parents.add(new HttpHost(parent.substring(0, sep).toLowerCase(Locale.ENGLISH),
+                                           Integer.parseInt(parent.substring(sep + 1))));
+            else
+                m_parents.add(new HttpHost(parent.toLowerCase(Locale.ENGLISH), 3128));
+        }
+
+        for (String domain : bypass.split(",")) {
+            domain = domain.trim().toLowerCase(Locale.ENGLISH);
+            if (domain.startsWith("."))
+                domain = domain.substring(1);
+            if (domain.length() > 0)
+                m_bypass.add(domain);
+        }
+
+        m_directFallback = directFallback;
+        m_health = health;
+    }
+
+    /**
+     * @param host target host of a request
+     * @return the parents to try in order, empty if host is fetched directly
+     */
+    public List<HttpHost> select(String host) {
+        if (m_parents.isEmpty() || isBypassed(host))
+            return Collections.emptyList();
+
+        // costs are taken once, the breakers keep changing while sorting
+        final Map<HttpHost, Double> costs = new HashMap<HttpHost, Double>();
+        for (HttpHost parent : m_parents)
+            costs.put(parent, cost(parent));
+
+        List<HttpHost> res = new ArrayList<HttpHost>(m_parents);
+        Collections.sort(res, new Comparator<HttpHost>() {
+            @Override
+            public int compare(HttpHost a, HttpHost b) {
+                return costs.get(a).compareTo(costs.get(b));
+            }
+        });
+
+        if (res.size() > 1) {
+            int i = m_random.nextInt(res.size());
+            int j = m_random.nextInt(res.size() - 1);
+            if (j >= i)
+                ++j;
+
+            // on a tie the first random pick wins, spreading load evenly
+            HttpHost first = costs.get(res.get(j)) < costs.get(res.get(i)) ? res.get(j) : res.get(i);
+            res.remove(first);
+            res.add(0, first);
+        }
+
+        return res;
+    }
+
+    /**
+     * @return true if requests whose parents all failed go to the target server
+     */
+    public boolean isDirectFallback() {
+        return m_directFallback;
+    }
+
+    public List<HttpHost> getParents() {
+        return Collections.unmodifiableList(m_parents);
+    }
+
+    private boolean isBypassed(String host) {
+        host = host.toLowerCase(Locale.ENGLISH);
+        for (String domain : m_bypass) {
+            if (host.equals(domain) || host.endsWith("." + domain))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param parent
+     * @return expected cost of sending a request to parent, lower is better
+     */
+    private double cost(HttpHost parent) {
+        CircuitBreaker breaker = m_health.get(parent);
+        if (breaker.getState() != CircuitBreaker.State.CLOSED)
+            return Double.MAX_VALUE;
+
+        double failureRate = Math.min(breaker.getFailureRate(), 0.99);
+        return (breaker.getLatencyEwma() + 1) / (1 - failureRate);
+    }
+}
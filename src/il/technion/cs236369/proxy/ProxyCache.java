@@ -1,32 +1,84 @@
 package il.technion.cs236369.proxy;
 
+import java.net.SocketTimeoutException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.http.Header;
+import org.apache.http.HttpStatus;
 import org.apache.http.message.BasicHeader;
 
 /**
  *  Connection to database is created and then closed whenever neccessary.
+ *
+ *  Bodies are stored once per content (SHA-1 of the body) with a reference
+ *  count, and url entries point at the shared body:
+ *      &lt;table&gt;        (url VARCHAR(255) PRIMARY KEY, headers TEXT, hash CHAR(40),
+ *                       status INT, expires BIGINT)
+ *      &lt;table&gt;_bodies (hash CHAR(40) PRIMARY KEY, refcount INT, body MEDIUMBLOB)
+ *  Both tables are created on first use if they don't exist, and tables of
+ *  an older layout are migrated. That's done on a thread of its own; until
+ *  it's done the calls for urls of the shard act as cache misses.
+ *
+ *  The keyspace may be sharded across several database servers (setShards):
+ *  each url is mapped to a shard by consistent hashing (HashRing), and every
+ *  shard keeps its own pool of connections. The calls for urls of a shard
+ *  that is down act as cache misses.
+ *
+ *  An in memory LRU tier (MemoryCache) is consulted before the database.
+ *  With an empty database url there are no shards and the cache lives in
+ *  that tier only.
+ *
+ *  Besides 200 responses that are revalidated on every use, negative entries
+ *  (error responses, failed resolutions) are stored with their status and an
+ *  expiry time, and are served as they are until they expire.
  */
 public class ProxyCache {
     private static Logger log = Logger.getLogger(HttpProxy.class.getName());
 
-    private static int MAX_BODYLEN = 65535;
     private static int MAX_URLLEN = 255;
+    private static int VIRTUAL_NODES = 64;
+    private static int MOVE_BATCH = 100;
+
+    /**
+     * Status of a negative entry recording that the target host couldn't be resolved.
+     */
+    public static final int UNKNOWN_HOST = 0;
 
-    private Connection    m_dbconn;
     private String        m_tblName;
+    private String        m_bodyTblName;
     private Properties    m_connprop;
     private boolean       m_driverproblem;
-    private String        m_dbUrl;
     private String        m_dbName;
+    private volatile List<CacheShard>      m_shards;
+    private volatile HashRing<CacheShard>  m_ring;
+    private int           m_poolSize;
+    private CacheAdmissionPolicy m_admission;
+    private MemoryCache   m_memory;
+    private int           m_maxBodyLen;
+    private int           m_dbTimeout;
+
+    private final AtomicLong m_negativeStores = new AtomicLong();
+    private final AtomicLong m_negativeHits   = new AtomicLong();
+    private final AtomicLong m_memoryHits     = new AtomicLong();
+    private final AtomicLong m_persistentHits = new AtomicLong();
+    private final AtomicLong m_lookupMisses   = new AtomicLong();
 
     /**
      * Used to return the stored data in the cache.
@@ -35,11 +87,45 @@ public class ProxyCache {
         public final String   m_url;
         public final Header[] m_headers;
         public final byte[]   m_body;
+        public final int      m_status;
+        public final long     m_expires; // 0 for entries that are revalidated instead
 
         public CachedItem(String url, Header[] headers, byte[] body) {
+            this(url, HttpStatus.SC_OK, headers, body, 0);
+        }
+
+        public CachedItem(String url, int status, Header[] headers, byte[] body, long expires) {
             m_url = url;
+            m_status = status;
             m_headers = headers;
             m_body = body;
+            m_expires = expires;
+        }
+
+        /**
+         * @return true for a cached error response or failed resolution
+         */
+        public boolean isNegative() {
+            return m_expires > 0;
+        }
+
+        public boolean isExpired() {
+            return m_expires > 0 && m_expires <= System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Size of the part of the cache stored in one database.
+     */
+    public static class ShardStats {
+        public final long m_entries;
+        public final long m_bodies;
+        public final long m_bodyBytes;
+
+        public ShardStats(long entries, long bodies, long bodyBytes) {
+            m_entries = entries;
+            m_bodies = bodies;
+            m_bodyBytes = bodyBytes;
         }
     }
 
@@ -48,10 +134,19 @@ public class ProxyCache {
                       String tblName,
                       String dbUser,
                       String dbPasswd,
-                      String dbDriver) {
+                      String dbDriver,
+                      long memorySize) {
 
-        m_dbconn = null;
+        m_memory = new MemoryCache(memorySize);
+        m_maxBodyLen = 65535;
+        m_dbTimeout = 0;
         m_tblName = tblName;
+        m_bodyTblName = tblName + "_bodies";
+        m_poolSize = 4;
+        setShards(dbUrl.trim().length() > 0
+                  ? Collections.singletonList(dbUrl)
+                  : Collections.<String>emptyList());
+        m_admission = CacheAdmissionPolicy.create(CacheAdmissionPolicy.ALWAYS, 0);
         try {
             Class.forName(dbDriver);
         }
@@ -65,42 +160,182 @@ public class ProxyCache {
         m_connprop.put("password", dbPasswd);
 
         m_driverproblem = false;
-        m_dbUrl = dbUrl;
         m_dbName = dbName;
     }
 
     /**
-     * Stores Http response data in the cache.
+     * Spreads the entries over several cache databases. Entries stored
+     * before are found again only if their url still maps to the same shard.
+     * @param dbUrls JDBC urls of the database servers
+     */
+    public void setShards(List<String> dbUrls) {
+        List<CacheShard> shards = new ArrayList<CacheShard>();
+        for (String dbUrl : dbUrls)
+            shards.add(new CacheShard(dbUrl, m_poolSize));
+
+        m_shards = Collections.unmodifiableList(shards);
+        m_ring = new HashRing<CacheShard>(shards, VIRTUAL_NODES);
+    }
+
+    public List<CacheShard> getShards() {
+        return m_shards;
+    }
+
+    /**
+     * @param poolSize idle connections kept per shard
+     */
+    public void setPoolSize(int poolSize) {
+        m_poolSize = poolSize;
+        for (CacheShard shard : m_shards)
+            shard.setMaxIdle(poolSize);
+    }
+
+    public void setAdmissionPolicy(CacheAdmissionPolicy admission) {
+        m_admission = admission;
+    }
+
+    public CacheAdmissionPolicy getAdmissionPolicy() {
+        return m_admission;
+    }
+
+    /**
+     * @param maxBodyLen largest body (in bytes) stored in the cache
+     */
+    public void setMaxObjectSize(int maxBodyLen) {
+        m_maxBodyLen = maxBodyLen;
+    }
+
+    public int getMaxObjectSize() {
+        return m_maxBodyLen;
+    }
+
+    /**
+     * @param dbTimeout milliseconds a database call may take, 0 for the driver's default
+     */
+    public void setDbTimeout(int dbTimeout) {
+        m_dbTimeout = dbTimeout;
+        if (m_connprop != null && dbTimeout > 0)
+            m_connprop.setProperty("socketTimeout", String.valueOf(dbTimeout));
+    }
+
+    public MemoryCache getMemoryCache() {
+        return m_memory;
+    }
+
+    /**
+     * Consults the admission policy before storing a response that missed the cache.
+     * @param url
+     * @return true if the response for url should be stored
+     */
+    public boolean admit(String url) {
+        return m_admission.admit(url);
+    }
+
+    /**
+     * Stores Http response data in the cache. If a body with the same content
+     * is already stored, only its reference count is updated.
      * @param url -  the url for which we store the GET response
      * @param headers - http headers of the response
      * @param body - the body of the response
      */
     public void store(String url, Header[] headers, byte[] body) {
-        if (body.length > MAX_BODYLEN || url.length() > MAX_URLLEN)
+        store(new CachedItem(url, headers, body));
+    }
+
+    /**
+     * Stores a negative entry, served without revalidation until it expires.
+     * @param url -  the url for which we store the GET response
+     * @param status - status code of the response
+     * @param headers - http headers of the response
+     * @param body - the body of the response
+     * @param ttl - milliseconds the entry is served
+     */
+    public void storeNegative(String url, int status, Header[] headers, byte[] body, long ttl) {
+        if (ttl <= 0)
             return;
 
-        if (!connect())
+        m_negativeStores.incrementAndGet();
+        store(new CachedItem(url, status, headers, body, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Counts a request answered from a negative entry.
+     */
+    public void countNegativeHit() {
+        m_negativeHits.incrementAndGet();
+    }
+
+    public long getNegativeStoreCount() {
+        return m_negativeStores.get();
+    }
+
+    public long getNegativeHitCount() {
+        return m_negativeHits.get();
+    }
+
+    private void store(CachedItem item) {
+        String url = item.m_url;
+        byte[] body = item.m_body;
+        if (body.length > m_maxBodyLen || url.length() > MAX_URLLEN)
+            return;
+
+        m_memory.put(url, item);
+
+        CacheShard shard = m_ring.get(url);
+        if (shard == null)
+            return;
+
+        String hash = contentHash(body);
+        if (hash == null)
             return;
 
-        log.info("Creating/updating cache entry for url: " + url);
+        Connection dbconn = connect(shard);
+        if (dbconn == null)
+            return;
+
+        log.log(Level.FINE, "Creating/updating cache entry for url: {0}", url);
         try {
-            PreparedStatement stmt = m_dbconn.prepareStatement("INSERT INTO " + m_tblName +
-                                                               " (url,headers,body) VALUES (?,?,?) " +
-                                                               "ON DUPLICATE KEY UPDATE headers=?, body=?");
-            String headersStr = headersToString(headers);
+            dbconn.setAutoCommit(false);
+
+            String oldHash = null;
+            PreparedStatement stmt = dbconn.prepareStatement("SELECT hash FROM " + m_tblName +
+                                                               " WHERE url=? FOR UPDATE");
             stmt.setString(1, url);
-            stmt.setString(2, headersStr);
-            stmt.setBytes(3, body);
-            stmt.setString(4, headersStr);
-            stmt.setBytes(5, body);
+            ResultSet resset = stmt.executeQuery();
+            if (resset.next())
+                oldHash = resset.getString(1);
 
+            if (!hash.equals(oldHash))
+                acquireBody(dbconn, hash, body);
+
+            stmt = dbconn.prepareStatement("INSERT INTO " + m_tblName +
+                                             " (url,headers,hash,status,expires) VALUES (?,?,?,?,?) " +
+                                             "ON DUPLICATE KEY UPDATE headers=?, hash=?, status=?, expires=?");
+            String headersStr = headersToString(item.m_headers);
+            stmt.setString(1, url);
+            stmt.setString(2, headersStr);
+            stmt.setString(3, hash);
+            stmt.setInt(4, item.m_status);
+            stmt.setLong(5, item.m_expires);
+            stmt.setString(6, headersStr);
+            stmt.setString(7, hash);
+            stmt.setInt(8, item.m_status);
+            stmt.setLong(9, item.m_expires);
             stmt.executeUpdate();
+
+            if (oldHash != null && !hash.equals(oldHash))
+                releaseBody(dbconn, oldHash);
+
+            dbconn.commit();
         }
         catch (SQLException e) {
             log.info("Error creating/updating cache entry for url: " + url);
+            rollback(dbconn);
+            shard.discard(dbconn, e);
+            dbconn = null;
         }
         finally {
-            disconnect();
+            shard.release(dbconn);
         }
     }
 
@@ -110,28 +345,66 @@ public class ProxyCache {
      * we return an empty CachedItem.
      */
     public CachedItem retrieve(String url) {
+        return retrieve(url, Deadline.NONE);
+    }
+
+    /**
+     * @param url - check if cache stores the response for GET request for this url
+     * @param deadline bounds the time spent in the database
+     * @return the cached response data for this url if exists. If doesn't exist,
+     * we return an empty CachedItem.
+     */
+    public CachedItem retrieve(String url, Deadline deadline) {
+        CachedItem res = m_memory.get(url);
+        if (res != null)
+            return res;
+
+        res = retrievePersistent(url, deadline);
+        if (res.m_headers.length > 0 || res.isNegative())
+            m_memory.put(url, res, 1);
+
+        return res;
+    }
+
+    /**
+     * Reads url's entry from the database, bypassing the memory tier.
+     * @param url
+     * @return the cached response data for this url if exists. If doesn't exist,
+     * we return an empty CachedItem.
+     */
+    public CachedItem retrievePersistent(String url) {
+        return retrievePersistent(url, Deadline.NONE);
+    }
+
+    private CachedItem retrievePersistent(String url, Deadline deadline) {
         CachedItem res = new CachedItem(url, new Header[0], new byte[0]);
 
-        if (!connect())
+        CacheShard shard = m_ring.get(url);
+        Connection dbconn = connect(shard, deadline);
+        if (dbconn == null)
             return res;
 
-        log.info("Retrieving cache entry for url: " + url);
+        log.log(Level.FINE, "Retrieving cache entry for url: {0}", url);
         try {
-            PreparedStatement stmt = m_dbconn.prepareStatement("SELECT * FROM " + m_tblName + " WHERE url=?");
+            PreparedStatement stmt = dbconn.prepareStatement("SELECT u.headers, b.body, u.status, u.expires FROM " +
+                                                               m_tblName + " u JOIN " + m_bodyTblName +
+                                                               " b ON u.hash=b.hash WHERE u.url=?");
             stmt.setString(1, url);
 
             ResultSet resset = stmt.executeQuery();
             resset.next();
-            String headersStr = resset.getString(2);
-            byte[] body = resset.getBytes(3);
+            String headersStr = resset.getString(1);
+            byte[] body = resset.getBytes(2);
 
-            return new CachedItem(url, strToHeaders(headersStr), body);
+            return new CachedItem(url, resset.getInt(3), strToHeaders(headersStr), body, resset.getLong(4));
         }
         catch (SQLException e) {
             log.info("Retrieval of cache entry for url: " + url + " failed!");
+            shard.discard(dbconn, e);
+            dbconn = null;
         }
         finally {
-            disconnect();
+            shard.release(dbconn);
         }
 
         return res;
@@ -139,24 +412,165 @@ public class ProxyCache {
 
     /**
      * Given url, we remove the cache entry that stores the response for this url.
+     * The body is removed too if no other url references it.
      * @param url
+     * @return true if url had an entry
      */
-    public void invalidate(String url) {
-        if (!connect())
-            return;
+    public boolean invalidate(String url) {
+        boolean removed = m_memory.remove(url);
 
-        log.info("Invalidating cache entry for url: " + url);
+        CacheShard shard = m_ring.get(url);
+        Connection dbconn = connect(shard);
+        if (dbconn == null)
+            return removed;
+
+        log.log(Level.FINE, "Invalidating cache entry for url: {0}", url);
         try {
-            PreparedStatement stmt = m_dbconn.prepareStatement("DELETE FROM " + m_tblName + " WHERE url=?");
+            dbconn.setAutoCommit(false);
+
+            PreparedStatement stmt = dbconn.prepareStatement("SELECT hash FROM " + m_tblName +
+                                                               " WHERE url=? FOR UPDATE");
             stmt.setString(1, url);
-            stmt.executeUpdate();
+            ResultSet resset = stmt.executeQuery();
+            if (resset.next()) {
+                String hash = resset.getString(1);
+
+                stmt = dbconn.prepareStatement("DELETE FROM " + m_tblName + " WHERE url=?");
+                stmt.setString(1, url);
+                stmt.executeUpdate();
+
+                releaseBody(dbconn, hash);
+                removed = true;
+            }
+
+            dbconn.commit();
         }
         catch (SQLException e) {
             log.info("Failed to invalidate cache entry of url: " + url);
+            rollback(dbconn);
+            shard.discard(dbconn, e);
+            dbconn = null;
         }
         finally {
-            disconnect();
+            shard.release(dbconn);
         }
+
+        return removed;
+    }
+
+    /**
+     * Removes the entries of all urls starting with prefix, from the memory
+     * tier and from every shard that is up.
+     * @param prefix
+     * @return number of urls removed
+     */
+    public int invalidatePrefix(String prefix) {
+        Set<String> removed = new HashSet<String>(m_memory.removePrefix(prefix));
+
+        for (CacheShard shard : m_shards) {
+            Connection dbconn = connect(shard);
+            if (dbconn == null)
+                continue;
+
+            log.info("Invalidating cache entries of " + shard + " starting with: " + prefix);
+            try {
+                dbconn.setAutoCommit(false);
+
+                PreparedStatement stmt = dbconn.prepareStatement("SELECT url, hash FROM " + m_tblName +
+                                                                   " WHERE url LIKE ? FOR UPDATE");
+                stmt.setString(1, escapeLike(prefix) + "%");
+                ResultSet resset = stmt.executeQuery();
+                List<String[]> entries = new ArrayList<String[]>();
+                while (resset.next())
+                    entries.add(new String[] { resset.getString(1), resset.getString(2) });
+
+                for (String[] entry : entries) {
+                    stmt = dbconn.prepareStatement("DELETE FROM " + m_tblName + " WHERE url=?");
+                    stmt.setString(1, entry[0]);
+                    stmt.executeUpdate();
+
+                    releaseBody(dbconn, entry[1]);
+                }
+
+                dbconn.commit();
+                for (String[] entry : entries)
+                    removed.add(entry[0]);
+            }
+            catch (SQLException e) {
+                log.info("Failed to invalidate cache entries of " + shard + " starting with: " + prefix);
+                rollback(dbconn);
+                shard.discard(dbconn, e);
+                dbconn = null;
+            }
+            finally {
+                shard.release(dbconn);
+            }
+        }
+
+        return removed.size();
+    }
+
+    /**
+     * Removes the entries of all urls of host, on any port.
+     * @param host
+     * @return number of urls removed
+     */
+    public int invalidateHost(String host) {
+        String origin = "http://" + host.toLowerCase(Locale.ENGLISH);
+        int res = invalidatePrefix(origin + "/") + invalidatePrefix(origin + ":");
+        if (invalidate(origin))
+            ++res;
+
+        return res;
+    }
+
+    /**
+     * @param shard
+     * @return the size of the entries stored in shard, null if it can't be reached
+     */
+    public ShardStats getShardStats(CacheShard shard) {
+        Connection dbconn = connect(shard);
+        if (dbconn == null)
+            return null;
+
+        try {
+            ResultSet urls = dbconn.createStatement().executeQuery("SELECT COUNT(*) FROM " + m_tblName);
+            urls.next();
+            ResultSet bodies = dbconn.createStatement().executeQuery(
+                "SELECT COUNT(*), COALESCE(SUM(LENGTH(body)), 0) FROM " + m_bodyTblName);
+            bodies.next();
+
+            return new ShardStats(urls.getLong(1), bodies.getLong(1), bodies.getLong(2));
+        }
+        catch (SQLException e) {
+            shard.discard(dbconn, e);
+            dbconn = null;
+            return null;
+        }
+        finally {
+            shard.release(dbconn);
+        }
+    }
+
+    /**
+     * @return number of lookups answered from the memory tier
+     */
+    public long getMemoryHitCount() {
+        return m_memoryHits.get();
+    }
+
+    /**
+     * @return number of lookups answered from a database
+     */
+    public long getPersistentHitCount() {
+        return m_persistentHits.get();
+    }
+
+    /**
+     * @return number of lookups neither tier could answer
+     */
+    public long getLookupMissCount() {
+        return m_lookupMisses.get();
     }
 
     /**
@@ -165,60 +579,367 @@ public class ProxyCache {
      * @return true if there is cached response for the url, false otherwise.
      */
     public boolean contains(String url) {
-        if (!connect())
+        return contains(url, Deadline.NONE);
+    }
+
+    /**
+     * Check if there is a cached response to GET request of url
+     * @param url
+     * @param deadline bounds the time spent in the database
+     * @return true if there is cached response for the url, false otherwise.
+     */
+    public boolean contains(String url, Deadline deadline) {
+        if (m_memory.contains(url)) {
+            m_memoryHits.incrementAndGet();
+            return true;
+        }
+
+        CacheShard shard = m_ring.get(url);
+        Connection dbconn = connect(shard, deadline);
+        if (dbconn == null) {
+            m_lookupMisses.incrementAndGet();
             return false;
+        }
 
         try {
-            PreparedStatement stmt = m_dbconn.prepareStatement("SELECT COUNT(*) FROM " + m_tblName + " WHERE url=?");
+            PreparedStatement stmt = dbconn.prepareStatement("SELECT COUNT(*) FROM " + m_tblName + " WHERE url=?");
             stmt.setString(1, url);
             ResultSet resset = stmt.executeQuery();
             resset.next();
-            if (Integer.parseInt(resset.getString(1)) > 0)
+            if (Integer.parseInt(resset.getString(1)) > 0) {
+                m_persistentHits.incrementAndGet();
                 return true;
+            }
 
+            m_lookupMisses.incrementAndGet();
+            return false;
+        }
+        catch (SQLException e) {
+            shard.discard(dbconn, e);
+            dbconn = null;
+            m_lookupMisses.incrementAndGet();
             return false;
         }
-        catch (SQLException ignore) { return false; }
         finally {
-            disconnect();
+            shard.release(dbconn);
         }
     }
 
     // ++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
 
     /**
-     * Create a connection to the cache database.
-     * @return true if connection is successful, false otherwise.
+     * Get a connection to the cache database of a shard.
+     * @param shard
+     * @return the connection, null if the shard is down.
      */
-    private boolean connect() {
-        if (m_driverproblem)
-            return false;
+    private Connection connect(CacheShard shard) {
+        return connect(shard, Deadline.NONE);
+    }
 
+    /**
+     * Get a connection to the cache database of a shard. A new connection's
+     * connect timeout is bounded by the deadline; calls on the connection are
+     * bounded by the database timeout.
+     * @param shard
+     * @param deadline
+     * @return the connection, null if the shard is down or the deadline passed.
+     */
+    private Connection connect(CacheShard shard, Deadline deadline) {
+        if (m_driverproblem || shard == null)
+            return null;
+
+        Properties connprop = m_connprop;
         try {
-            m_dbconn = DriverManager.getConnection(m_dbUrl, m_connprop);
-            m_dbconn.createStatement().executeQuery("USE " + m_dbName);
+            int timeout = deadline.bound(m_dbTimeout);
+            if (timeout > 0) {
+                connprop = new Properties(m_connprop);
+                connprop.setProperty("connectTimeout", String.valueOf(timeout));
+            }
+        }
+        catch (SocketTimeoutException e) {
+            log.info("No time left for the cache DB");
+            return null;
         }
-        catch (Exception e) {
-            System.err.println("[!] Problem connecting/using cache DB - will continue without using cache");
-            m_dbconn = null;
+
+        if (!shard.isSchemaReady()) {
+            prepareSchema(shard);
+            return null;
         }
 
-        return m_dbconn != null;
+        return shard.borrow(connprop, m_dbName);
     }
 
     /**
-     * Close the connection to the database, if exists.
+     * Starts bringing the tables of a shard up to date on a thread of its
+     * own, unless that's under way already. Moving the bodies of a large
+     * table takes long, and requests shouldn't wait for it.
+     * @param shard
      */
-    private void disconnect() {
-        if (m_dbconn == null)
+    private void prepareSchema(final CacheShard shard) {
+        if (shard.isDown() || !shard.beginMigration())
             return;
 
+        // the migration's statements may take longer than the timeout of a
+        // request's. Nothing is pooled before the schema is ready, so this is
+        // a new connection, and it's closed after instead of pooled.
+        final Properties connprop = new Properties(m_connprop);
+        connprop.setProperty("socketTimeout", "0");
+
+        Thread migration = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Connection dbconn = shard.borrow(connprop, m_dbName);
+                if (dbconn == null) {
+                    shard.endMigration(false);
+                    return;
+                }
+
+                boolean done = false;
+                try {
+                    migrateSchema(shard, dbconn);
+                    done = true;
+                    dbconn.close();
+                }
+                catch (SQLException e) {
+                    if (!done) {
+                        System.err.println("[!] Problem preparing cache DB " + shard +
+                                           " - will continue without using it");
+                        shard.discard(dbconn, e);
+                    }
+                }
+                finally {
+                    shard.endMigration(done);
+                }
+            }
+        }, "cache-schema");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    /**
+     * Creates the url and body tables of a shard if they don't exist yet,
+     * and brings tables of an older layout up to date: the url table gets
+     * the hash, status and expires columns, and bodies it still holds are
+     * moved to the body table.
+     * @throws SQLException
+     */
+    private void migrateSchema(CacheShard shard, Connection dbconn) throws SQLException {
+        dbconn.createStatement().executeUpdate("CREATE TABLE IF NOT EXISTS " + m_tblName +
+                                                 " (url VARCHAR(" + MAX_URLLEN + ") PRIMARY KEY," +
+                                                 " headers TEXT, hash CHAR(40)," +
+                                                 " status INT NOT NULL DEFAULT " + HttpStatus.SC_OK + "," +
+                                                 " expires BIGINT NOT NULL DEFAULT 0)");
+        dbconn.createStatement().executeUpdate("CREATE TABLE IF NOT EXISTS " + m_bodyTblName +
+                                                 " (hash CHAR(40) PRIMARY KEY, refcount INT NOT NULL," +
+                                                 " body MEDIUMBLOB)");
+
+        Set<String> columns = getColumns(dbconn, m_tblName).keySet();
+        if (!columns.contains("hash")) {
+            log.info("Adding the hash column to cache table " + m_tblName + " of " + shard);
+            dbconn.createStatement().executeUpdate("ALTER TABLE " + m_tblName + " ADD COLUMN hash CHAR(40)");
+        }
+        if (!columns.contains("status")) {
+            log.info("Adding the status column to cache table " + m_tblName + " of " + shard);
+            dbconn.createStatement().executeUpdate("ALTER TABLE " + m_tblName +
+                                                     " ADD COLUMN status INT NOT NULL DEFAULT " + HttpStatus.SC_OK);
+        }
+        if (!columns.contains("expires")) {
+            log.info("Adding the expires column to cache table " + m_tblName + " of " + shard);
+            dbconn.createStatement().executeUpdate("ALTER TABLE " + m_tblName +
+                                                     " ADD COLUMN expires BIGINT NOT NULL DEFAULT 0");
+        }
+        if (columns.contains("body"))
+            moveBodies(shard, dbconn);
+
+        if (!"MEDIUMBLOB".equalsIgnoreCase(getColumns(dbconn, m_bodyTblName).get("body"))) {
+            log.info("Widening the body column of " + m_bodyTblName + " of " + shard);
+            dbconn.createStatement().executeUpdate("ALTER TABLE " + m_bodyTblName + " MODIFY body MEDIUMBLOB");
+        }
+        shard.setSchemaReady();
+    }
+
+    /**
+     * Moves the bodies kept in the url table (as the first layout did) to
+     * the body table, and drops the url table's body column. Urls are read
+     * a batch at a time and bodies one at a time, so the table needn't fit
+     * in memory. Entries without a body are deleted, having nothing to
+     * point at.
+     * @throws SQLException if a body couldn't be moved; the column is kept then
+     */
+    private void moveBodies(CacheShard shard, Connection dbconn) throws SQLException {
+        System.err.println("[!] Moving the bodies of cache table " + m_tblName + " of " + shard +
+                           " to " + m_bodyTblName);
+        boolean autoCommit = dbconn.getAutoCommit();
+        try {
+            dbconn.setAutoCommit(false);
+            int moved = 0;
+            String last = null;
+            List<String> urls;
+            do {
+                urls = new ArrayList<String>();
+                PreparedStatement stmt = dbconn.prepareStatement("SELECT url FROM " + m_tblName +
+                                                                   " WHERE hash IS NULL AND body IS NOT NULL" +
+                                                                   (last != null ? " AND url>?" : "") +
+                                                                   " ORDER BY url LIMIT " + MOVE_BATCH);
+                if (last != null)
+                    stmt.setString(1, last);
+                ResultSet resset = stmt.executeQuery();
+                while (resset.next())
+                    urls.add(resset.getString(1));
+                resset.close();
+                dbconn.commit();
+
+                for (String url : urls) {
+                    if (moveBody(dbconn, url))
+                        ++moved;
+                    last = url;
+                }
+            } while (urls.size() == MOVE_BATCH);
+            log.info("Moved " + moved + " bodies to " + m_bodyTblName);
+
+            int orphans = dbconn.createStatement().executeUpdate("DELETE FROM " + m_tblName +
+                                                                   " WHERE hash IS NULL AND body IS NULL");
+            dbconn.commit();
+            log.info("Deleted " + orphans + " entries without a body from " + m_tblName);
+        }
+        catch (SQLException e) {
+            rollback(dbconn);
+            throw e;
+        }
+        finally {
+            dbconn.setAutoCommit(autoCommit);
+        }
+
+        dbconn.createStatement().executeUpdate("ALTER TABLE " + m_tblName + " DROP COLUMN body");
+    }
+
+    /**
+     * Moves the body of one entry of the url table to the body table, and
+     * commits.
+     * @param dbconn
+     * @param url
+     * @return false if the entry has no body to move (anymore)
+     * @throws SQLException
+     */
+    private boolean moveBody(Connection dbconn, String url) throws SQLException {
+        PreparedStatement stmt = dbconn.prepareStatement("SELECT body FROM " + m_tblName +
+                                                           " WHERE url=? AND hash IS NULL FOR UPDATE");
+        stmt.setString(1, url);
+        ResultSet resset = stmt.executeQuery();
+        byte[] body = resset.next() ? resset.getBytes(1) : null;
+        resset.close();
+        if (body == null) {
+            dbconn.commit();
+            return false;
+        }
+
+        String hash = contentHash(body);
+        if (hash == null)
+            throw new SQLException("SHA-1 isn't available to address the moved bodies");
+
+        acquireBody(dbconn, hash, body);
+        stmt = dbconn.prepareStatement("UPDATE " + m_tblName + " SET hash=? WHERE url=?");
+        stmt.setString(1, hash);
+        stmt.setString(2, url);
+        stmt.executeUpdate();
+        dbconn.commit();
+        return true;
+    }
+
+    /**
+     * @param dbconn
+     * @param table
+     * @return the lower case names of the columns of table, mapped to their type names
+     * @throws SQLException
+     */
+    private static Map<String, String> getColumns(Connection dbconn, String table) throws SQLException {
+        Map<String, String> res = new HashMap<String, String>();
+        ResultSet rs = dbconn.getMetaData().getColumns(dbconn.getCatalog(), null, table, null);
+        try {
+            while (rs.next())
+                res.put(rs.getString("COLUMN_NAME").toLowerCase(Locale.ENGLISH), rs.getString("TYPE_NAME"));
+        }
+        finally {
+            rs.close();
+        }
+        return res;
+    }
+
+    /**
+     * Adds a reference to the body with the given hash. The body is written
+     * only if it isn't stored yet. This is a single statement, so concurrent
+     * stores of the same new body don't both try to insert it.
+     * @param dbconn
+     * @param hash
+     * @param body
+     * @throws SQLException
+     */
+    private void acquireBody(Connection dbconn, String hash, byte[] body) throws SQLException {
+        PreparedStatement stmt = dbconn.prepareStatement("INSERT INTO " + m_bodyTblName +
+                                                           " (hash,refcount,body) VALUES (?,1,?) " +
+                                                           "ON DUPLICATE KEY UPDATE refcount=refcount+1");
+        stmt.setString(1, hash);
+        stmt.setBytes(2, body);
+        stmt.executeUpdate();
+    }
+
+    /**
+     * Removes a reference to the body with the given hash, and the body
+     * itself once nothing references it.
+     * @param dbconn
+     * @param hash
+     * @throws SQLException
+     */
+    private void releaseBody(Connection dbconn, String hash) throws SQLException {
+        PreparedStatement stmt = dbconn.prepareStatement("UPDATE " + m_bodyTblName +
+                                                           " SET refcount=refcount-1 WHERE hash=?");
+        stmt.setString(1, hash);
+        stmt.executeUpdate();
+
+        stmt = dbconn.prepareStatement("DELETE FROM " + m_bodyTblName +
+                                         " WHERE hash=? AND refcount<=0");
+        stmt.setString(1, hash);
+        stmt.executeUpdate();
+    }
+
+    /**
+     * @param s
+     * @return s with the wildcards of a LIKE pattern escaped
+     */
+    private static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Rolls back the current transaction, if any.
+     * @param dbconn
+     */
+    private void rollback(Connection dbconn) {
         try {
-            m_dbconn.close();
+            dbconn.rollback();
         }
         catch (SQLException ignore) {}
+    }
+
+    /**
+     * @param body
+     * @return hex encoded SHA-1 of the body, null if SHA-1 isn't available
+     */
+    private String contentHash(byte[] body) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+
+        byte[] digest = md.digest(body);
+        StringBuilder res = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+            res.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
 
-        m_dbconn = null;
+        return res.toString();
     }
 
     /**
@@ -229,7 +950,7 @@ public class ProxyCache {
      * @param headers
      * @return string value representing all headers in the array.
      */
-    private String headersToString(Header[] headers) {
+    String headersToString(Header[] headers) {
         StringBuilder res = new StringBuilder();
         for (Header h : headers)
             res.append(h.toString() + "\r\n");
@@ -243,7 +964,7 @@ public class ProxyCache {
      * @param headersStr
      * @return array of headers constructed from the string.
      */
-    private Header[] strToHeaders(String headersStr) {
+    Header[] strToHeaders(String headersStr) {
         ArrayList<BasicHeader> res = new ArrayList<BasicHeader>();
 
         String[] headerLines = headersStr.split("\\r\\n");
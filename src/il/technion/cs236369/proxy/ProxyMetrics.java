@@ -0,0 +1,188 @@
+package il.technion.cs236369.proxy;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.inject.Inject;
+
+/**
+ * Latency histograms of the phases a request goes through, and counters of
+ * the proxy's traffic. Everything is updated without locks and may be read
+ * at any time while the proxy runs.
+ */
+public class ProxyMetrics {
+
+    public enum Phase {
+        /** waiting for a worker and the concurrency limit after the connection was accepted */
+        QUEUE,
+        /** setting up an accepted client connection */
+        ACCEPT,
+        /** receiving and parsing the request header */
+        PARSE,
+        /** looking the request up in the cache and at the cache peers */
+        CACHE_LOOKUP,
+        /** asking the target whether a cached entry is still valid */
+        REVALIDATION,
+        /** connecting to the target or to a parent proxy */
+        CONNECT,
+        /** sending the request until the target's response header arrived */
+        FIRST_BYTE,
+        /** sending the response to the client, body included */
+        BODY,
+        /** storing a response in the cache */
+        CACHE_STORE
+    }
+
+    private static final int MAX_ERROR_TYPES = 64;
+
+    private final LatencyHistogram[] m_phases = new LatencyHistogram[Phase.values().length];
+
+    private final AtomicLong m_requests      = new AtomicLong();
+    private final AtomicLong m_hits          = new AtomicLong();
+    private final AtomicLong m_misses        = new AtomicLong();
+    private final AtomicLong m_notModified   = new AtomicLong();
+    private final AtomicLong m_modified      = new AtomicLong();
+    private final AtomicLong m_bytesIn       = new AtomicLong();
+    private final AtomicLong m_bytesOut      = new AtomicLong();
+    private final AtomicInteger m_connections = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicLong> m_errors = new ConcurrentHashMap<String, AtomicLong>();
+
+    @Inject
+    ProxyMetrics() {
+        for (int i = 0; i < m_phases.length; i++)
+            m_phases[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Records the time a phase took.
+     * @param phase
+     * @param startNanos System.nanoTime() when the phase started
+     */
+    public void record(Phase phase, long startNanos) {
+        m_phases[phase.ordinal()].recordSince(startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return m_phases[phase.ordinal()];
+    }
+
+    public void countRequest() {
+        m_requests.incrementAndGet();
+    }
+
+    /**
+     * Counts a request answered from the cache, possibly after a 304 from the target.
+     */
+    public void countHit() {
+        m_hits.incrementAndGet();
+    }
+
+    /**
+     * Counts a cacheable request the target was asked for in full.
+     */
+    public void countMiss() {
+        m_misses.incrementAndGet();
+    }
+
+    /**
+     * @param status the status the target answered a revalidation with
+     */
+    public void countRevalidation(int status) {
+        if (status == 304)
+            m_notModified.incrementAndGet();
+        else
+            m_modified.incrementAndGet();
+    }
+
+    /**
+     * @param in bytes received from a client
+     * @param out bytes sent to a client
+     */
+    public void countBytes(long in, long out) {
+        m_bytesIn.addAndGet(in);
+        m_bytesOut.addAndGet(out);
+    }
+
+    public void connectionOpened() {
+        m_connections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        m_connections.decrementAndGet();
+    }
+
+    /**
+     * @return number of client connections being served, tunnels excluded
+     */
+    public int getActiveConnections() {
+        return m_connections.get();
+    }
+
+    /**
+     * Counts an error by its type. At most MAX_ERROR_TYPES types are kept
+     * apart, the rest are counted as "Other".
+     * @param type
+     */
+    public void countError(String type) {
+        AtomicLong count = m_errors.get(type);
+        if (count == null) {
+            if (m_errors.size() >= MAX_ERROR_TYPES)
+                type = "Other";
+            AtomicLong existing = m_errors.putIfAbsent(type, new AtomicLong());
+            count = existing != null ? existing : m_errors.get(type);
+        }
+        count.incrementAndGet();
+    }
+
+    public void countError(Throwable e) {
+        countError(e.getClass().getSimpleName());
+    }
+
+    public long getRequestCount() {
+        return m_requests.get();
+    }
+
+    public long getHitCount() {
+        return m_hits.get();
+    }
+
+    public long getMissCount() {
+        return m_misses.get();
+    }
+
+    /**
+     * @return number of revalidations answered with 304 Not Modified
+     */
+    public long getNotModifiedCount() {
+        return m_notModified.get();
+    }
+
+    /**
+     * @return number of revalidations answered with anything but 304
+     */
+    public long getModifiedCount() {
+        return m_modified.get();
+    }
+
+    public long getBytesIn() {
+        return m_bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return m_bytesOut.get();
+    }
+
+    /**
+     * @return count of errors by type, sorted by type
+     */
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> res = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : m_errors.entrySet())
+            res.put(e.getKey(), e.getValue().get());
+        return Collections.unmodifiableMap(res);
+    }
+}
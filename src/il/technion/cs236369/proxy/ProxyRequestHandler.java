@@ -3,11 +3,17 @@ package il.technion.cs236369.proxy;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.net.SocketFactory;
@@ -15,9 +21,11 @@ import javax.net.SocketFactory;
 import org.apache.http.Header;
 import org.apache.http.HeaderIterator;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpMessage;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -27,79 +35,321 @@ import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.impl.DefaultHttpClientConnection;
 import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.BasicHttpProcessor;
+import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.protocol.HttpExpectationVerifier;
 import org.apache.http.protocol.HttpRequestHandler;
-import org.apache.http.util.EntityUtils;
 
-public class ProxyRequestHandler implements HttpRequestHandler
+public class ProxyRequestHandler implements HttpRequestHandler, HttpExpectationVerifier
 {
     private static Logger       log          = Logger
                                                  .getLogger(HttpProxy.class.getName());
 
     private static int          DEFAULT_PORT = 80;
 
-    private SocketFactory       m_sockFact;
+    private TargetConnector     m_connector;
     private BasicHttpProcessor  m_outhttpproc;
     private HttpRequestExecutor m_httpexec;
     private HttpParams          m_httpparams;
     private ProxyCache          m_cache;
+    private Set<Integer>        m_tunnelPorts;
+    private long                m_maxUploadSize;
+    private OriginHealth        m_health;
+    private RequestTimeouts     m_timeouts;
+    private NegativeCacheTtl    m_negativeTtl;
+    private ParentProxies       m_parents;
+    private CachePeers          m_peers;
+    private H2cClient           m_h2c;
+    private ProxyMetrics        m_metrics;
+    private AccessLog           m_accessLog;
+    private ClientRateLimiter   m_rateLimiter;
+    private ConcurrencyLimit    m_limit;
 
+    /**
+     * @param tunnelPorts comma separated ports CONNECT requests may tunnel to
+     * @param maxUploadSize largest request body (in bytes) forwarded, 0 for unlimited
+     * @param dns remembers how target host names resolved
+     * @param health circuit breakers of the target servers
+     * @param timeouts connect, read and total request timeouts
+     * @param negativeTtl how long error responses and unknown hosts are cached
+     * @param parents upstream proxies requests are forwarded to
+     * @param peers other proxy nodes asked on a cache miss
+     * @param h2c sends requests to origins that speak HTTP/2
+     * @param metrics latencies of the request phases and traffic counters
+     * @param accessLog tells whether the verbose per-request log is on
+     * @param rateLimiter limits the requests per second of every client
+     * @param limit bounds the number of open CONNECT tunnels
+     */
     public ProxyRequestHandler(HttpParams httpparams, BasicHttpProcessor outhttpproc,
                                HttpRequestExecutor httpexec, SocketFactory sockfact,
-                               ProxyCache cache) {
+                               ProxyCache cache, String tunnelPorts, long maxUploadSize,
+                               DnsCache dns, OriginHealth health, RequestTimeouts timeouts,
+                               NegativeCacheTtl negativeTtl, ParentProxies parents,
+                               CachePeers peers, H2cClient h2c, ProxyMetrics metrics,
+                               AccessLog accessLog, ClientRateLimiter rateLimiter,
+                               ConcurrencyLimit limit) {
         m_httpparams = httpparams;
         m_outhttpproc = outhttpproc;
         m_httpexec = httpexec;
-        m_sockFact = sockfact;
+        m_connector = new TargetConnector(sockfact, dns);
         m_cache = cache;
+        m_tunnelPorts = new HashSet<Integer>();
+        for (String port : tunnelPorts.split(",")) {
+            if (port.trim().length() > 0)
+                m_tunnelPorts.add(Integer.valueOf(port.trim()));
+        }
+        m_maxUploadSize = maxUploadSize;
+        m_health = health;
+        m_timeouts = timeouts;
+        m_negativeTtl = negativeTtl;
+        m_parents = parents;
+        m_peers = peers;
+        m_h2c = h2c;
+        m_metrics = metrics;
+        m_accessLog = accessLog;
+        m_rateLimiter = rateLimiter;
+        m_limit = limit;
+    }
+
+    /**
+     * Handles "Expect: 100-continue" end to end: the request header is sent to
+     * the target server first, and the client is told to continue only if the
+     * target agreed (or didn't answer in time). A final response of the target
+     * is returned to the client without reading the request body.
+     */
+    @Override
+    public void verify(HttpRequest request, HttpResponse response, HttpContext context)
+        throws HttpException
+    {
+        context.setAttribute(HttpProxy.CLIENT_REQUEST, request);
+        recordParsed(context);
+        if (!admitClient(response, context))
+            return;
+        if (exceedsUploadLimit(request)) {
+            response.setStatusCode(HttpStatus.SC_REQUEST_TOO_LONG);
+            return;
+        }
+
+        CircuitBreaker breaker = m_health.get(getHttpHost(request.getRequestLine().getUri()));
+        if (!breaker.allowRequest()) {
+            setUnavailableResponse(breaker, response);
+            return;
+        }
+
+        try {
+            DefaultHttpClientConnection targetConn = openTargetConnection(request, context, breaker);
+            if (targetConn == null) {
+                response.setStatusCode(HttpStatus.SC_BAD_GATEWAY);
+                return;
+            }
+
+            // the body isn't received yet, declare its framing so RequestContent keeps it
+            HttpEntityEnclosingRequest upload = (HttpEntityEnclosingRequest) request;
+            if (upload.getEntity() == null)
+                upload.setEntity(declaredEntity(request));
+
+            prepareRequest(request, context);
+            targetConn.sendRequestHeader(request);
+            targetConn.flush();
+            context.setAttribute(HttpProxy.EXPECT_CONTINUED, Boolean.TRUE);
+
+            int waitms = getDeadline(context).bound(
+                m_httpparams.getIntParameter(CoreProtocolPNames.WAIT_FOR_CONTINUE, 2000));
+            if (!targetConn.isResponseAvailable(waitms)) {
+                recordOutcome(breaker, context, HttpStatus.SC_CONTINUE, 0);
+                return;
+            }
+
+            HttpResponse targetResponse = targetConn.receiveResponseHeader();
+            if (targetResponse.getStatusLine().getStatusCode() < HttpStatus.SC_OK) {
+                recordOutcome(breaker, context, HttpStatus.SC_CONTINUE, 0);
+                return;
+            }
+
+            recordOutcome(breaker, context, targetResponse.getStatusLine().getStatusCode(), 0);
+
+            log.info("target refused the request body with " + targetResponse.getStatusLine());
+            context.removeAttribute(HttpProxy.EXPECT_CONTINUED);
+            if (canResponseHaveBody(request, targetResponse))
+                targetConn.receiveResponseEntity(targetResponse);
+            copyResponse(targetResponse, response);
+        }
+        catch (IOException e) {
+            failExpectation(breaker, response, context, e);
+        }
+        catch (HttpException e) {
+            // e.g. a malformed response of the target
+            failExpectation(breaker, response, context, e);
+        }
+        catch (RuntimeException e) {
+            recordFailure(breaker, context, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Answers 502 to a request whose expectation couldn't be forwarded.
+     * @param breaker
+     * @param response
+     * @param context
+     * @param e the failure
+     */
+    private void failExpectation(CircuitBreaker breaker, HttpResponse response, HttpContext context,
+                                 Exception e)
+    {
+        System.err.println("[!] Failed to forward expectation to destination host");
+        m_metrics.countError(e);
+        recordFailure(breaker, context, e);
+        context.removeAttribute(HttpProxy.EXPECT_CONTINUED);
+        closeTargetConnection(context);
+        response.setStatusCode(HttpStatus.SC_BAD_GATEWAY);
     }
 
     @Override
     public void handle(HttpRequest request, HttpResponse response, HttpContext context)
         throws UnknownHostException, HttpException, IOException
     {
+        context.setAttribute(HttpProxy.CLIENT_REQUEST, request);
+        recordParsed(context);
+        m_metrics.countRequest();
         logHeaders(request);
 
+        // a request whose expectation was verified has been admitted already
+        if (context.getAttribute(HttpProxy.EXPECT_CONTINUED) == null && !admitClient(response, context))
+            return;
+
         String requestUri = request.getRequestLine().getUri();
-        log.info("Handling request for: " + requestUri);
+        log.log(Level.FINE, "Handling request for: {0}", requestUri);
+        Deadline deadline = getDeadline(context);
 
-        byte[] resbody = new byte[0];
+        if (request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH).equals("CONNECT")) {
+            openTunnel(requestUri, response, context);
+            return;
+        }
+
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntityEnclosingRequest upload = (HttpEntityEnclosingRequest) request;
+            if (exceedsUploadLimit(request)) {
+                response.setStatusCode(HttpStatus.SC_REQUEST_TOO_LONG);
+                return;
+            }
+            if (upload.getEntity() != null)
+                upload.setEntity(new BoundedRequestEntity(upload.getEntity(), m_maxUploadSize));
+        }
+
+        CachingEntity resbody;
 
         if (canUseCache(request)) {
             String requestMethod = request.getRequestLine().getMethod()
                 .toUpperCase(Locale.ENGLISH);
 
-            log.info("allowed to use cache");
-            log.info("request method is " + requestMethod);
+            log.fine("allowed to use cache");
+
+            long lookupStart = System.nanoTime();
+            ProxyCache.CachedItem cachedEntry = null;
+            boolean fromPeer = false;
+            boolean cached = requestMethod.equals("GET") && m_cache.contains(requestUri, deadline);
+            span(context, "CACHE_CONTAINS", lookupStart);
+            if (cached) {
+                long retrieveStart = System.nanoTime();
+                cachedEntry = m_cache.retrieve(requestUri, deadline);
+                span(context, "CACHE_RETRIEVE", retrieveStart);
+                record(context, ProxyMetrics.Phase.CACHE_LOOKUP, lookupStart);
+                if (cachedEntry.isNegative()) {
+                    if (!cachedEntry.isExpired()) {
+                        log.fine("serving negative cache entry");
+                        m_cache.countNegativeHit();
+                        m_metrics.countHit();
+                        context.setAttribute(HttpProxy.CACHE_STATUS, AccessLog.NEGATIVE_HIT);
+                        setNegativeResponse(cachedEntry, response);
+                        return;
+                    }
+                    m_cache.invalidate(requestUri);
+                    cachedEntry = null;
+                }
+            }
+            else if (requestMethod.equals("GET")) {
+                long peerStart = System.nanoTime();
+                ProxyCache.CachedItem peerEntry = m_peers.fetch(requestUri, deadline);
+                span(context, "PEER_FETCH", peerStart);
+                record(context, ProxyMetrics.Phase.CACHE_LOOKUP, lookupStart);
+                if (peerEntry != null) {
+                    // its age is unknown, so it's revalidated like a local entry
+                    log.fine("a peer has the request url");
+                    cachedEntry = peerEntry;
+                    fromPeer = true;
+                }
+            }
 
-            if (requestMethod.equals("GET") && m_cache.contains(requestUri)) {
+            if (cachedEntry != null) {
 
-                log.info("cache contains the request url");
+                log.fine("cache contains the request url");
 
-                ProxyCache.CachedItem cachedEntry = m_cache.retrieve(requestUri);
-                HttpResponse validationRes = validateCacheEntry(cachedEntry);
+                HttpResponse validationRes;
+                long validationStart = System.nanoTime();
+                try {
+                    validationRes = validateCacheEntry(cachedEntry, context);
+                }
+                catch (OriginUnavailableException e) {
+                    log.info("target is unavailable, serving stale cache entry");
+                    m_metrics.countError(e);
+                    m_metrics.countHit();
+                    context.setAttribute(HttpProxy.CACHE_STATUS, AccessLog.STALE);
+                    setCachedResponse(cachedEntry, response);
+                    response.addHeader("Warning", "110 - \"Response is Stale\"");
+                    return;
+                }
+                catch (UnknownHostException e) {
+                    throw e;
+                }
+                catch (IOException e) {
+                    log.info("validation failed (" + e.getMessage() + "), serving stale cache entry");
+                    m_metrics.countError(e);
+                    m_metrics.countHit();
+                    context.setAttribute(HttpProxy.CACHE_STATUS, AccessLog.STALE);
+                    closeTargetConnection(context);
+                    setCachedResponse(cachedEntry, response);
+                    response.addHeader("Warning", "111 - \"Revalidation Failed\"");
+                    return;
+                }
+                record(context, ProxyMetrics.Phase.REVALIDATION, validationStart);
                 int rescode = validationRes.getStatusLine().getStatusCode();
+                m_metrics.countRevalidation(rescode);
 
-                log.info("validation response code = " + rescode);
+                log.log(Level.FINE, "validation response code = {0,number,#}", rescode);
 
                 if (rescode == HttpStatus.SC_NOT_MODIFIED) {
+                    m_metrics.countHit();
+                    if (fromPeer) {
+                        context.setAttribute(HttpProxy.CACHE_STATUS, AccessLog.PEER_HIT);
+                        if (m_cache.admit(requestUri)) {
+                            long storeStart = System.nanoTime();
+                            m_cache.store(requestUri, cachedEntry.m_headers, cachedEntry.m_body);
+                            record(context, ProxyMetrics.Phase.CACHE_STORE, storeStart);
+                        }
+                    }
+                    else {
+                        context.setAttribute(HttpProxy.CACHE_STATUS, AccessLog.REVALIDATED);
+                    }
                     setCachedResponse(cachedEntry, response);
                     return;
                 }
+                m_metrics.countMiss();
+                context.setAttribute(HttpProxy.CACHE_STATUS, AccessLog.MISS);
 
                 if (rescode != HttpStatus.SC_OK) {
-                    log.info("validation failed, invalidating cache and returning the response");
+                    log.fine("validation failed, invalidating cache and returning the response");
                     m_cache.invalidate(requestUri);
                     copyResponse(validationRes, response);
                     return;
                 }
                 else {
-                    log.info("setting body from the validation response and updating cache if possible...");
+                    log.fine("setting body from the validation response and updating cache if possible...");
 
                     resbody = copyResponse(validationRes, response);
 
@@ -107,24 +357,114 @@ public class ProxyRequestHandler implements HttpRequestHandler
 
                     m_cache.invalidate(requestUri);
                     if (isCacheable(request, response))
-                        m_cache.store(requestUri, response.getAllHeaders(), resbody);
+                        storeWhenComplete(context, requestUri, response, resbody, 0);
 
                     return;
                 }
             }
         }
         else
-            log.info("request is NOT cacheable");
+            log.fine("request is NOT cacheable");
+
+        if (canUseCache(request)) {
+            m_metrics.countMiss();
+            context.setAttribute(HttpProxy.CACHE_STATUS, AccessLog.MISS);
+        }
 
+        long requestStart = System.nanoTime();
+        try {
+            resbody = performRequest(request, response, context);
+        }
+        catch (OriginUnavailableException e) {
+            m_metrics.countError(e);
+            setUnavailableResponse(e.getBreaker(), response);
+            return;
+        }
+        catch (SocketTimeoutException e) {
+            log.info("target timed out: " + e.getMessage());
+            m_metrics.countError(e);
+            response.setStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout");
+            return;
+        }
+        catch (UnknownHostException e) {
+            if (canUseCache(request) && m_cache.admit(requestUri))
+                m_cache.storeNegative(requestUri, ProxyCache.UNKNOWN_HOST, new Header[0], new byte[0],
+                                      m_negativeTtl.forUnknownHost());
+            throw e;
+        }
+        finally {
+            span(context, "PERFORM_REQUEST", requestStart);
+        }
 
-        resbody = performRequest(request, response, context);
+        if (isUnsafeMethod(request)) {
+            invalidateAfterUnsafe(requestUri, response);
+            return;
+        }
 
-        if (isCacheable(request, response))
-            m_cache.store(requestUri, response.getAllHeaders(), resbody);
+        if (isCacheable(request, response) && m_cache.admit(requestUri))
+            storeWhenComplete(context, requestUri, response, resbody, 0);
+        else if (isNegativelyCacheable(request, response) && m_cache.admit(requestUri))
+            storeWhenComplete(context, requestUri, response, resbody,
+                              m_negativeTtl.forStatus(response.getStatusLine().getStatusCode()));
     }
 
     // ++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
 
+    /**
+     * Connects to the target of a CONNECT request. On success the response is
+     * 200 and the connected socket is left in the context (HttpProxy.TUNNEL_CONN)
+     * so that the accept loop relays the raw bytes once the response is sent.
+     * The socket holds a tunnel slot of the concurrency limit, which is given
+     * back when the tunnel is closed; without a free slot the response is 503.
+     * @param authority host:port of the target
+     * @param response
+     * @param context
+     */
+    private void openTunnel(String authority, HttpResponse response, HttpContext context)
+    {
+        int sep = authority.lastIndexOf(':');
+        String host = sep > 0 ? authority.substring(0, sep) : authority;
+        int port;
+        try {
+            port = sep > 0 ? Integer.parseInt(authority.substring(sep + 1)) : 443;
+        }
+        catch (NumberFormatException e) {
+            response.setStatusCode(HttpStatus.SC_BAD_REQUEST);
+            return;
+        }
+
+        if (!m_tunnelPorts.contains(port)) {
+            log.info("CONNECT to port " + port + " is not allowed");
+            response.setStatusCode(HttpStatus.SC_FORBIDDEN);
+            return;
+        }
+
+        if (!m_limit.acquireTunnel()) {
+            log.info("too many open tunnels, refusing CONNECT to " + authority);
+            response.setStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+            response.setHeader("Retry-After", String.valueOf(m_limit.getRetryAfter()));
+            return;
+        }
+
+        Socket outsocket;
+        long connectStart = System.nanoTime();
+        try {
+            outsocket = m_connector.connect(host, port,
+                                            getDeadline(context).bound(m_timeouts.getConnectTimeout()));
+            record(context, ProxyMetrics.Phase.CONNECT, connectStart);
+        }
+        catch (IOException e) {
+            m_limit.releaseTunnel();
+            System.err.println("[!] Failed to open tunnel to " + authority);
+            m_metrics.countError(e);
+            response.setStatusCode(HttpStatus.SC_BAD_GATEWAY);
+            return;
+        }
+
+        response.setStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "Connection established");
+        context.setAttribute(HttpProxy.TUNNEL_CONN, outsocket);
+    }
+
     /**
      * Given a request determine if we can possibly use the proxy cache to
      * respond.
@@ -143,6 +483,111 @@ public class ProxyRequestHandler implements HttpRequestHandler
         return request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH).equals("GET");
     }
 
+    /**
+     * @param request
+     * @return true if the request method may change state on the server
+     */
+    private boolean isUnsafeMethod(HttpRequest request)
+    {
+        String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
+        return method.equals("POST") || method.equals("PUT")
+               || method.equals("DELETE") || method.equals("PATCH");
+    }
+
+    /**
+     * After a successful unsafe request, invalidates the cached entries of the
+     * request uri and of the Location/Content-Location targets (RFC 7234 4.4).
+     * Targets on a different host than the request aren't invalidated.
+     * @param requestUri
+     * @param response
+     */
+    private void invalidateAfterUnsafe(String requestUri, HttpResponse response)
+    {
+        int status = response.getStatusLine().getStatusCode();
+        if (status < 200 || status >= 400)
+            return;
+
+        m_cache.invalidate(requestUri);
+
+        String[] targetHeaders = { HttpHeaders.LOCATION, HttpHeaders.CONTENT_LOCATION };
+        for (String hname : targetHeaders) {
+            Header h = response.getFirstHeader(hname);
+            if (h == null)
+                continue;
+
+            String target = resolveUri(requestUri, h.getValue());
+            if (target != null && getHost(target).equalsIgnoreCase(getHost(requestUri))
+                && getPort(target) == getPort(requestUri))
+                m_cache.invalidate(target);
+        }
+    }
+
+    /**
+     * @param base
+     * @param ref
+     * @return ref resolved against base, null if either is malformed
+     */
+    private String resolveUri(String base, String ref)
+    {
+        try {
+            return new URI(base).resolve(ref.trim()).toString();
+        }
+        catch (URISyntaxException e) {
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the response in the cache once its body was sent to the client.
+     * @param context
+     * @param url
+     * @param response
+     * @param body the body being streamed to the client, null if there is none
+     * @param negativeTtl milliseconds an error response is served, 0 for a regular entry
+     */
+    private void storeWhenComplete(final HttpContext context, final String url, HttpResponse response,
+                                   CachingEntity body, final long negativeTtl)
+    {
+        final int status = response.getStatusLine().getStatusCode();
+        final Header[] headers = response.getAllHeaders();
+        CachingEntity.BodyListener listener = new CachingEntity.BodyListener() {
+            @Override
+            public void bodyComplete(byte[] b) {
+                long storeStart = System.nanoTime();
+                if (negativeTtl > 0)
+                    m_cache.storeNegative(url, status, headers, b, negativeTtl);
+                else
+                    m_cache.store(url, headers, b);
+                record(context, ProxyMetrics.Phase.CACHE_STORE, storeStart);
+            }
+        };
+
+        if (body == null)
+            listener.bodyComplete(new byte[0]);
+        else
+            body.captureBody(listener);
+    }
+
+    /**
+     * Answers from a negative cache entry, the same way the original failure was answered.
+     * @param entry
+     * @param response
+     * @throws UnknownHostException if the entry records an unresolvable target host
+     * @throws IOException
+     */
+    private void setNegativeResponse(ProxyCache.CachedItem entry, HttpResponse response)
+        throws UnknownHostException, IOException
+    {
+        if (entry.m_status == ProxyCache.UNKNOWN_HOST)
+            throw new UnknownHostException(getHttpHost(entry.m_url).getHostName());
+
+        response.setStatusCode(entry.m_status);
+        setCachedResponse(entry, response);
+    }
+
     /**
      * sets the response to contain data retrieved from the cache
      * @param entry
@@ -151,7 +596,7 @@ public class ProxyRequestHandler implements HttpRequestHandler
      */
     private void setCachedResponse(ProxyCache.CachedItem entry, HttpResponse response) throws IOException
     {
-        log.info("setting response from cache");
+        log.fine("setting response from cache");
 
         for (Header h : entry.m_headers)
             response.addHeader(h);
@@ -159,102 +604,534 @@ public class ProxyRequestHandler implements HttpRequestHandler
     }
 
     /**
-     * Performs the actual request
+     * Performs the actual request. The connection to the target server is kept
+     * in the context (HttpProxy.TARGET_CONN) until the body is sent to the client.
      * @param request
      * @param response
      * @param context
-     * @return the body of the response
+     * @return the body of the response, streamed from the target server
      * @throws UnknownHostException
      * @throws IOException
      * @throws HttpException
      */
-    private byte[] performRequest(HttpRequest request, HttpResponse response, HttpContext context)
+    private CachingEntity performRequest(HttpRequest request, HttpResponse response, HttpContext context)
         throws UnknownHostException, IOException, HttpException
     {
+        CachingEntity resbody = null;
+        boolean success = false;
+        try {
+            HttpResponse targetResponse;
+            if (context.removeAttribute(HttpProxy.EXPECT_CONTINUED) != null
+                && request instanceof HttpEntityEnclosingRequest) {
+                // the request header was already sent by verify()
+                DefaultHttpClientConnection targetConn =
+                    (DefaultHttpClientConnection) context.getAttribute(HttpProxy.TARGET_CONN);
+                targetResponse = sendContinuedBody(request, targetConn);
+            }
+            else {
+                CircuitBreaker breaker = m_health.get(getHttpHost(request.getRequestLine().getUri()));
+                if (!breaker.allowRequest())
+                    throw new OriginUnavailableException(breaker);
+
+                long start = System.currentTimeMillis();
+                try {
+                    targetResponse = executeH2c(request, context);
+                    if (targetResponse == null) {
+                        DefaultHttpClientConnection targetConn = openTargetConnection(request, context, breaker);
+                        if (targetConn == null)
+                            return resbody;
+
+                        prepareRequest(request, context);
+                        long sendStart = System.nanoTime();
+                        targetResponse = m_httpexec.execute(request, targetConn, context);
+                        record(context, ProxyMetrics.Phase.FIRST_BYTE, sendStart);
+                    }
+                }
+                catch (IOException e) {
+                    recordFailure(breaker, context, e);
+                    throw e;
+                }
+                catch (HttpException e) {
+                    recordFailure(breaker, context, e);
+                    throw e;
+                }
+                catch (RuntimeException e) {
+                    recordFailure(breaker, context, e);
+                    throw e;
+                }
+                recordOutcome(breaker, context, targetResponse.getStatusLine().getStatusCode(),
+                              System.currentTimeMillis() - start);
+            }
+            m_httpexec.postProcess(response, m_outhttpproc, context);
+
+            // the body is streamed after the handler returns, bound it by idle time only
+            DefaultHttpClientConnection targetConn =
+                (DefaultHttpClientConnection) context.getAttribute(HttpProxy.TARGET_CONN);
+            if (targetConn != null)
+                targetConn.setSocketTimeout(m_timeouts.getReadTimeout());
+
+            resbody = copyResponse(targetResponse, response);
+
+            logHeaders(response);
+            success = true;
+        }
+        finally {
+            if (!success)
+                closeTargetConnection(context);
+        }
+
+        return resbody;
+    }
+
+    /**
+     * Sends the request over HTTP/2 if its target speaks it and is fetched
+     * directly. The response body is streamed from an HTTP/2 stream that is
+     * kept in the context (HttpProxy.TARGET_STREAM) until it is sent.
+     * @param request
+     * @param context
+     * @return the response of the target, null if the request must be sent over HTTP/1.1
+     * @throws IOException
+     * @throws HttpException
+     */
+    private HttpResponse executeH2c(HttpRequest request, HttpContext context)
+        throws IOException, HttpException
+    {
+        HttpHost target = getHttpHost(request.getRequestLine().getUri());
+        if (!m_h2c.accepts(target, request) || !m_parents.select(target.getHostName()).isEmpty())
+            return null;
+
+        closeTargetConnection(context);
+        prepareRequest(request, context);
+
+        Deadline deadline = getDeadline(context);
+        long sendStart = System.nanoTime();
+        HttpResponse targetResponse = m_h2c.execute(target, request,
+                                                    deadline.bound(m_timeouts.getConnectTimeout()),
+                                                    deadline.bound(m_timeouts.getReadTimeout()),
+                                                    m_timeouts.getReadTimeout());
+        if (targetResponse == null)
+            return null;
+        record(context, ProxyMetrics.Phase.FIRST_BYTE, sendStart);
+
+        InputStream body = targetResponse.getEntity().getContent();
+        if (canResponseHaveBody(request, targetResponse))
+            context.setAttribute(HttpProxy.TARGET_STREAM, body);
+        else {
+            body.close();
+            targetResponse.setEntity(null);
+        }
+        log.log(Level.FINE, "Sent to {0} over h2c", target);
+        return targetResponse;
+    }
 
+    /**
+     * Connects to the target server of the request, or to a parent proxy if
+     * one is configured for its host, and keeps the connection in the context
+     * (HttpProxy.TARGET_CONN). The breaker of the parent used is kept in the
+     * context too (HttpProxy.PARENT_PROXY), so it is told about the outcome.
+     * @param request
+     * @param context
+     * @param breaker told about a failure to bind the connection
+     * @return the connection, null if binding to the socket failed
+     * @throws UnknownHostException
+     * @throws IOException
+     */
+    private DefaultHttpClientConnection openTargetConnection(HttpRequest request, HttpContext context,
+                                                             CircuitBreaker breaker)
+        throws UnknownHostException, IOException
+    {
         String requestUri = request.getRequestLine().getUri();
         // String requestHost = request.getFirstHeader("Host").getValue();
         String requestHost = getHost(requestUri);
         int requestPort = getPort(requestUri);
 
-        log.info("target host: " + requestHost);
-        log.info("target port: " + requestPort);
+        log.log(Level.FINE, "target host: {0}", requestHost);
+        log.log(Level.FINE, "target port: {0,number,#}", requestPort);
 
+        Deadline deadline = getDeadline(context);
         HttpHost requestHttpHost = new HttpHost(requestHost, requestPort);
-        Socket outsocket;
-        outsocket = m_sockFact.createSocket(requestHttpHost.getHostName(),
-                                            requestHttpHost.getPort());
+        long connectStart = System.nanoTime();
+        Socket outsocket = connectRoute(requestHttpHost, context, deadline);
+        record(context, ProxyMetrics.Phase.CONNECT, connectStart);
 
+        closeTargetConnection(context);
         DefaultHttpClientConnection targetConn = new DefaultHttpClientConnection();
-        byte[] resbody = new byte[0];
         try {
+            targetConn.bind(outsocket, m_httpparams);
+        }
+        catch (IOException e) {
+            System.err.println("[!] Failed to create connection to destination host");
+            recordFailure(breaker, context, e);
+            return null;
+        }
+        context.setAttribute(HttpProxy.TARGET_CONN, targetConn);
+        // until the response header arrives the target gets what's left of the deadline
+        targetConn.setSocketTimeout(deadline.bound(m_timeouts.getReadTimeout()));
+
+        log.log(Level.FINE, "Connecting to {0}", outsocket.getInetAddress());
+        return targetConn;
+    }
+
+    /**
+     * Records the time a phase of the request handled in context took, in
+     * the metrics and in the request's trace.
+     * @param context
+     * @param phase
+     * @param startNanos System.nanoTime() when the phase started
+     */
+    private void record(HttpContext context, ProxyMetrics.Phase phase, long startNanos)
+    {
+        m_metrics.record(phase, startNanos);
+        span(context, phase.name(), startNanos);
+    }
+
+    /**
+     * Adds a step to the trace of the request handled in context, if it is traced.
+     * @param context
+     * @param name
+     * @param startNanos System.nanoTime() when the step started
+     */
+    private static void span(HttpContext context, String name, long startNanos)
+    {
+        RequestTrace trace = (RequestTrace) context.getAttribute(HttpProxy.TRACE);
+        if (trace != null)
+            trace.span(name, startNanos);
+    }
+
+    /**
+     * Records how long receiving the request header took, the first time it
+     * is called for the request handled in context.
+     * @param context
+     */
+    private void recordParsed(HttpContext context)
+    {
+        Long start = (Long) context.removeAttribute(HttpProxy.REQUEST_START);
+        if (start != null)
+            record(context, ProxyMetrics.Phase.PARSE, start);
+    }
+
+    /**
+     * @param context
+     * @return the deadline of the request handled in context, started on first use
+     */
+    private Deadline getDeadline(HttpContext context)
+    {
+        Deadline deadline = (Deadline) context.getAttribute(HttpProxy.DEADLINE);
+        if (deadline == null) {
+            deadline = m_timeouts.newDeadline();
+            context.setAttribute(HttpProxy.DEADLINE, deadline);
+        }
+
+        return deadline;
+    }
+
+    /**
+     * Connects to the first parent proxy of target that accepts the
+     * connection, or to target itself if it is fetched directly.
+     * @param target
+     * @param context
+     * @param deadline
+     * @return the connected socket
+     * @throws UnknownHostException
+     * @throws IOException if no parent could be connected and direct fallback is disabled
+     */
+    private Socket connectRoute(HttpHost target, HttpContext context, Deadline deadline)
+        throws UnknownHostException, IOException
+    {
+        context.removeAttribute(HttpProxy.PARENT_PROXY);
+
+        List<HttpHost> parents = m_parents.select(target.getHostName());
+        IOException failure = null;
+        for (HttpHost parent : parents) {
+            CircuitBreaker breaker = m_health.get(parent);
+            if (!breaker.allowRequest())
+                continue;
+
+            int timeout = deadline.bound(m_timeouts.getConnectTimeout());
             try {
-                targetConn.bind(outsocket, m_httpparams);
+                Socket sock = m_connector.connect(parent.getHostName(), parent.getPort(), timeout);
+                log.log(Level.FINE, "forwarding to parent {0}", parent);
+                context.setAttribute(HttpProxy.PARENT_PROXY, breaker);
+                return sock;
             }
             catch (IOException e) {
-                System.err.println("[!] Failed to create connection to destination host");
-                return resbody;
+                log.info("parent " + parent.toHostString() + " failed: " + e.getMessage());
+                recordFailure(breaker, e);
+                failure = e;
             }
+        }
+
+        if (!parents.isEmpty() && !m_parents.isDirectFallback()) {
+            if (failure != null)
+                throw failure;
+            throw new IOException("No parent proxy available for " + target.toHostString());
+        }
 
-            log.info("Connecting to " + outsocket.getInetAddress());
+        return m_connector.connect(target.getHostName(), target.getPort(),
+                                   deadline.bound(m_timeouts.getConnectTimeout()));
+    }
 
-            removeHopByHopHeaders(request);
-            // don't let servers send back zipped content
-            request.removeHeaders("Accept-Encoding");
+    /**
+     * Reports a received response to the breaker of its target, and of the
+     * parent proxy it came through if any. A gateway error the parent relays
+     * is the target's failure, so to the parent any response is a success.
+     * @param breaker
+     * @param context
+     * @param status status of the response
+     * @param millis time until the response header arrived
+     */
+    private void recordOutcome(CircuitBreaker breaker, HttpContext context, int status, long millis)
+    {
+        recordOutcome(breaker, status, millis);
+        CircuitBreaker parent = (CircuitBreaker) context.getAttribute(HttpProxy.PARENT_PROXY);
+        if (parent != null)
+            parent.recordSuccess(millis);
+    }
 
-            HttpResponse targetResponse;
-            m_httpexec.preProcess(request, m_outhttpproc, context);
-            targetResponse = m_httpexec.execute(request, targetConn, context);
-            m_httpexec.postProcess(response, m_outhttpproc, context);
+    /**
+     * Reports a received response to a breaker. Gateway errors count as failures.
+     * @param breaker
+     * @param status status of the response
+     * @param millis time until the response header arrived
+     */
+    private void recordOutcome(CircuitBreaker breaker, int status, long millis)
+    {
+        if (status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE)
+            breaker.recordError();
+        else if (status == HttpStatus.SC_GATEWAY_TIMEOUT)
+            breaker.recordTimeout();
+        else
+            breaker.recordSuccess(millis);
+    }
 
-            resbody = copyResponse(targetResponse, response);
+    /**
+     * Reports a failed request to the breaker of its target, and of the
+     * parent proxy it was sent through if any.
+     * @param breaker
+     * @param context
+     * @param e
+     */
+    private void recordFailure(CircuitBreaker breaker, HttpContext context, Exception e)
+    {
+        recordFailure(breaker, e);
+        CircuitBreaker parent = (CircuitBreaker) context.getAttribute(HttpProxy.PARENT_PROXY);
+        if (parent != null)
+            recordFailure(parent, e);
+    }
 
-            logHeaders(response);
+    /**
+     * Reports a failed request to a breaker. Resolution failures say nothing
+     * about the target's health and aren't counted.
+     * @param breaker
+     * @param e
+     */
+    private void recordFailure(CircuitBreaker breaker, Exception e)
+    {
+        if (e instanceof SocketTimeoutException)
+            breaker.recordTimeout();
+        else if (e instanceof UnknownHostException)
+            breaker.recordNothing();
+        else
+            breaker.recordError();
+    }
+
+    /**
+     * Fails a request to a target whose breaker is open.
+     * @param breaker
+     * @param response
+     */
+    private void setUnavailableResponse(CircuitBreaker breaker, HttpResponse response)
+    {
+        log.info("circuit to " + breaker.getName() + " is open, failing fast");
+        if (breaker.isLastFailureTimeout())
+            response.setStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_GATEWAY_TIMEOUT, "Gateway Timeout");
+        else
+            response.setStatusLine(HttpVersion.HTTP_1_1, HttpStatus.SC_BAD_GATEWAY, "Bad Gateway");
+    }
+
+    /**
+     * Refuses the request with 429 and a Retry-After if its client went over
+     * its rate.
+     * @param response
+     * @param context
+     * @return true if the request may be handled
+     */
+    private boolean admitClient(HttpResponse response, HttpContext context)
+    {
+        Object conn = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+        if (!(conn instanceof HttpInetConnection))
+            return true;
+
+        InetAddress client = ((HttpInetConnection) conn).getRemoteAddress();
+        long wait = m_rateLimiter.admit(client);
+        if (wait == 0)
+            return true;
+
+        log.log(Level.FINE, "client {0} is over its rate", client);
+        response.setStatusLine(HttpVersion.HTTP_1_1, ClientRateLimiter.SC_TOO_MANY_REQUESTS, "Too Many Requests");
+        response.setHeader("Retry-After", String.valueOf(Math.max(1, (wait + 999999999) / 1000000000)));
+        return false;
+    }
+
+    /**
+     * Strips the request of what shouldn't be forwarded and runs the outgoing
+     * protocol interceptors on it.
+     * @param request
+     * @param context
+     * @throws IOException
+     * @throws HttpException
+     */
+    private void prepareRequest(HttpRequest request, HttpContext context)
+        throws IOException, HttpException
+    {
+        removeHopByHopHeaders(request);
+        // don't let servers send back zipped content
+        request.removeHeaders("Accept-Encoding");
+
+        m_httpexec.preProcess(request, m_outhttpproc, context);
+    }
+
+    /**
+     * Streams the request body to a target server that already got the request
+     * header and agreed to continue, then reads its final response.
+     * @param request
+     * @param targetConn
+     * @return the final response of the target server
+     * @throws IOException
+     * @throws HttpException
+     */
+    private HttpResponse sendContinuedBody(HttpRequest request, DefaultHttpClientConnection targetConn)
+        throws IOException, HttpException
+    {
+        targetConn.sendRequestEntity((HttpEntityEnclosingRequest) request);
+        targetConn.flush();
+
+        HttpResponse targetResponse;
+        do {
+            targetResponse = targetConn.receiveResponseHeader();
+        } while (targetResponse.getStatusLine().getStatusCode() < HttpStatus.SC_OK);
+
+        if (canResponseHaveBody(request, targetResponse))
+            targetConn.receiveResponseEntity(targetResponse);
+
+        return targetResponse;
+    }
+
+    /**
+     * @param request
+     * @param response
+     * @return true if the response to request may carry a body
+     */
+    private boolean canResponseHaveBody(HttpRequest request, HttpResponse response)
+    {
+        if (request.getRequestLine().getMethod().equalsIgnoreCase("HEAD"))
+            return false;
+
+        int status = response.getStatusLine().getStatusCode();
+        return status >= HttpStatus.SC_OK
+               && status != HttpStatus.SC_NO_CONTENT
+               && status != HttpStatus.SC_NOT_MODIFIED
+               && status != HttpStatus.SC_RESET_CONTENT;
+    }
+
+    /**
+     * @param request
+     * @return an empty entity with the length and chunking declared by the
+     * request headers
+     */
+    private HttpEntity declaredEntity(HttpRequest request)
+    {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        Header te = request.getFirstHeader(HTTP.TRANSFER_ENCODING);
+        entity.setChunked(te != null && te.getValue().equalsIgnoreCase(HTTP.CHUNK_CODING));
+
+        Header len = request.getFirstHeader(HTTP.CONTENT_LEN);
+        try {
+            entity.setContentLength(len != null ? Long.parseLong(len.getValue().trim()) : -1);
         }
-        finally {
+        catch (NumberFormatException e) {
+            entity.setContentLength(-1);
+        }
+
+        return entity;
+    }
+
+    /**
+     * @param request
+     * @return true if the request declares a body larger than allowed
+     */
+    private boolean exceedsUploadLimit(HttpRequest request)
+    {
+        if (m_maxUploadSize <= 0 || !(request instanceof HttpEntityEnclosingRequest))
+            return false;
+
+        Header len = request.getFirstHeader(HTTP.CONTENT_LEN);
+        if (len == null)
+            return false;
+
+        try {
+            return Long.parseLong(len.getValue().trim()) > m_maxUploadSize;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the connection to the target server stored in the context, if
+     * any, or cancels the HTTP/2 stream the response is read from.
+     * @param context
+     */
+    static void closeTargetConnection(HttpContext context)
+    {
+        InputStream targetStream = (InputStream) context.removeAttribute(HttpProxy.TARGET_STREAM);
+        if (targetStream != null) {
             try {
-                targetConn.close();
+                targetStream.close();
             }
             catch (IOException ignore) {
             }
         }
 
-        return resbody;
+        DefaultHttpClientConnection targetConn =
+            (DefaultHttpClientConnection) context.removeAttribute(HttpProxy.TARGET_CONN);
+        if (targetConn == null)
+            return;
+
+        try {
+            targetConn.close();
+        }
+        catch (IOException ignore) {
+        }
     }
 
 
     /**
-     * Copies all response headers and body from 'from' to 'to'
+     * Copies all response headers from 'from' to 'to', and makes 'to' stream
+     * the body of 'from'.
      * @param from
      * @param to
-     * @return the body of the 'from' response
+     * @return the body of the 'from' response, null if it has none
      * @throws IOException
      */
-    private byte[] copyResponse(HttpResponse from, HttpResponse to) throws IOException {
+    CachingEntity copyResponse(HttpResponse from, HttpResponse to) throws IOException {
         removeHopByHopHeaders(from);
 
         to.setStatusLine(from.getStatusLine());
         to.setHeaders(from.getAllHeaders());
-        byte[] resbody = getResponseBody(from);
-
-        // re-wrap the response body ...
-        setResponseEntity(to, resbody, from.getFirstHeader("Content-Type"));
 
-        return resbody;
-    }
+        HttpEntity entity = from.getEntity();
+        if (entity == null) {
+            to.setEntity(null);
+            return null;
+        }
 
-    /**
-     * @param response
-     * @return the body of response in byte array
-     * @throws IOException
-     */
-    private byte[] getResponseBody(HttpResponse response) throws IOException
-    {
-        HttpEntity responseEntity = response.getEntity();
-        if (responseEntity == null)
-            return new byte[0];
+        CachingEntity resbody = entity instanceof CachingEntity
+            ? (CachingEntity) entity
+            : new CachingEntity(entity, m_cache.getMaxObjectSize());
+        to.setEntity(resbody);
 
-        return EntityUtils.toByteArray(responseEntity);
+        return resbody;
     }
 
     /**
@@ -264,7 +1141,7 @@ public class ProxyRequestHandler implements HttpRequestHandler
      * @param contentType
      * @throws IOException
      */
-    private void setResponseEntity(HttpResponse response, byte[] body, Header contentType) throws IOException
+    void setResponseEntity(HttpResponse response, byte[] body, Header contentType) throws IOException
     {
         byte[] resBody = body.clone();
 
@@ -278,18 +1155,15 @@ public class ProxyRequestHandler implements HttpRequestHandler
 
     /**
      * @param entry
+     * @param context
      * @return true if the cache entry stored is still valid and can be used.
      * @throws UnknownHostException
      * @throws IOException
      * @throws HttpException
      */
-    private HttpResponse validateCacheEntry(ProxyCache.CachedItem entry)
+    private HttpResponse validateCacheEntry(ProxyCache.CachedItem entry, HttpContext context)
         throws UnknownHostException, IOException, HttpException
     {
-        //performRequest(request, response, context)
-
-        HttpContext context = new BasicHttpContext(null);
-
         BasicHttpRequest request = new BasicHttpRequest("GET", entry.m_url);
         HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 404, "Error");
 
@@ -300,7 +1174,7 @@ public class ProxyRequestHandler implements HttpRequestHandler
                 break;
             }
         }
-        log.info("cached last modified: " + lastmodified);
+        log.log(Level.FINE, "cached last modified: {0}", lastmodified);
 
         request.setParams(m_httpparams);
         request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, lastmodified);
@@ -319,11 +1193,6 @@ public class ProxyRequestHandler implements HttpRequestHandler
      */
     private boolean isCacheable(HttpRequest request, HttpResponse response)
     {
-        Header[] transferHeaders = response.getHeaders(HTTP.TRANSFER_ENCODING);
-        for (Header h : transferHeaders)
-            if (h.getValue().equals("chunked"))
-                return false;
-
         Header[] cacheHeaders = response.getHeaders("Cache-Control");
         for (Header h1 : cacheHeaders) {
             String hval = h1.getValue();
@@ -337,11 +1206,36 @@ public class ProxyRequestHandler implements HttpRequestHandler
                && response.getFirstHeader("Last-Modified") != null;
     }
 
+    /**
+     * @param request
+     * @param response
+     * @return true if the response is an error that is cached for a while.
+     */
+    private boolean isNegativelyCacheable(HttpRequest request, HttpResponse response)
+    {
+        for (Header h : response.getHeaders("Cache-Control")) {
+            if (h.getValue().equals("no-store"))
+                return false;
+        }
+
+        return request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH).equals("GET")
+               && m_negativeTtl.forStatus(response.getStatusLine().getStatusCode()) > 0;
+    }
+
+    /**
+     * @param url
+     * @return the target server of the url
+     */
+    private HttpHost getHttpHost(String url)
+    {
+        return new HttpHost(getHost(url).toLowerCase(Locale.ENGLISH), getPort(url));
+    }
+
     /**
      * @param url
      * @return port, default port if none is present in the url
      */
-    private int getPort(String url)
+    int getPort(String url)
     {
         URI tmp;
         try {
@@ -362,7 +1256,7 @@ public class ProxyRequestHandler implements HttpRequestHandler
      * @param url
      * @return the host portion of the url
      */
-    private String getHost(String url)
+    String getHost(String url)
     {
         URI tmp;
         try {
@@ -397,7 +1291,7 @@ public class ProxyRequestHandler implements HttpRequestHandler
 
     private void logHeaders(HttpMessage httpmsg)
     {
-        if (httpmsg == null)
+        if (httpmsg == null || !m_accessLog.isDebug())
             return;
 
         HeaderIterator hi = httpmsg.headerIterator();
@@ -410,6 +1304,6 @@ public class ProxyRequestHandler implements HttpRequestHandler
             headers.append("Headers of unkown type of HttpMessage");
         while (hi.hasNext())
             headers.append("\t" + hi.next().toString() + "\n");
-        log.info(headers.toString());
+        log.fine(headers.toString());
     }
 }
@@ -0,0 +1,47 @@
+package il.technion.cs236369.proxy;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Timeouts of the requests to target servers, all in milliseconds.
+ */
+public class RequestTimeouts {
+
+    private final int m_connect;
+    private final int m_read;
+    private final int m_request;
+
+    /**
+     * @param connect time to establish a connection to a target server
+     * @param read time a target server may be silent while we wait for data
+     * @param request total time for handling a request, 0 for unlimited
+     */
+    @Inject
+    RequestTimeouts(@Named("httproxy.net.connect.timeout") int connect,
+                    @Named("httproxy.net.read.timeout") int read,
+                    @Named("httproxy.net.request.timeout") int request) {
+        m_connect = connect;
+        m_read = read;
+        m_request = request;
+    }
+
+    public int getConnectTimeout() {
+        return m_connect;
+    }
+
+    public int getReadTimeout() {
+        return m_read;
+    }
+
+    public int getRequestTimeout() {
+        return m_request;
+    }
+
+    /**
+     * @return the deadline of a request starting now
+     */
+    public Deadline newDeadline() {
+        return Deadline.after(m_request);
+    }
+}
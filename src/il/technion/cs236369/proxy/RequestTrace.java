@@ -0,0 +1,63 @@
+package il.technion.cs236369.proxy;
+
+import java.util.Locale;
+
+/**
+ * Timeline of one request: the spans of the steps it went through, as
+ * offsets from the moment its connection was accepted. Kept in the context
+ * of the request (HttpProxy.TRACE) and only touched by the thread handling
+ * it. Spans past MAX_SPANS are ignored.
+ */
+public class RequestTrace {
+
+    private static final int MAX_SPANS = 32;
+
+    private final long     m_start;
+    private final String[] m_names  = new String[MAX_SPANS];
+    private final long[]   m_begins = new long[MAX_SPANS];
+    private final long[]   m_ends   = new long[MAX_SPANS];
+    private int            m_count;
+
+    /**
+     * @param startNanos System.nanoTime() when the request's connection was accepted
+     */
+    public RequestTrace(long startNanos) {
+        m_start = startNanos;
+    }
+
+    /**
+     * Records a step that started at startNanos and ends now.
+     * @param name
+     * @param startNanos
+     */
+    public void span(String name, long startNanos) {
+        if (m_count == MAX_SPANS)
+            return;
+
+        m_names[m_count] = name;
+        m_begins[m_count] = startNanos;
+        m_ends[m_count] = System.nanoTime();
+        ++m_count;
+    }
+
+    /**
+     * @return microseconds since the connection was accepted
+     */
+    public long getElapsedMicros() {
+        return (System.nanoTime() - m_start) / 1000;
+    }
+
+    /**
+     * @return one line per span: offset from the start, duration and name
+     */
+    public String toTimeline() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < m_count; i++) {
+            sb.append(String.format(Locale.ENGLISH, "  +%9.3fms %9.3fms  %s%n",
+                                    (m_begins[i] - m_start) / 1e6,
+                                    (m_ends[i] - m_begins[i]) / 1e6,
+                                    m_names[i].toLowerCase(Locale.ENGLISH)));
+        }
+        return sb.toString();
+    }
+}
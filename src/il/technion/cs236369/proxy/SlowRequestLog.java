@@ -0,0 +1,132 @@
+package il.technion.cs236369.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Keeps the timelines of the latest requests that took longer than a
+ * threshold, together with their key headers, so outliers can be looked
+ * at after the fact (the admin port serves them at /slow). Only the slow
+ * requests pay for formatting and locking; the others just drop their trace.
+ */
+public class SlowRequestLog {
+
+    private static final String[] REQUEST_HEADERS =
+        { "Host", "User-Agent", "Cache-Control", "If-Modified-Since", "Content-Length" };
+    private static final String[] RESPONSE_HEADERS =
+        { "Content-Type", "Content-Length", "Transfer-Encoding", "Cache-Control", "Last-Modified", "Warning" };
+
+    /**
+     * A captured slow request.
+     */
+    public static class Entry {
+        public final long   m_time;
+        public final String m_requestLine;
+        public final int    m_status;
+        public final long   m_micros;
+        public final String m_cacheStatus;
+        public final String m_headers;
+        public final String m_timeline;
+
+        public Entry(long time, String requestLine, int status, long micros, String cacheStatus,
+                     String headers, String timeline) {
+            m_time = time;
+            m_requestLine = requestLine;
+            m_status = status;
+            m_micros = micros;
+            m_cacheStatus = cacheStatus;
+            m_headers = headers;
+            m_timeline = timeline;
+        }
+    }
+
+    private final long              m_thresholdMicros;
+    private final int               m_capacity;
+    private final LinkedList<Entry> m_entries = new LinkedList<Entry>();
+    private final AtomicLong        m_captured = new AtomicLong();
+
+    /**
+     * @param thresholdMillis requests taking at least this long are captured, 0 to trace nothing
+     * @param capacity number of the latest slow requests kept
+     */
+    @Inject
+    SlowRequestLog(@Named("httproxy.trace.slow.millis") long thresholdMillis,
+                   @Named("httproxy.trace.slow.buffer") int capacity) {
+        m_thresholdMicros = thresholdMillis * 1000;
+        m_capacity = capacity;
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the request's connection was accepted
+     * @return a trace for a new request, null if tracing is off
+     */
+    public RequestTrace newTrace(long startNanos) {
+        return m_thresholdMicros > 0 && m_capacity > 0 ? new RequestTrace(startNanos) : null;
+    }
+
+    /**
+     * Captures the request if it was slow.
+     * @param trace may be null
+     * @param request
+     * @param response the response sent, null if none was
+     * @param cacheStatus cache outcome of the request, null if the cache wasn't used
+     */
+    public void finish(RequestTrace trace, HttpRequest request, HttpResponse response, String cacheStatus) {
+        if (trace == null)
+            return;
+
+        long micros = trace.getElapsedMicros();
+        if (micros < m_thresholdMicros)
+            return;
+
+        StringBuilder headers = new StringBuilder();
+        appendHeaders(headers, ">", request, REQUEST_HEADERS);
+        if (response != null)
+            appendHeaders(headers, "<", response, RESPONSE_HEADERS);
+
+        Entry entry = new Entry(System.currentTimeMillis(), request.getRequestLine().toString(),
+                                response != null ? response.getStatusLine().getStatusCode() : 0,
+                                micros, cacheStatus, headers.toString(), trace.toTimeline());
+        m_captured.incrementAndGet();
+        synchronized (m_entries) {
+            m_entries.addFirst(entry);
+            if (m_entries.size() > m_capacity)
+                m_entries.removeLast();
+        }
+    }
+
+    /**
+     * @return the captured requests, latest first
+     */
+    public List<Entry> getEntries() {
+        synchronized (m_entries) {
+            return Collections.unmodifiableList(new ArrayList<Entry>(m_entries));
+        }
+    }
+
+    /**
+     * @return number of slow requests captured since startup
+     */
+    public long getCapturedCount() {
+        return m_captured.get();
+    }
+
+    private static void appendHeaders(StringBuilder sb, String direction, HttpMessage msg, String[] names) {
+        for (String name : names) {
+            for (Header h : msg.getHeaders(name))
+                sb.append("  ").append(direction).append(' ').append(h.getName()).append(": ")
+                  .append(h.getValue()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package il.technion.cs236369.proxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+/**
+ * Bounds the time SocketFactory.createSocket(String host, int port) may take.
+ * That call connects with the OS default timeout, so it is run on a helper
+ * thread; if it doesn't finish in time the caller gets a timeout and the
+ * socket is closed as soon as the late connect completes.
+ *
+ * An abandoned connect keeps its thread until the OS gives up, which can
+ * take minutes for a blackholed host, so a connector runs at most
+ * MAX_CONNECTING connects at once and fails the others right away. The
+ * abandoned connects still running are counted as stranded.
+ *
+ * A connector given a DnsCache fails fast for names that recently didn't
+ * resolve, and tells the cache how the names it connected to resolved.
+ */
+public class TargetConnector {
+
+    private static final int MAX_CONNECTING = 64;
+
+    private static final AtomicInteger s_stranded = new AtomicInteger();
+    private static final AtomicLong    s_rejected = new AtomicLong();
+
+    private final SocketFactory   m_sockFact;
+    private final DnsCache        m_dns;
+    private final ExecutorService m_pool;
+
+    public TargetConnector(SocketFactory sockFact) {
+        this(sockFact, null);
+    }
+
+    /**
+     * @param sockFact
+     * @param dns remembers the resolutions of the hosts connected to, may be null
+     */
+    public TargetConnector(SocketFactory sockFact, DnsCache dns) {
+        m_sockFact = sockFact;
+        m_dns = dns;
+        m_pool = new ThreadPoolExecutor(0, MAX_CONNECTING, 60, TimeUnit.SECONDS,
+                                        new SynchronousQueue<Runnable>(),
+                                        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "connector");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return number of connects their callers gave up on that are still
+     *         waiting for the OS, over all connectors
+     */
+    public static int getStrandedCount() {
+        return s_stranded.get();
+    }
+
+    /**
+     * @return number of connects failed because a connector was running
+     *         MAX_CONNECTING already, over all connectors
+     */
+    public static long getRejectedCount() {
+        return s_rejected.get();
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param timeout milliseconds, 0 to wait as long as the OS does
+     * @return the connected socket
+     * @throws UnknownHostException if host doesn't resolve (now or recently)
+     * @throws SocketTimeoutException if connecting took longer than timeout
+     * @throws IOException if connecting failed
+     */
+    public Socket connect(String host, int port, int timeout) throws IOException {
+        if (m_dns == null)
+            return open(host, port, timeout);
+
+        m_dns.check(host);
+        try {
+            Socket sock = open(host, port, timeout);
+            m_dns.resolved(host, sock.getInetAddress());
+            return sock;
+        }
+        catch (UnknownHostException e) {
+            m_dns.failed(host);
+            throw e;
+        }
+    }
+
+    /**
+     * Does the work of connect.
+     */
+    private Socket open(final String host, final int port, int timeout) throws IOException {
+        if (timeout <= 0)
+            return m_sockFact.createSocket(host, port);
+
+        // whoever flips 'decided' first owns the outcome: the connector hands
+        // the socket over, or the caller gives up (stranding the connect) and
+        // the connector closes it
+        final AtomicBoolean decided = new AtomicBoolean(false);
+        Future<Socket> connecting;
+        try {
+            connecting = m_pool.submit(new Callable<Socket>() {
+                @Override
+                public Socket call() throws IOException {
+                    Socket sock = null;
+                    try {
+                        sock = m_sockFact.createSocket(host, port);
+                        return sock;
+                    }
+                    finally {
+                        if (!decided.compareAndSet(false, true)) {
+                            s_stranded.decrementAndGet();
+                            if (sock != null)
+                                sock.close();
+                        }
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            s_rejected.incrementAndGet();
+            throw new IOException("Too many connects in progress, not connecting to " + host + ":" + port);
+        }
+
+        try {
+            return connecting.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            if (!abandon(decided)) {
+                // connected right as we gave up
+                try {
+                    return connecting.get();
+                }
+                catch (Exception ignore) {}
+            }
+            throw new SocketTimeoutException("Connecting to " + host + ":" + port + " timed out");
+        }
+        catch (InterruptedException e) {
+            if (!abandon(decided)) {
+                try {
+                    connecting.get().close();
+                }
+                catch (Exception ignore) {}
+            }
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + host + ":" + port);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause().toString());
+        }
+    }
+
+    /**
+     * Gives up on a connect, unless its outcome was decided already.
+     * @param decided
+     * @return true if the connect is now stranded
+     */
+    private static boolean abandon(AtomicBoolean decided) {
+        // counted first, so the connector never uncounts it before
+        s_stranded.incrementAndGet();
+        if (decided.compareAndSet(false, true))
+            return true;
+        s_stranded.decrementAndGet();
+        return false;
+    }
+}
@@ -0,0 +1,73 @@
+package il.technion.cs236369.proxy;
+
+/**
+ * TinyLFU style admission: the access frequency of every url is estimated
+ * with a count-min sketch of 4-bit counters, and a url is admitted once its
+ * estimated frequency reaches MIN_FREQUENCY. All counters are halved after
+ * every 10 * width increments so the sketch follows recent popularity.
+ */
+public class TinyLfuAdmissionPolicy extends CacheAdmissionPolicy {
+
+    private static final int DEPTH         = 4;
+    private static final int MAX_COUNT     = 15;
+    private static final int MIN_FREQUENCY = 2;
+
+    private final byte[][] m_table;
+    private final int      m_width;
+    private final int      m_sampleSize;
+    private int            m_additions;
+
+    public TinyLfuAdmissionPolicy(int width) {
+        m_width = Math.max(width, 16);
+        m_table = new byte[DEPTH][m_width];
+        m_sampleSize = 10 * m_width;
+        m_additions = 0;
+    }
+
+    @Override
+    protected synchronized boolean shouldAdmit(String key) {
+        return increment(key) >= MIN_FREQUENCY;
+    }
+
+    /**
+     * Counts another access to key.
+     * @param key
+     * @return the estimated frequency of key, including this access
+     */
+    int increment(String key) {
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; ++i) {
+            int idx = (hash(key, i) & Integer.MAX_VALUE) % m_width;
+            if (m_table[i][idx] < MAX_COUNT)
+                ++m_table[i][idx];
+            min = Math.min(min, m_table[i][idx]);
+        }
+
+        if (++m_additions >= m_sampleSize)
+            reset();
+
+        return min;
+    }
+
+    /**
+     * @param key
+     * @return the estimated frequency of key
+     */
+    int frequency(String key) {
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; ++i)
+            min = Math.min(min, m_table[i][(hash(key, i) & Integer.MAX_VALUE) % m_width]);
+
+        return min;
+    }
+
+    /**
+     * Halves all counters.
+     */
+    private void reset() {
+        for (byte[] row : m_table)
+            for (int i = 0; i < m_width; ++i)
+                row[i] >>= 1;
+        m_additions /= 2;
+    }
+}
@@ -0,0 +1,365 @@
+package il.technion.cs236369.proxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHeader;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Records the handled requests to a compact binary log, so the real
+ * workload can be replayed later against a test instance. Per request the
+ * log keeps the request line, the headers that matter to caching, the
+ * arrival time, the status, the sizes and the cache outcome; bodies are not
+ * kept. Like the access log, requests only queue their record and a
+ * background thread writes it; records that don't fit in the queue are
+ * dropped and counted.
+ *
+ * Format (numbers are unsigned varints, strings are modified UTF-8 as
+ * written by DataOutput.writeUTF):
+ *
+ *   header:  int MAGIC, byte VERSION, long capture start (epoch millis)
+ *   record:  arrival (micros since the start), method, uri,
+ *            n, n * (name, value) of the request headers,
+ *            status, request body bytes, response body bytes,
+ *            handling time (micros), cache outcome ("" if none),
+ *            m, m * (name, value) of the response headers
+ */
+public class TrafficCapture {
+
+    public static final int  MAGIC   = 0x48504341; // "HPCA"
+    public static final byte VERSION = 1;
+
+    private static final String[] REQUEST_HEADERS =
+        { "Host", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language", "Cache-Control",
+          "Pragma", "If-Modified-Since", "If-None-Match", "Range", "Content-Type", "Content-Length" };
+    private static final String[] RESPONSE_HEADERS =
+        { "Content-Type", "Cache-Control", "Expires", "Last-Modified", "ETag", "Vary" };
+
+    /**
+     * A captured request.
+     */
+    public static class Record {
+        public final long     m_arrivalMicros;
+        public final String   m_method;
+        public final String   m_uri;
+        public final Header[] m_requestHeaders;
+        public final int      m_status;
+        public final long     m_requestBytes;
+        public final long     m_responseBytes;
+        public final long     m_micros;
+        public final String   m_cacheStatus;
+        public final Header[] m_responseHeaders;
+
+        public Record(long arrivalMicros, String method, String uri, Header[] requestHeaders, int status,
+                      long requestBytes, long responseBytes, long micros, String cacheStatus,
+                      Header[] responseHeaders) {
+            m_arrivalMicros = arrivalMicros;
+            m_method = method;
+            m_uri = uri;
+            m_requestHeaders = requestHeaders;
+            m_status = status;
+            m_requestBytes = requestBytes;
+            m_responseBytes = responseBytes;
+            m_micros = micros;
+            m_cacheStatus = cacheStatus;
+            m_responseHeaders = responseHeaders;
+        }
+    }
+
+    /**
+     * Reads a log written by TrafficCapture.
+     */
+    public static class Reader {
+        private final DataInputStream m_in;
+        private final long            m_startMillis;
+
+        /**
+         * @param in positioned at the start of the log
+         * @throws IOException if in isn't a capture log of a known version
+         */
+        public Reader(InputStream in) throws IOException {
+            m_in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+            if (m_in.readInt() != MAGIC)
+                throw new IOException("Not a traffic capture");
+            byte version = m_in.readByte();
+            if (version != VERSION)
+                throw new IOException("Unsupported traffic capture version " + version);
+            m_startMillis = m_in.readLong();
+        }
+
+        /**
+         * @return epoch millis when the capture started
+         */
+        public long getStartMillis() {
+            return m_startMillis;
+        }
+
+        /**
+         * @return the next record, null at the end of the log
+         * @throws IOException
+         */
+        public Record next() throws IOException {
+            long arrival;
+            try {
+                arrival = readVarLong(m_in);
+            }
+            catch (EOFException e) {
+                return null;
+            }
+
+            // A record cut short by a crash ends the log as well
+            try {
+                String method = m_in.readUTF();
+                String uri = m_in.readUTF();
+                Header[] requestHeaders = readHeaders(m_in);
+                int status = (int) readVarLong(m_in);
+                long requestBytes = readVarLong(m_in);
+                long responseBytes = readVarLong(m_in);
+                long micros = readVarLong(m_in);
+                String cacheStatus = m_in.readUTF();
+                Header[] responseHeaders = readHeaders(m_in);
+                return new Record(arrival, method, uri, requestHeaders, status, requestBytes, responseBytes,
+                                  micros, cacheStatus.length() > 0 ? cacheStatus : null, responseHeaders);
+            }
+            catch (EOFException e) {
+                return null;
+            }
+        }
+
+        public void close() throws IOException {
+            m_in.close();
+        }
+
+        /**
+         * @param file
+         * @return all the records of the log in file
+         * @throws IOException
+         */
+        public static List<Record> readAll(String file) throws IOException {
+            Reader reader = new Reader(new FileInputStream(file));
+            try {
+                List<Record> res = new ArrayList<Record>();
+                Record r;
+                while ((r = reader.next()) != null)
+                    res.add(r);
+                return res;
+            }
+            finally {
+                reader.close();
+            }
+        }
+    }
+
+    private final String                m_file;
+    private final BlockingQueue<Record> m_queue;
+    private final long                  m_startNanos = System.nanoTime();
+    private final long                  m_startMillis = System.currentTimeMillis();
+    private volatile Thread             m_writer;
+
+    private final AtomicLong m_written = new AtomicLong();
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    /**
+     * @param file file the log is written to (replacing it), empty to disable capturing
+     * @param bufferSize records that may wait for the writer
+     */
+    @Inject
+    TrafficCapture(@Named("httproxy.capture.file") String file,
+                   @Named("httproxy.capture.buffer") int bufferSize) {
+        m_file = file.trim();
+        m_queue = new ArrayBlockingQueue<Record>(Math.max(bufferSize, 1));
+    }
+
+    /**
+     * Opens the log and starts the writer, unless capturing is disabled.
+     * Returns immediately.
+     * @throws IOException if the log file can't be created
+     */
+    public synchronized void start() throws IOException {
+        if (m_writer != null || m_file.length() == 0)
+            return;
+
+        final DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_file), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(m_startMillis);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain(out);
+            }
+        }, "traffic-capture");
+        writer.setDaemon(true);
+        m_writer = writer;
+        writer.start();
+    }
+
+    /**
+     * Queues the record of a handled request. Never blocks.
+     * @param request
+     * @param response the response sent, null if none was
+     * @param requestBytes bytes received from the client
+     * @param responseBytes bytes sent to the client
+     * @param acceptedAt System.nanoTime() when the request's connection was accepted
+     * @param cacheStatus cache outcome of the request, null if the cache wasn't used
+     */
+    public void record(HttpRequest request, HttpResponse response, long requestBytes, long responseBytes,
+                       long acceptedAt, String cacheStatus) {
+        if (m_writer == null)
+            return;
+
+        long requestBody = contentLength(request.getFirstHeader("Content-Length"), 0);
+        long responseBody = responseBytes;
+        if (response != null) {
+            HttpEntity entity = response.getEntity();
+            responseBody = entity == null ? 0 : entity.getContentLength() >= 0
+                ? entity.getContentLength()
+                : contentLength(response.getFirstHeader("Content-Length"), responseBytes);
+        }
+
+        Record r = new Record((acceptedAt - m_startNanos) / 1000,
+                              request.getRequestLine().getMethod(),
+                              request.getRequestLine().getUri(),
+                              keyHeaders(request, REQUEST_HEADERS),
+                              response != null ? response.getStatusLine().getStatusCode() : 0,
+                              requestBody,
+                              responseBody,
+                              (System.nanoTime() - acceptedAt) / 1000,
+                              cacheStatus,
+                              response != null ? keyHeaders(response, RESPONSE_HEADERS) : new Header[0]);
+        if (!m_queue.offer(r))
+            m_dropped.incrementAndGet();
+    }
+
+    public long getWrittenCount() {
+        return m_written.get();
+    }
+
+    /**
+     * @return number of records dropped because the writer fell behind
+     */
+    public long getDroppedCount() {
+        return m_dropped.get();
+    }
+
+    private void drain(DataOutputStream out) {
+        while (true) {
+            try {
+                Record r = m_queue.poll();
+                if (r == null) {
+                    out.flush();
+                    r = m_queue.poll(1, TimeUnit.SECONDS);
+                    if (r == null)
+                        continue;
+                }
+                write(out, r);
+                m_written.incrementAndGet();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            catch (IOException e) {
+                System.err.println("[!] Failed to write the traffic capture: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, Record r) throws IOException {
+        writeVarLong(out, Math.max(r.m_arrivalMicros, 0));
+        out.writeUTF(truncate(r.m_method));
+        out.writeUTF(truncate(r.m_uri));
+        writeHeaders(out, r.m_requestHeaders);
+        writeVarLong(out, r.m_status);
+        writeVarLong(out, Math.max(r.m_requestBytes, 0));
+        writeVarLong(out, Math.max(r.m_responseBytes, 0));
+        writeVarLong(out, Math.max(r.m_micros, 0));
+        out.writeUTF(r.m_cacheStatus != null ? r.m_cacheStatus : "");
+        writeHeaders(out, r.m_responseHeaders);
+    }
+
+    private static Header[] keyHeaders(HttpMessage msg, String[] names) {
+        List<Header> res = new ArrayList<Header>();
+        for (String name : names) {
+            Header h = msg.getFirstHeader(name);
+            if (h != null)
+                res.add(h);
+        }
+        return res.toArray(new Header[res.size()]);
+    }
+
+    private static long contentLength(Header h, long dflt) {
+        if (h == null)
+            return dflt;
+        try {
+            return Long.parseLong(h.getValue().trim());
+        }
+        catch (NumberFormatException e) {
+            return dflt;
+        }
+    }
+
+    /**
+     * writeUTF fails on strings encoding to more than 64K; such urls are cut.
+     */
+    private static String truncate(String s) {
+        return s.length() > 16 * 1024 ? s.substring(0, 16 * 1024) : s;
+    }
+
+    private static void writeHeaders(DataOutputStream out, Header[] headers) throws IOException {
+        writeVarLong(out, headers.length);
+        for (Header h : headers) {
+            out.writeUTF(h.getName());
+            out.writeUTF(truncate(h.getValue()));
+        }
+    }
+
+    private static Header[] readHeaders(DataInputStream in) throws IOException {
+        Header[] res = new Header[(int) readVarLong(in)];
+        for (int i = 0; i < res.length; i++)
+            res[i] = new BasicHeader(in.readUTF(), in.readUTF());
+        return res;
+    }
+
+    private static void writeVarLong(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Malformed traffic capture");
+    }
+}